@@ -0,0 +1,39 @@
+package no.ntnu;
+
+import java.util.concurrent.TimeUnit;
+import main.java.no.ntnu.datakomm.ArithmeticProtocol;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The request handling of the warm-up server (ClientHandler.parseRequest): checking for "game over" and
+ * computing the answer of a valid and an invalid request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArithmeticProtocolBenchmark {
+    // Not constants, so the JIT can not fold the requests
+    private String validRequest = "1234+5678";
+    private String invalidRequest = "12 plus 30";
+
+    @Benchmark
+    public String validRequest() {
+        return ArithmeticProtocol.isGameOver(validRequest) ? null : ArithmeticProtocol.answer(validRequest);
+    }
+
+    @Benchmark
+    public String invalidRequest() {
+        return ArithmeticProtocol.isGameOver(invalidRequest) ? null : ArithmeticProtocol.answer(invalidRequest);
+    }
+}
@@ -0,0 +1,125 @@
+package no.ntnu;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing of the commands received by TCPClient: a typical mix of 1000 server lines is parsed per operation.
+ * Compares recognizing only the command words (what happens when nobody listens), fully decoding the events
+ * (what parseIncomingCommands does for the listeners), and the readLine() + split() approach the client used
+ * before CommandDecoder.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandParsingBenchmark {
+    private static final int LINES = 1000;
+
+    private byte[] input;
+
+    @Setup
+    public void createInput() {
+        StringBuilder users = new StringBuilder("users");
+        for (int i = 0; i < 50; i++) {
+            users.append(" user").append(i);
+        }
+        String[] kinds = {
+            "msg alice Hello everyone, how is the assignment going?",
+            "msg bob Fine, the tests pass now",
+            "privmsg carol Can you help me with the socket code?",
+            "msg dave lunch in 10 minutes",
+            users.toString(),
+            "msgerr incorrect recipient nobody",
+            "loginok",
+            "supported msg privmsg login users help",
+            "cmderror command not supported",
+            "msg erin :)"
+        };
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            text.append(kinds[i % kinds.length]).append('\n');
+        }
+        input = text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public void commandWordsOnly(Blackhole blackhole) throws IOException {
+        CommandDecoder decoder = new CommandDecoder();
+        ByteArrayInputStream in = new ByteArrayInputStream(input);
+        while (true) {
+            while (decoder.next()) {
+                blackhole.consume(decoder.command());
+            }
+            if (decoder.readFrom(in) < 0) {
+                return;
+            }
+        }
+    }
+
+    @Benchmark
+    public void fullEvents(Blackhole blackhole) throws IOException {
+        CommandDecoder decoder = new CommandDecoder();
+        ByteArrayInputStream in = new ByteArrayInputStream(input);
+        while (true) {
+            while (decoder.next()) {
+                switch (decoder.command()) {
+                    case MSG:
+                    case PRIVMSG:
+                        blackhole.consume(new TextMessage(decoder.argument(),
+                                decoder.command() == ChatCommand.PRIVMSG, decoder.textAfterArgument()));
+                        break;
+                    case USERS:
+                    case SUPPORTED:
+                        blackhole.consume(decoder.payloadWords());
+                        break;
+                    default:
+                        blackhole.consume(decoder.payload());
+                }
+            }
+            if (decoder.readFrom(in) < 0) {
+                return;
+            }
+        }
+    }
+
+    @Benchmark
+    public void readLineAndSplit(Blackhole blackhole) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(input),
+                StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] parts = line.split(" ", 2);
+            switch (parts[0]) {
+                case "msg":
+                case "privmsg":
+                    String[] message = parts[1].split(" ", 2);
+                    blackhole.consume(new TextMessage(message[0], parts[0].equals("privmsg"), message[1]));
+                    break;
+                case "users":
+                case "supported":
+                    blackhole.consume(parts[1].split(" "));
+                    break;
+                default:
+                    blackhole.consume(parts.length > 1 ? parts[1] : "");
+            }
+        }
+    }
+}
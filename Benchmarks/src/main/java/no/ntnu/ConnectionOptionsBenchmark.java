@@ -0,0 +1,96 @@
+package no.ntnu;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The ConnectionOptions presets against a LocalChatServer on the loopback interface: the round-trip time of one
+ * "users" request, which is what a person waits for, and the throughput of bursts of messages, which is what a
+ * bot cares about. The interactive preset should win the first, the bulk preset (batching, bigger buffers) the
+ * second. "bulkBotWithNagle" is the bulk preset with Nagle's algorithm on, to show why the presets turn it off.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionOptionsBenchmark {
+    // Messages sent in one burst
+    private static final int BURST = 1000;
+
+    @Param({"lowLatencyInteractive", "bulkBot", "bulkBotWithNagle"})
+    public String preset;
+
+    private LocalChatServer server;
+    private TCPClient client;
+    private final String message = "A chat message of a typical length, around sixty bytes long";
+
+    @Setup(Level.Trial)
+    public void connect() throws Exception {
+        server = new LocalChatServer().start();
+        client = new TCPClient();
+        client.setConnectionOptions(options(preset));
+        if (!client.connect("localhost", server.getPort())) {
+            throw new IOException("Can not connect to the local server");
+        }
+        client.startListenThread();
+        if (!client.login("bench").get(5, TimeUnit.SECONDS).isSuccess()) {
+            throw new IOException("Login failed");
+        }
+    }
+
+    private static ConnectionOptions options(String preset) {
+        switch (preset) {
+            case "lowLatencyInteractive":
+                return ConnectionOptions.lowLatencyInteractive();
+            case "bulkBot":
+                return ConnectionOptions.bulkBot();
+            case "bulkBotWithNagle":
+                return ConnectionOptions.bulkBot().toBuilder().tcpNoDelay(false).build();
+            default:
+                throw new IllegalArgumentException("Unknown preset " + preset);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void disconnect() {
+        client.disconnect();
+        server.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String[] usersRoundTrip() throws Exception {
+        return client.users().get();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @OperationsPerInvocation(BURST)
+    public String[] messageBurst() throws Exception {
+        for (int i = 0; i < BURST; i++) {
+            client.sendPublicMessageAsync(message);
+        }
+        // The server answers in order: when the user list arrives, all the messages have been handled. Flushed
+        // like a bot would at the end of its burst, not to measure the linger time of the batching.
+        CompletableFuture<String[]> users = client.users();
+        client.flush();
+        return users.get();
+    }
+}
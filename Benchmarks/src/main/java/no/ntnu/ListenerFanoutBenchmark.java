@@ -0,0 +1,110 @@
+package no.ntnu;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Delivering one event to 1, 10 and 100 listeners: the ListenerRegistry snapshot array used by TCPClient (with
+ * and without the lag measurement done by EventDispatcher), compared with iterating a LinkedList (the old
+ * implementation) and a CopyOnWriteArrayList.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListenerFanoutBenchmark {
+    @Param({"1", "10", "100"})
+    public int listenerCount;
+
+    private final ChatEvent event = ChatEvent.messageError("benchmark");
+    private final ListenerRegistry registry = new ListenerRegistry();
+    private final List<ChatListener> linkedList = new LinkedList<>();
+    private final List<ChatListener> cowList = new CopyOnWriteArrayList<>();
+
+    @Setup
+    public void registerListeners() {
+        for (int i = 0; i < listenerCount; i++) {
+            ChatListener listener = new CountingListener();
+            registry.add(listener);
+            linkedList.add(listener);
+            cowList.add(listener);
+        }
+    }
+
+    @Benchmark
+    public void registrySnapshot() {
+        for (ListenerRegistry.Entry entry : registry.entries()) {
+            event.deliver(entry.listener);
+        }
+    }
+
+    @Benchmark
+    public void registryWithLag() {
+        EventDispatcher.deliver(event, registry);
+    }
+
+    @Benchmark
+    public void linkedList() {
+        for (ChatListener listener : linkedList) {
+            event.deliver(listener);
+        }
+    }
+
+    @Benchmark
+    public void copyOnWriteList() {
+        for (ChatListener listener : cowList) {
+            event.deliver(listener);
+        }
+    }
+
+    /**
+     * Does a minimal amount of work per event, so the delivery itself is measured
+     */
+    private static class CountingListener implements ChatListener {
+        private int count = 0;
+
+        @Override
+        public void onMessageError(String errMsg) {
+            count++;
+        }
+
+        @Override
+        public void onDisconnect() {
+        }
+
+        @Override
+        public void onLoginResult(boolean success, String errMsg) {
+        }
+
+        @Override
+        public void onMessageReceived(TextMessage message) {
+        }
+
+        @Override
+        public void onUserList(String[] usernames) {
+        }
+
+        @Override
+        public void onSupportedCommands(String[] commands) {
+        }
+
+        @Override
+        public void onCommandError(String errMsg) {
+        }
+    }
+}
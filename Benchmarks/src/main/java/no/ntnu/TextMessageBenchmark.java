@@ -0,0 +1,73 @@
+package no.ntnu;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Creating, hashing and comparing chat messages, and looking them up in a hash set, as the tests and the
+ * GUI do with received messages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextMessageBenchmark {
+    private static final int MESSAGES = 1000;
+
+    private final Set<TextMessage> received = new HashSet<>();
+    private TextMessage message;
+    private TextMessage sameMessage;
+    private TextMessage otherMessage;
+    private String sender;
+    private String text;
+
+    @Setup
+    public void createMessages() {
+        for (int i = 0; i < MESSAGES; i++) {
+            received.add(new TextMessage("user" + (i % 50), i % 7 == 0, "Message number " + i + " in the chat"));
+        }
+        sender = "user7";
+        text = "Message number 507 in the chat, with a somewhat longer text than the others";
+        message = new TextMessage(sender, false, text);
+        sameMessage = new TextMessage(new String(sender), false, new String(text));
+        otherMessage = new TextMessage(sender, false, text + "!");
+    }
+
+    @Benchmark
+    public TextMessage create() {
+        return new TextMessage(sender, false, text);
+    }
+
+    @Benchmark
+    public int hash() {
+        return message.hashCode();
+    }
+
+    @Benchmark
+    public boolean equalMessages() {
+        return message.equals(sameMessage);
+    }
+
+    @Benchmark
+    public boolean differentMessages() {
+        return message.equals(otherMessage);
+    }
+
+    @Benchmark
+    public boolean lookup() {
+        return received.contains(new TextMessage(sender, false, text));
+    }
+}
@@ -14,6 +14,8 @@ import javafx.stage.Stage;
  * Class representing the main Graphical User Interface (GUI). JavaFX interface.
  */
 public class App extends Application {
+    // Controller of the loaded layout, stopped together with the application
+    private GUIController controller;
 
     public static void main(String[] args) {
         launch(args);
@@ -28,9 +30,10 @@ public class App extends Application {
     @Override
     public void start(Stage primaryStage) {
         URL r = getClass().getClassLoader().getResource("layout.fxml");
+        FXMLLoader loader = new FXMLLoader(r);
         Parent root = null;
         try {
-            root = FXMLLoader.load(r);
+            root = loader.load();
         } catch (IOException e) {
             System.out.println("Error while loading FXML");
             return;
@@ -42,5 +45,17 @@ public class App extends Application {
         Image anotherIcon = new Image("styles/ntnu.png");
         primaryStage.getIcons().add(anotherIcon);
         primaryStage.show();
+        controller = loader.getController();
+    }
+
+    /**
+     * This method is called automatically by JavaFX when the application is
+     * closed
+     */
+    @Override
+    public void stop() {
+        if (controller != null) {
+            controller.stop();
+        }
     }
 }
\ No newline at end of file
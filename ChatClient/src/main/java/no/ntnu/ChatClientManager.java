@@ -0,0 +1,101 @@
+package no.ntnu;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hosts many chat sessions in one process, for example for load generators and bots. Instead of a few
+ * threads per client like TCPClient, all the sessions share a small number of I/O threads, each serving many
+ * non-blocking sockets with one selector. A session offers the same requests and ChatListener callbacks as
+ * TCPClient.
+ */
+public class ChatClientManager implements Closeable {
+    private final IoLoop[] loops;
+    private final ExecutorService ioThreads;
+    // Used to spread the sessions over the I/O threads
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final AtomicInteger sessionCount = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    /**
+     * Create a manager with one I/O thread per available processor, at most 4.
+     *
+     * @throws IOException When the selectors can not be opened
+     */
+    public ChatClientManager() throws IOException {
+        this(Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * @param ioThreadCount Number of I/O threads
+     * @throws IOException When the selectors can not be opened
+     */
+    public ChatClientManager(int ioThreadCount) throws IOException {
+        if (ioThreadCount < 1) {
+            throw new IllegalArgumentException("At least one I/O thread is needed");
+        }
+        loops = new IoLoop[ioThreadCount];
+        for (int i = 0; i < ioThreadCount; i++) {
+            loops[i] = new IoLoop();
+        }
+        ioThreads = ExecutionMode.POOLED.newExecutor("chat-io", ioThreadCount, true);
+        for (IoLoop loop : loops) {
+            ioThreads.execute(loop);
+        }
+    }
+
+    /**
+     * Open a new session to a chat server. Does not block, the connection is made by an I/O thread.
+     *
+     * @param host host name or IP address of the chat server
+     * @param port TCP port of the chat server
+     * @return Future completed with the session when connected, or exceptionally when the connection failed
+     */
+    public CompletableFuture<ChatSession> connect(String host, int port) {
+        CompletableFuture<ChatSession> session;
+        if (closed) {
+            session = new CompletableFuture<>();
+            session.completeExceptionally(new IOException("Client manager closed"));
+            return session;
+        }
+        try {
+            IoLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+            session = new ChatSession(this, loop).connect(new InetSocketAddress(host, port));
+        } catch (IOException e) {
+            session = new CompletableFuture<>();
+            session.completeExceptionally(e);
+        }
+        return session;
+    }
+
+    /**
+     * @return Number of currently connected sessions
+     */
+    public int getSessionCount() {
+        return sessionCount.get();
+    }
+
+    /**
+     * Close all the sessions and stop the I/O threads.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (IoLoop loop : loops) {
+            loop.close();
+        }
+        ioThreads.shutdown();
+    }
+
+    void sessionOpened() {
+        sessionCount.incrementAndGet();
+    }
+
+    void sessionClosed() {
+        sessionCount.decrementAndGet();
+    }
+}
@@ -0,0 +1,123 @@
+package no.ntnu;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Command words of the chat protocol. Every line sent in either direction starts with one of these words.
+ * The words are kept as bytes, so an incoming command can be recognized without decoding it to a String.
+ * In binary framing (see {@link Framing}) the word is replaced by a one-byte opcode. The opcodes are part of the
+ * protocol: never change or reuse one.
+ */
+enum ChatCommand {
+    LOGIN(1, "login"),
+    LOGINOK(2, "loginok"),
+    LOGINERR(3, "loginerr"),
+    MSG(4, "msg"),
+    PRIVMSG(5, "privmsg"),
+    MSGERR(6, "msgerr"),
+    USERS(7, "users"),
+    HELP(8, "help"),
+    SUPPORTED(9, "supported"),
+    CMDERROR(10, "cmderror"),
+    FRAMING(11, "framing"),
+    FRAMINGOK(12, "framingok"),
+    COMPRESSION(13, "compression"),
+    COMPRESSIONOK(14, "compressionok"),
+    // Anything not recognized. In a binary frame, opcode 0 means that the payload is a whole command line.
+    UNKNOWN(0, "");
+
+    private static final ChatCommand[] KNOWN = {
+        LOGIN, LOGINOK, LOGINERR, MSG, PRIVMSG, MSGERR, USERS, HELP, SUPPORTED, CMDERROR, FRAMING, FRAMINGOK,
+        COMPRESSION, COMPRESSIONOK
+    };
+    // Indexed by opcode
+    private static final ChatCommand[] BY_OPCODE = new ChatCommand[256];
+
+    static {
+        for (ChatCommand command : KNOWN) {
+            BY_OPCODE[command.opcode] = command;
+        }
+    }
+
+    private final int opcode;
+    private final String word;
+    private final byte[] wordBytes;
+
+    ChatCommand(int opcode, String word) {
+        this.opcode = opcode;
+        this.word = word;
+        this.wordBytes = word.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return The opcode of the command in binary framing, 0 for UNKNOWN
+     */
+    int opcode() {
+        return opcode;
+    }
+
+    /**
+     * @param opcode An opcode received in a binary frame
+     * @return The command with the opcode, UNKNOWN for 0 and for opcodes not known
+     */
+    static ChatCommand ofOpcode(int opcode) {
+        ChatCommand command = opcode >= 0 && opcode < BY_OPCODE.length ? BY_OPCODE[opcode] : null;
+        return command != null ? command : UNKNOWN;
+    }
+
+    /**
+     * @return The command word, as sent on the wire
+     */
+    String word() {
+        return word;
+    }
+
+    /**
+     * Find the command with the given command word, without allocating anything.
+     *
+     * @param bytes  Array holding the command word
+     * @param offset Index of the first byte of the word
+     * @param length Length of the word in bytes
+     * @return The matching command, or UNKNOWN
+     */
+    static ChatCommand match(byte[] bytes, int offset, int length) {
+        for (ChatCommand command : KNOWN) {
+            if (command.matches(bytes, offset, length)) {
+                return command;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Find the command of a command line (as sent by the client), without allocating anything.
+     *
+     * @param line The command line, starting with the command word
+     * @return The matching command, or UNKNOWN
+     */
+    static ChatCommand ofLine(String line) {
+        int space = line.indexOf(' ');
+        int length = space >= 0 ? space : line.length();
+        for (ChatCommand command : KNOWN) {
+            if (command.word.length() == length && line.startsWith(command.word)) {
+                return command;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * @return true if the bytes are exactly the command word of this command
+     */
+    private boolean matches(byte[] bytes, int offset, int length) {
+        if (length != wordBytes.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (bytes[offset + i] != wordBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
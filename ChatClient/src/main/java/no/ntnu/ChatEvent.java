@@ -0,0 +1,153 @@
+package no.ntnu;
+
+/**
+ * One event received from the server, waiting in the queue to be delivered to the listeners
+ */
+class ChatEvent {
+
+    /**
+     * Event types, one for each ChatListener method
+     */
+    enum Kind {
+        LOGIN_RESULT,
+        MESSAGE,
+        MESSAGE_ERROR,
+        USER_LIST,
+        SUPPORTED,
+        COMMAND_ERROR,
+        RECONNECTING,
+        RECONNECTED,
+        DISCONNECT;
+
+        /**
+         * @return true for events carrying a complete state, where only the latest one matters
+         */
+        boolean isCoalescible() {
+            return this == USER_LIST || this == SUPPORTED;
+        }
+
+        /**
+         * @return true for the connection state changes. They are queued even when the queue is full, so that
+         * posting one never waits for the listeners (it is done while holding the lock of the client).
+         */
+        boolean isLifecycle() {
+            return this == RECONNECTING || this == RECONNECTED || this == DISCONNECT;
+        }
+    }
+
+    private final Kind kind;
+    private final boolean success;
+    // Attempt number and delay, for RECONNECTING
+    private final int attempt;
+    private final long delay;
+    private final String text;
+    private final TextMessage message;
+    // List payload. Replaced when a newer event of the same kind is coalesced into this one.
+    private String[] list;
+    // When the event was received, System.nanoTime()
+    private final long receivedAt = System.nanoTime();
+
+    private ChatEvent(Kind kind, boolean success, String text, TextMessage message, String[] list) {
+        this(kind, success, text, message, list, 0, 0);
+    }
+
+    private ChatEvent(Kind kind, boolean success, String text, TextMessage message, String[] list,
+                      int attempt, long delay) {
+        this.kind = kind;
+        this.success = success;
+        this.attempt = attempt;
+        this.delay = delay;
+        this.text = text;
+        this.message = message;
+        this.list = list;
+    }
+
+    static ChatEvent loginResult(boolean success, String errMsg) {
+        return new ChatEvent(Kind.LOGIN_RESULT, success, errMsg, null, null);
+    }
+
+    static ChatEvent message(TextMessage message) {
+        return new ChatEvent(Kind.MESSAGE, false, null, message, null);
+    }
+
+    static ChatEvent messageError(String errMsg) {
+        return new ChatEvent(Kind.MESSAGE_ERROR, false, errMsg, null, null);
+    }
+
+    static ChatEvent userList(String[] usernames) {
+        return new ChatEvent(Kind.USER_LIST, false, null, null, usernames);
+    }
+
+    static ChatEvent supported(String[] commands) {
+        return new ChatEvent(Kind.SUPPORTED, false, null, null, commands);
+    }
+
+    static ChatEvent commandError(String errMsg) {
+        return new ChatEvent(Kind.COMMAND_ERROR, false, errMsg, null, null);
+    }
+
+    static ChatEvent reconnecting(int attempt, long delayMillis) {
+        return new ChatEvent(Kind.RECONNECTING, false, null, null, null, attempt, delayMillis);
+    }
+
+    static ChatEvent reconnected() {
+        return new ChatEvent(Kind.RECONNECTED, false, null, null, null);
+    }
+
+    static ChatEvent disconnect() {
+        return new ChatEvent(Kind.DISCONNECT, false, null, null, null);
+    }
+
+    Kind kind() {
+        return kind;
+    }
+
+    long receivedAt() {
+        return receivedAt;
+    }
+
+    /**
+     * Take over the content of a newer event of the same kind.
+     *
+     * @param newer The newer event, which will not be delivered itself
+     */
+    void coalesce(ChatEvent newer) {
+        this.list = newer.list;
+    }
+
+    /**
+     * Call the listener method corresponding to this event.
+     *
+     * @param listener The listener to notify
+     */
+    void deliver(ChatListener listener) {
+        switch (kind) {
+            case LOGIN_RESULT:
+                listener.onLoginResult(success, text);
+                break;
+            case MESSAGE:
+                listener.onMessageReceived(message);
+                break;
+            case MESSAGE_ERROR:
+                listener.onMessageError(text);
+                break;
+            case USER_LIST:
+                listener.onUserList(list);
+                break;
+            case SUPPORTED:
+                listener.onSupportedCommands(list);
+                break;
+            case COMMAND_ERROR:
+                listener.onCommandError(text);
+                break;
+            case RECONNECTING:
+                listener.onReconnecting(attempt, delay);
+                break;
+            case RECONNECTED:
+                listener.onReconnected();
+                break;
+            default:
+                listener.onDisconnect();
+        }
+    }
+}
@@ -60,4 +60,22 @@ public interface ChatListener {
      */
     public void onCommandError(String errMsg);
 
+    /**
+     * This method is called when the connection was lost and the client is
+     * about to try to reconnect (only when reconnecting is enabled).
+     *
+     * @param attempt     Number of the attempt, starting from 1
+     * @param delayMillis How long the client waits before the attempt
+     */
+    default void onReconnecting(int attempt, long delayMillis) {
+    }
+
+    /**
+     * This method is called when the client has reconnected after losing the
+     * connection. Queued messages are sent, and the client logs in again with
+     * the last username.
+     */
+    default void onReconnected() {
+    }
+
 }
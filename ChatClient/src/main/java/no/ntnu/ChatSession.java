@@ -0,0 +1,461 @@
+package no.ntnu;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * One chat identity hosted by a {@link ChatClientManager}. It offers the same requests as TCPClient, but has
+ * no threads of its own: its socket is served by one of the manager's I/O threads, together with many other
+ * sessions.
+ * <p>
+ * The listeners are called on the I/O thread, so they must return quickly: a slow listener delays all the
+ * sessions of the same thread. Listeners may send new requests from the callbacks.
+ */
+public class ChatSession {
+    // Initial size of the receive buffer. Kept small since a process may host thousands of sessions.
+    private static final int RECEIVE_BUFFER_SIZE = 512;
+    // Most commands written to the socket in one system call
+    private static final int MAX_GATHER = 64;
+
+    private final IoLoop loop;
+    private final SocketChannel channel;
+    private final ChatClientManager manager;
+    private final CompletableFuture<ChatSession> connected = new CompletableFuture<>();
+    private final CommandDecoder decoder = new CommandDecoder(RECEIVE_BUFFER_SIZE);
+    private final ListenerRegistry listeners = new ListenerRegistry();
+    private final PendingReplies pendingReplies = new PendingReplies();
+    private SelectionKey key;
+    private volatile boolean open = false;
+
+    // The following fields are guarded by outbound
+    private final ArrayDeque<Pending> outbound = new ArrayDeque<>();
+    // True while a write is scheduled on the I/O thread or waiting for the socket to accept more data
+    private boolean writeScheduled = false;
+    private boolean closeRequested = false;
+
+    ChatSession(ChatClientManager manager, IoLoop loop) throws IOException {
+        this.manager = manager;
+        this.loop = loop;
+        this.channel = SocketChannel.open();
+        channel.configureBlocking(false);
+    }
+
+    /**
+     * Start connecting, on the I/O thread.
+     *
+     * @param address Address of the chat server
+     * @return Future completed with this session when connected
+     */
+    CompletableFuture<ChatSession> connect(InetSocketAddress address) {
+        loop.execute(this, () -> {
+            try {
+                boolean done = channel.connect(address);
+                key = channel.register(loop.selector(), done ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+                if (done) {
+                    connectionEstablished();
+                }
+            } catch (IOException | RuntimeException e) {
+                // Also unchecked ones, for example UnresolvedAddressException for an unknown host name
+                closeNow(e);
+            }
+        });
+        return connected;
+    }
+
+    /**
+     * @return true while the session is connected
+     */
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Send a login request.
+     *
+     * @param username Username to use
+     * @return Future completed with the server's answer
+     */
+    public CompletableFuture<LoginResult> login(String username) {
+        CompletableFuture<LoginResult> result = new CompletableFuture<>();
+        if (username.isEmpty()) {
+            result.completeExceptionally(new IllegalArgumentException("Username not specified"));
+            return result;
+        }
+        synchronized (pendingReplies) {
+            if (trackSent(send("login " + username), result)) {
+                pendingReplies.expectLogin(result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Ask for the list of connected users.
+     *
+     * @return Future completed with the usernames
+     */
+    public CompletableFuture<String[]> users() {
+        CompletableFuture<String[]> result = new CompletableFuture<>();
+        synchronized (pendingReplies) {
+            if (trackSent(send("users"), result)) {
+                pendingReplies.expectUsers(result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Ask for the commands the server supports.
+     *
+     * @return Future completed with the commands
+     */
+    public CompletableFuture<String[]> supportedCommands() {
+        CompletableFuture<String[]> result = new CompletableFuture<>();
+        synchronized (pendingReplies) {
+            if (trackSent(send("help"), result)) {
+                pendingReplies.expectSupported(result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Send a public message to all the users.
+     *
+     * @param message Message to send
+     * @return Future completed when the message has been written to the socket
+     */
+    public CompletableFuture<Void> sendPublicMessage(String message) {
+        if (message.isEmpty()) {
+            return failed(new IllegalArgumentException("Message was empty string."));
+        }
+        return send("msg " + message);
+    }
+
+    /**
+     * Send a private message to one user.
+     *
+     * @param recipient Username of the recipient
+     * @param message   Message to send
+     * @return Future completed when the message has been written to the socket
+     */
+    public CompletableFuture<Void> sendPrivateMessage(String recipient, String message) {
+        if (recipient.isEmpty() || message.isEmpty()) {
+            return failed(new IllegalArgumentException("Recipient or message not specified."));
+        }
+        return send("privmsg " + recipient + " " + message);
+    }
+
+    /**
+     * Register a listener for the events of this session.
+     *
+     * @param listener The listener, called on the I/O thread
+     */
+    public void addListener(ChatListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Unregister a listener.
+     *
+     * @param listener The listener to remove
+     */
+    public void removeListener(ChatListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @param listener A registered listener
+     * @return Lag statistics of the listener, null if it is not registered
+     */
+    public ListenerLag getListenerLag(ChatListener listener) {
+        return listeners.lagOf(listener);
+    }
+
+    /**
+     * Close the session once the commands sent so far have been written.
+     */
+    public void close() {
+        synchronized (outbound) {
+            if (closeRequested) {
+                return;
+            }
+            closeRequested = true;
+            if (writeScheduled) {
+                // The write in progress closes the session when everything is written
+                return;
+            }
+        }
+        loop.execute(this, () -> closeNow(new IOException("Disconnected")));
+    }
+
+    /**
+     * Queue a command and make sure the I/O thread writes it.
+     *
+     * @param command The command, without the newline
+     * @return Future completed when the command has been written to the socket
+     */
+    private CompletableFuture<Void> send(String command) {
+        Pending pending = new Pending(command);
+        boolean schedule;
+        synchronized (outbound) {
+            if (!open || closeRequested) {
+                return failed(new IOException("Not connected"));
+            }
+            outbound.add(pending);
+            schedule = !writeScheduled;
+            writeScheduled = true;
+        }
+        if (schedule) {
+            loop.execute(this, this::writePending);
+        }
+        return pending.future;
+    }
+
+    /**
+     * Called by the I/O thread when the socket is ready.
+     *
+     * @param readyKey The selection key of this session
+     */
+    void handleReady(SelectionKey readyKey) {
+        try {
+            if (readyKey.isConnectable()) {
+                channel.finishConnect();
+                connectionEstablished();
+            }
+            if (readyKey.isValid() && readyKey.isReadable()) {
+                readCommands();
+            }
+            if (readyKey.isValid() && readyKey.isWritable()) {
+                writePending();
+            }
+        } catch (IOException e) {
+            closeNow(e);
+        }
+    }
+
+    private void connectionEstablished() {
+        open = true;
+        synchronized (outbound) {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+        manager.sessionOpened();
+        connected.complete(this);
+    }
+
+    /**
+     * Read what is available and handle all the complete commands.
+     */
+    private void readCommands() throws IOException {
+        if (decoder.readFrom(channel) < 0) {
+            throw new EOFException("Connection closed by the server");
+        }
+        while (decoder.next()) {
+            if (!decoder.isEmptyLine()) {
+                handleCommand();
+            }
+        }
+    }
+
+    /**
+     * Write as many queued commands as the socket accepts. Called on the I/O thread.
+     */
+    private void writePending() {
+        if (!open) {
+            return;
+        }
+        List<Pending> written = new ArrayList<>();
+        boolean close;
+        try {
+            synchronized (outbound) {
+                ByteBuffer[] buffers = new ByteBuffer[Math.min(outbound.size(), MAX_GATHER)];
+                while (!outbound.isEmpty()) {
+                    int count = 0;
+                    for (Pending pending : outbound) {
+                        if (count == buffers.length) {
+                            break;
+                        }
+                        buffers[count++] = pending.bytes;
+                    }
+                    channel.write(buffers, 0, count);
+                    int done = 0;
+                    while (done < count && !outbound.peek().bytes.hasRemaining()) {
+                        written.add(outbound.poll());
+                        done++;
+                    }
+                    if (done < count) {
+                        // The socket send buffer is full
+                        break;
+                    }
+                }
+                // Wait for the socket to accept more, or write again when new commands are queued
+                writeScheduled = !outbound.isEmpty();
+                key.interestOps(writeScheduled ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+                close = closeRequested && !writeScheduled;
+            }
+        } catch (IOException e) {
+            complete(written);
+            closeNow(e);
+            return;
+        }
+        complete(written);
+        if (close) {
+            closeNow(new IOException("Disconnected"));
+        }
+    }
+
+    private static void complete(List<Pending> written) {
+        for (Pending pending : written) {
+            pending.future.complete(null);
+        }
+    }
+
+    /**
+     * Close the socket and fail everything still waiting. Called on the I/O thread, or on any thread once the
+     * I/O thread has stopped.
+     *
+     * @param cause The reason, reported to the waiting requests
+     */
+    void closeNow(Exception cause) {
+        boolean wasOpen = open;
+        open = false;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        List<Pending> failed;
+        synchronized (outbound) {
+            closeRequested = true;
+            writeScheduled = false;
+            failed = new ArrayList<>(outbound);
+            outbound.clear();
+        }
+        for (Pending pending : failed) {
+            pending.future.completeExceptionally(cause);
+        }
+        pendingReplies.failAll(cause);
+        if (wasOpen) {
+            manager.sessionClosed();
+            notify(ChatEvent.disconnect());
+        } else {
+            connected.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Handle the command in the decoder: complete the matching request and notify the listeners.
+     */
+    private void handleCommand() {
+        // The content is decoded only when someone needs it: a listener, or a request waiting for the reply
+        boolean notify = !listeners.isEmpty();
+        switch (decoder.command()) {
+            case LOGINOK:
+            case LOGINERR:
+                LoginResult result = decoder.command() == ChatCommand.LOGINOK
+                        ? new LoginResult(true, null) : new LoginResult(false, decoder.payload());
+                CompletableFuture<LoginResult> loginReply = pendingReplies.nextLogin();
+                // Completed before notifying, so that a slow listener does not hold back the reply
+                if (loginReply != null) {
+                    loginReply.complete(result);
+                }
+                if (notify) {
+                    notify(ChatEvent.loginResult(result.isSuccess(),
+                            result.isSuccess() ? " " : result.getErrorMessage()));
+                }
+                break;
+
+            case USERS:
+            case SUPPORTED:
+                boolean usersList = decoder.command() == ChatCommand.USERS;
+                CompletableFuture<String[]> listReply = usersList
+                        ? pendingReplies.nextUsers() : pendingReplies.nextSupported();
+                if (notify || listReply != null) {
+                    String[] words = decoder.payloadWords();
+                    if (listReply != null) {
+                        listReply.complete(words);
+                    }
+                    if (notify) {
+                        notify(usersList ? ChatEvent.userList(words) : ChatEvent.supported(words));
+                    }
+                }
+                break;
+
+            case MSG:
+            case PRIVMSG:
+                if (notify) {
+                    boolean priv = decoder.command() == ChatCommand.PRIVMSG;
+                    notify(ChatEvent.message(new TextMessage(decoder.argument(), priv, decoder.textAfterArgument())));
+                }
+                break;
+
+            case MSGERR:
+                if (notify) {
+                    notify(ChatEvent.messageError(decoder.payload()));
+                }
+                break;
+
+            case CMDERROR:
+                // The answer to the oldest pending request, which must not take a later reply
+                String error = decoder.payload();
+                pendingReplies.failOldest(new IOException("Command rejected by the server: " + error));
+                if (notify) {
+                    notify(ChatEvent.commandError(error));
+                }
+                break;
+
+            default:
+                if (notify) {
+                    notify(ChatEvent.commandError("The response from the server could not be recognized."));
+                }
+        }
+    }
+
+    private void notify(ChatEvent event) {
+        EventDispatcher.deliver(event, listeners);
+    }
+
+    /**
+     * Make a reply future fail if its request can not be sent.
+     *
+     * @return false if sending has already failed
+     */
+    private static boolean trackSent(CompletableFuture<Void> sent, CompletableFuture<?> reply) {
+        sent.whenComplete((ignored, error) -> {
+            if (error != null) {
+                reply.completeExceptionally(error);
+            }
+        });
+        return !sent.isCompletedExceptionally();
+    }
+
+    private static <T> CompletableFuture<T> failed(Exception cause) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(cause);
+        return future;
+    }
+
+    /**
+     * A command waiting to be written
+     */
+    private static final class Pending {
+        final ByteBuffer bytes;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Pending(String command) {
+            bytes = ByteBuffer.wrap((command + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
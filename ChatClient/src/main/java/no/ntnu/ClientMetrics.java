@@ -0,0 +1,81 @@
+package no.ntnu;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics updated by a chat client, looked up once in its registry. Every update is lock-free and
+ * allocation-free, so they are updated for every command.
+ */
+final class ClientMetrics {
+    private final MetricsRegistry registry;
+    final LongAdder bytesReceived;
+    final LongAdder bytesSent;
+    // Indexed by ChatCommand ordinal
+    private final LongAdder[] commandsReceived;
+    private final LongAdder[] commandsSent;
+    // Time from a complete command line being available to its event being queued, in nanoseconds
+    final LatencyHistogram parseTime;
+    // Time to deliver one event to all the listeners, in nanoseconds
+    final LatencyHistogram dispatchTime;
+    // Connection lifecycle
+    final LongAdder connects;
+    final LongAdder connectFailures;
+    final LongAdder disconnects;
+    final LongAdder connectionsLost;
+    final LongAdder reconnects;
+    // Requests sent to check a connection on which nothing was received for the read timeout
+    final LongAdder probes;
+    // Messages compressed, the bytes it saved, and the bytes it added to the messages which did not compress
+    final LongAdder compressedSent;
+    final LongAdder compressionSavedSent;
+    final LongAdder compressionExpandedSent;
+    final LongAdder compressedReceived;
+    final LongAdder compressionSavedReceived;
+    final LongAdder compressionExpandedReceived;
+
+    /**
+     * @param registry Where the metrics are registered
+     */
+    ClientMetrics(MetricsRegistry registry) {
+        this.registry = registry;
+        bytesReceived = registry.counter("client.bytes.received");
+        bytesSent = registry.counter("client.bytes.sent");
+        ChatCommand[] commands = ChatCommand.values();
+        commandsReceived = new LongAdder[commands.length];
+        commandsSent = new LongAdder[commands.length];
+        for (ChatCommand command : commands) {
+            String name = command == ChatCommand.UNKNOWN ? "unknown" : command.word();
+            commandsReceived[command.ordinal()] = registry.counter("client.commands.received." + name);
+            commandsSent[command.ordinal()] = registry.counter("client.commands.sent." + name);
+        }
+        parseTime = registry.histogram("client.parse.time");
+        dispatchTime = registry.histogram("client.dispatch.time");
+        connects = registry.counter("client.connection.connects");
+        connectFailures = registry.counter("client.connection.failures");
+        disconnects = registry.counter("client.connection.disconnects");
+        connectionsLost = registry.counter("client.connection.lost");
+        reconnects = registry.counter("client.connection.reconnects");
+        probes = registry.counter("client.connection.probes");
+        compressedSent = registry.counter("client.compression.sent.messages");
+        compressionSavedSent = registry.counter("client.compression.sent.saved");
+        compressionExpandedSent = registry.counter("client.compression.sent.expanded");
+        compressedReceived = registry.counter("client.compression.received.messages");
+        compressionSavedReceived = registry.counter("client.compression.received.saved");
+        compressionExpandedReceived = registry.counter("client.compression.received.expanded");
+    }
+
+    /**
+     * @return The registry holding these metrics
+     */
+    MetricsRegistry registry() {
+        return registry;
+    }
+
+    void commandReceived(ChatCommand command) {
+        commandsReceived[command.ordinal()].increment();
+    }
+
+    void commandSent(ChatCommand command) {
+        commandsSent[command.ordinal()].increment();
+    }
+}
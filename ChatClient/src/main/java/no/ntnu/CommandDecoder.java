@@ -0,0 +1,345 @@
+package no.ntnu;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits the bytes received from the chat server into commands. The bytes are collected in one reusable buffer,
+ * the command word of each line is recognized directly in the buffer, and the rest of the line (the payload) is
+ * decoded to a String only when someone asks for it. Receiving a command therefore allocates nothing unless
+ * its contents are actually used.
+ * <p>
+ * The decoder starts with text framing, one command per line. After {@link #setFraming(Framing)} with BINARY it
+ * reads length-prefixed frames instead: the length tells in advance how big the frame is, so the buffer grows at
+ * most once per frame and the bytes of the frame are never scanned. A compressed frame is decompressed into a
+ * second reusable buffer.
+ * <p>
+ * Usage: call {@link #next()} until it returns false, then read more bytes with one of the readFrom() methods.
+ * The payload accessors refer to the last command returned by next() and are valid only until the next read.
+ * Not thread safe, each connection has its own decoder.
+ */
+class CommandDecoder {
+    private static final int INITIAL_CAPACITY = 8 * 1024;
+    // A line (or a frame, with its length) longer than this is treated as a protocol error
+    static final int MAX_LINE_LENGTH = 1024 * 1024;
+
+    // Received bytes are between readIndex and buffer.position()
+    private ByteBuffer buffer;
+    private int readIndex = 0;
+    // Where to continue searching for the next newline
+    private int scanIndex = 0;
+
+    // The current command: the line is [lineStart, lineEnd), the payload [payloadStart, lineEnd), in lineBytes
+    private ChatCommand command = ChatCommand.UNKNOWN;
+    private byte[] lineBytes;
+    private int lineStart = 0;
+    private int lineEnd = 0;
+    private int payloadStart = 0;
+
+    private Framing framing = Framing.TEXT;
+    // Size of the binary frame being received, with its length, 0 if not known yet
+    private int frameSize = 0;
+    // Decompresses the compressed frames, null until compression is agreed
+    private Compression.Decompressor decompressor = null;
+
+    CommandDecoder() {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity Initial size of the buffer in bytes. It grows when a line does not fit.
+     */
+    CommandDecoder(int initialCapacity) {
+        buffer = ByteBuffer.allocate(initialCapacity);
+        lineBytes = buffer.array();
+    }
+
+    /**
+     * Change the framing of the commands after the current one, for example when the server has accepted
+     * binary framing.
+     *
+     * @param framing The new framing
+     */
+    void setFraming(Framing framing) {
+        this.framing = framing;
+        scanIndex = readIndex;
+        frameSize = 0;
+    }
+
+    /**
+     * Accept compressed binary frames from now on. The decoder owns the decompressor from now on, see
+     * {@link #release()}.
+     *
+     * @param decompressor The decompressor of the connection
+     */
+    void setDecompressor(Compression.Decompressor decompressor) {
+        if (this.decompressor != null && this.decompressor != decompressor) {
+            this.decompressor.end();
+        }
+        this.decompressor = decompressor;
+    }
+
+    /**
+     * Release the native memory of the decompressor, when the connection is closed. Compressed frames are not
+     * accepted after this.
+     */
+    void release() {
+        setDecompressor(null);
+    }
+
+    /**
+     * @return The framing of the next command
+     */
+    Framing framing() {
+        return framing;
+    }
+
+    /**
+     * Read more bytes from a blocking stream. Blocks until at least one byte is available.
+     *
+     * @param in The stream to read from
+     * @return Number of bytes read, -1 at the end of the stream
+     * @throws IOException On read errors, or when a line does not fit in the maximum buffer size
+     */
+    int readFrom(InputStream in) throws IOException {
+        makeRoom();
+        int count = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        if (count > 0) {
+            buffer.position(buffer.position() + count);
+        }
+        return count;
+    }
+
+    /**
+     * Read more bytes from a (possibly non-blocking) channel.
+     *
+     * @param channel The channel to read from
+     * @return Number of bytes read (can be 0 for non-blocking channels), -1 at the end of the stream
+     * @throws IOException On read errors, or when a line does not fit in the maximum buffer size
+     */
+    int readFrom(ReadableByteChannel channel) throws IOException {
+        makeRoom();
+        return channel.read(buffer);
+    }
+
+    /**
+     * Find the next complete command among the received bytes.
+     *
+     * @return true when a command was found, false when more bytes must be read first
+     * @throws IOException When a binary frame has an invalid length
+     */
+    boolean next() throws IOException {
+        if (framing == Framing.BINARY) {
+            return nextFrame();
+        }
+        byte[] bytes = buffer.array();
+        int end = buffer.position();
+        int newline = -1;
+        for (int i = scanIndex; i < end; i++) {
+            if (bytes[i] == '\n') {
+                newline = i;
+                break;
+            }
+        }
+        if (newline < 0) {
+            scanIndex = end;
+            return false;
+        }
+
+        int start = readIndex;
+        readIndex = newline + 1;
+        scanIndex = readIndex;
+        lineBytes = bytes;
+        parseLine(start, newline > start && bytes[newline - 1] == '\r' ? newline - 1 : newline);
+        return true;
+    }
+
+    /**
+     * Find the next complete binary frame among the received bytes.
+     */
+    private boolean nextFrame() throws IOException {
+        byte[] bytes = buffer.array();
+        int end = buffer.position();
+        int length = 0;
+        int i = readIndex;
+        for (int shift = 0; ; shift += 7) {
+            if (i == end) {
+                return false;
+            }
+            if (shift > 28) {
+                throw new IOException("Invalid frame length");
+            }
+            byte b = bytes[i++];
+            length |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        if (length < 1 || length > MAX_LINE_LENGTH - (i - readIndex)) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        if (end - i < length) {
+            // Make room for the whole frame at the next read
+            frameSize = i - readIndex + length;
+            return false;
+        }
+        frameSize = 0;
+        readIndex = i + length;
+        scanIndex = readIndex;
+        int opcode = bytes[i] & 0xff;
+        int frameStart = i + 1;
+        int frameEnd = readIndex;
+        lineBytes = bytes;
+        if ((opcode & Compression.FLAG) != 0) {
+            if (decompressor == null) {
+                throw new IOException("Compressed frame received, but compression was not agreed");
+            }
+            frameEnd = decompressor.decompress(bytes, frameStart, frameEnd - frameStart);
+            frameStart = 0;
+            lineBytes = decompressor.output();
+            opcode &= ~Compression.FLAG;
+        }
+        ChatCommand opcodeCommand = ChatCommand.ofOpcode(opcode);
+        if (opcodeCommand == ChatCommand.UNKNOWN) {
+            // The payload is a whole command line
+            parseLine(frameStart, frameEnd);
+        } else {
+            command = opcodeCommand;
+            lineStart = frameStart;
+            lineEnd = frameEnd;
+            payloadStart = frameStart;
+        }
+        return true;
+    }
+
+    /**
+     * Make the line [start, end) the current command.
+     */
+    private void parseLine(int start, int end) {
+        byte[] bytes = lineBytes;
+        lineStart = start;
+        lineEnd = end;
+        int wordEnd = lineStart;
+        while (wordEnd < lineEnd && bytes[wordEnd] != ' ') {
+            wordEnd++;
+        }
+        command = ChatCommand.match(bytes, lineStart, wordEnd - lineStart);
+        payloadStart = wordEnd < lineEnd ? wordEnd + 1 : lineEnd;
+    }
+
+    /**
+     * @return The command word of the current command, UNKNOWN if it is not a known command
+     */
+    ChatCommand command() {
+        return command;
+    }
+
+    /**
+     * @return true if the current line is empty. A binary frame with an opcode is never empty.
+     */
+    boolean isEmptyLine() {
+        return command == ChatCommand.UNKNOWN && lineEnd == lineStart;
+    }
+
+    /**
+     * @return Everything after the command word, "" if there is nothing
+     */
+    String payload() {
+        return decode(payloadStart, lineEnd);
+    }
+
+    /**
+     * @return The first space-separated word of the payload (for example the sender of a message)
+     */
+    String argument() {
+        return decode(payloadStart, argumentEnd());
+    }
+
+    /**
+     * @return The payload after the first word (for example the text of a message), "" if there is nothing
+     */
+    String textAfterArgument() {
+        int argumentEnd = argumentEnd();
+        return decode(argumentEnd < lineEnd ? argumentEnd + 1 : lineEnd, lineEnd);
+    }
+
+    /**
+     * @return All the space-separated words of the payload (for example a user list)
+     */
+    String[] payloadWords() {
+        byte[] bytes = lineBytes;
+        int count = 0;
+        for (int i = payloadStart; i < lineEnd; i++) {
+            if (bytes[i] != ' ' && (i == payloadStart || bytes[i - 1] == ' ')) {
+                count++;
+            }
+        }
+        String[] words = new String[count];
+        int wordStart = -1;
+        int w = 0;
+        for (int i = payloadStart; i <= lineEnd; i++) {
+            boolean separator = i == lineEnd || bytes[i] == ' ';
+            if (separator && wordStart >= 0) {
+                words[w++] = decode(wordStart, i);
+                wordStart = -1;
+            } else if (!separator && wordStart < 0) {
+                wordStart = i;
+            }
+        }
+        return words;
+    }
+
+    /**
+     * @return Index of the first space after the payload start, or the line end
+     */
+    private int argumentEnd() {
+        byte[] bytes = lineBytes;
+        int i = payloadStart;
+        while (i < lineEnd && bytes[i] != ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    private String decode(int start, int end) {
+        return start < end ? new String(lineBytes, start, end - start, StandardCharsets.UTF_8) : "";
+    }
+
+    /**
+     * Make sure there is free space at the end of the buffer: move the unprocessed bytes to the start, grow the
+     * buffer if it is full of one unfinished line, or too small for the binary frame being received.
+     */
+    private void makeRoom() throws IOException {
+        if (readIndex > 0 && readIndex == buffer.position()) {
+            // Everything processed, start from the beginning again
+            buffer.clear();
+            readIndex = 0;
+            scanIndex = 0;
+        }
+        int unprocessed = buffer.position() - readIndex;
+        // An unfinished line needs at least one more byte, a frame needs its whole size
+        int needed = Math.max(unprocessed + 1, frameSize);
+        if (readIndex + needed <= buffer.capacity()) {
+            return;
+        }
+        if (needed <= buffer.capacity()) {
+            byte[] bytes = buffer.array();
+            System.arraycopy(bytes, readIndex, bytes, 0, unprocessed);
+            scanIndex -= readIndex;
+            readIndex = 0;
+            buffer.position(unprocessed);
+        } else {
+            if (needed > MAX_LINE_LENGTH) {
+                throw new IOException("Incoming line longer than " + MAX_LINE_LENGTH + " bytes");
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(Math.min(Math.max(buffer.capacity() * 2, needed), MAX_LINE_LENGTH));
+            bigger.put(buffer.array(), readIndex, unprocessed);
+            scanIndex -= readIndex;
+            readIndex = 0;
+            buffer = bigger;
+        }
+    }
+}
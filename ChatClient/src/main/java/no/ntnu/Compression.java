@@ -0,0 +1,224 @@
+package no.ntnu;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-message compression, an extension of binary framing (see {@link Framing}). The client asks for it with
+ * {@link #REQUEST} once binary framing is agreed; a server which supports it answers {@link #ACCEPTED}. From then
+ * on either side may send a frame with a compressed payload, marked by {@link #FLAG} in the opcode byte.
+ * <p>
+ * Each direction of a connection is one deflate stream: the sender keeps one Deflater and the receiver one
+ * Inflater for the whole connection, so repeated words and whole repeated lines of earlier messages compress
+ * to a few bytes. Each compressed payload is the deflate output of one message up to a sync flush, without
+ * the 4 bytes (00 00 ff ff) every sync flush ends with, like permessage-deflate of WebSocket (RFC 7692).
+ * Only payloads of at least the threshold size are compressed: short messages are sent as they are, without
+ * the extra work, and they do not pass through the deflate stream at all.
+ */
+final class Compression {
+    // Sent by the client to ask for compression
+    static final String REQUEST = "compression deflate";
+    // The server's answer when it accepts compression
+    static final String ACCEPTED = "compressionok deflate";
+    // Set in the opcode byte of a frame with a compressed payload
+    static final int FLAG = 0x80;
+    // Smaller payloads are not compressed by default
+    static final int DEFAULT_THRESHOLD = 256;
+
+    // Ends the output of every sync flush, not sent
+    private static final byte[] SYNC_TAIL = {0, 0, (byte) 0xff, (byte) 0xff};
+
+    private Compression() {
+    }
+
+    /**
+     * Count one compressed message. A payload which does not compress comes out a few bytes longer, it still
+     * has to be sent (the stream is shared), and is counted as expanded, not as a negative saving.
+     *
+     * @param saved Bytes saved by compressing the message, negative if it grew
+     */
+    private static void count(LongAdder messages, LongAdder bytesSaved, LongAdder bytesExpanded, int saved) {
+        if (messages != null) {
+            messages.increment();
+        }
+        if (saved >= 0) {
+            if (bytesSaved != null) {
+                bytesSaved.add(saved);
+            }
+        } else if (bytesExpanded != null) {
+            bytesExpanded.add(-saved);
+        }
+    }
+
+    /**
+     * The sending side of a connection. Not thread safe, used by the one thread writing to the connection.
+     */
+    static final class Compressor {
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        private final int threshold;
+        private final LongAdder messages;
+        private final LongAdder bytesSaved;
+        private final LongAdder bytesExpanded;
+        private byte[] output = new byte[1024];
+
+        /**
+         * @param threshold  Smallest payload to compress, in bytes
+         * @param messages   Counts the compressed messages, or null
+         * @param bytesSaved Counts the bytes saved by compression, or null
+         */
+        Compressor(int threshold, LongAdder messages, LongAdder bytesSaved) {
+            this(threshold, messages, bytesSaved, null);
+        }
+
+        /**
+         * @param threshold     Smallest payload to compress, in bytes
+         * @param messages      Counts the compressed messages, or null
+         * @param bytesSaved    Counts the bytes saved by compression, or null
+         * @param bytesExpanded Counts the bytes added by compressing payloads which do not compress (random
+         *                      data), or null
+         */
+        Compressor(int threshold, LongAdder messages, LongAdder bytesSaved, LongAdder bytesExpanded) {
+            this.threshold = Math.max(threshold, 1);
+            this.messages = messages;
+            this.bytesSaved = bytesSaved;
+            this.bytesExpanded = bytesExpanded;
+        }
+
+        /**
+         * @param length Size of a payload
+         * @return true if a payload of this size is to be compressed
+         */
+        boolean shouldCompress(int length) {
+            return length >= threshold;
+        }
+
+        /**
+         * Compress a payload. The result must be sent: the receiver needs every compressed payload, in order,
+         * to decompress the next ones.
+         *
+         * @return Size of the compressed payload, which is at the start of {@link #output()}
+         */
+        int compress(byte[] bytes, int offset, int length) {
+            deflater.setInput(bytes, offset, length);
+            int size = 0;
+            int count;
+            do {
+                if (output.length - size < SYNC_TAIL.length + 8) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                count = deflater.deflate(output, size, output.length - size, Deflater.SYNC_FLUSH);
+                size += count;
+                // Filling the whole space means that there may be more output
+            } while (size == output.length);
+            size -= SYNC_TAIL.length;
+            count(messages, bytesSaved, bytesExpanded, length - size);
+            return size;
+        }
+
+        /**
+         * @return The buffer holding the last compressed payload, valid until the next compress()
+         */
+        byte[] output() {
+            return output;
+        }
+
+        /**
+         * Release the native memory of the compressor. It can not be used after this.
+         */
+        void end() {
+            deflater.end();
+        }
+    }
+
+    /**
+     * The receiving side of a connection. Not thread safe, used by the one thread reading the connection.
+     */
+    static final class Decompressor {
+        private final Inflater inflater = new Inflater(true);
+        private final int maxLength;
+        private final LongAdder messages;
+        private final LongAdder bytesSaved;
+        private final LongAdder bytesExpanded;
+        private byte[] input = new byte[1024];
+        private byte[] output = new byte[4096];
+
+        /**
+         * @param maxLength  A payload longer than this after decompression is treated as a protocol error
+         * @param messages   Counts the decompressed messages, or null
+         * @param bytesSaved Counts the bytes saved by compression, or null
+         */
+        Decompressor(int maxLength, LongAdder messages, LongAdder bytesSaved) {
+            this(maxLength, messages, bytesSaved, null);
+        }
+
+        /**
+         * @param maxLength     A payload longer than this after decompression is treated as a protocol error
+         * @param messages      Counts the decompressed messages, or null
+         * @param bytesSaved    Counts the bytes saved by compression, or null
+         * @param bytesExpanded Counts the bytes the sender added by compressing payloads which do not compress,
+         *                      or null
+         */
+        Decompressor(int maxLength, LongAdder messages, LongAdder bytesSaved, LongAdder bytesExpanded) {
+            this.maxLength = maxLength;
+            this.messages = messages;
+            this.bytesSaved = bytesSaved;
+            this.bytesExpanded = bytesExpanded;
+        }
+
+        /**
+         * Decompress a payload.
+         *
+         * @return Size of the decompressed payload, which is at the start of {@link #output()}
+         * @throws IOException When the payload is not valid, or too long
+         */
+        int decompress(byte[] bytes, int offset, int length) throws IOException {
+            if (input.length < length + SYNC_TAIL.length) {
+                input = new byte[Math.max(input.length * 2, length + SYNC_TAIL.length)];
+            }
+            System.arraycopy(bytes, offset, input, 0, length);
+            System.arraycopy(SYNC_TAIL, 0, input, length, SYNC_TAIL.length);
+            inflater.setInput(input, 0, length + SYNC_TAIL.length);
+            int size = 0;
+            try {
+                while (true) {
+                    if (size == output.length) {
+                        if (size >= maxLength) {
+                            throw new IOException("Decompressed payload longer than " + maxLength + " bytes");
+                        }
+                        output = Arrays.copyOf(output, Math.min(output.length * 2, maxLength));
+                    }
+                    int count = inflater.inflate(output, size, output.length - size);
+                    size += count;
+                    if (count == 0 && size < output.length) {
+                        if (inflater.needsInput()) {
+                            break;
+                        }
+                        throw new IOException("Invalid compressed payload");
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Invalid compressed payload", e);
+            }
+            count(messages, bytesSaved, bytesExpanded, size - length);
+            return size;
+        }
+
+        /**
+         * @return The buffer holding the last decompressed payload, valid until the next decompress()
+         */
+        byte[] output() {
+            return output;
+        }
+
+        /**
+         * Release the native memory of the decompressor. It can not be used after this.
+         */
+        void end() {
+            inflater.end();
+        }
+    }
+}
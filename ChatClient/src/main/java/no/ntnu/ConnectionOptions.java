@@ -0,0 +1,274 @@
+package no.ntnu;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Socket settings of a TCPClient connection, applied in {@link TCPClient#connect(String, int)} and when
+ * reconnecting. Immutable; create one with {@link #builder()}, or start from a preset:
+ * <ul>
+ * <li>{@link #lowLatencyInteractive()}: a person chatting. Every command is sent right away, with Nagle's
+ * algorithm off, and a dead connection is noticed within a minute.</li>
+ * <li>{@link #bulkBot()}: a bot sending many commands. Commands are batched and the socket buffers are big, to
+ * get the most commands through per system call and per TCP segment.</li>
+ * </ul>
+ * Nagle's algorithm is off in all the presets and by default: the client batches its commands itself, and
+ * Nagle's algorithm would only hold back the last partial batch until the server acknowledges the previous
+ * one, which the server may delay by up to 40 ms (delayed ACK).
+ * <p>
+ * The read timeout is not an error by itself: when nothing has been received for that long, the client sends
+ * a "users" request to check that the server is still there. If the timeout passes again without anything
+ * received, the connection is considered dead (and reconnected, if the client has a reconnect policy).
+ */
+public final class ConnectionOptions {
+    // No timeout
+    public static final int INFINITE = 0;
+    // Let the operating system decide the socket buffer size
+    public static final int SYSTEM_DEFAULT = 0;
+
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final boolean tcpNoDelay;
+    private final int sendBufferSize;
+    private final int receiveBufferSize;
+    private final boolean keepAlive;
+    private final boolean lowLatency;
+
+    private ConnectionOptions(Builder builder) {
+        this.connectTimeoutMillis = builder.connectTimeoutMillis;
+        this.readTimeoutMillis = builder.readTimeoutMillis;
+        this.tcpNoDelay = builder.tcpNoDelay;
+        this.sendBufferSize = builder.sendBufferSize;
+        this.receiveBufferSize = builder.receiveBufferSize;
+        this.keepAlive = builder.keepAlive;
+        this.lowLatency = builder.lowLatency;
+    }
+
+    /**
+     * @return A builder starting from the default options, see {@link #defaults()}
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return Connect timeout of 10 seconds, read timeout of 60 seconds, keep-alive on, Nagle's algorithm off,
+     * batching on, the system's socket buffer sizes
+     */
+    public static ConnectionOptions defaults() {
+        return builder().build();
+    }
+
+    /**
+     * @return Options for an interactive client: no batching, connect timeout of 5 seconds and read timeout of
+     * 30 seconds
+     */
+    public static ConnectionOptions lowLatencyInteractive() {
+        return builder()
+                .connectTimeoutMillis(5000)
+                .readTimeoutMillis(30000)
+                .tcpNoDelay(true)
+                .lowLatency(true)
+                .build();
+    }
+
+    /**
+     * @return Options for a bot sending many commands: batching, 256 KiB socket buffers, connect timeout of 30
+     * seconds and read timeout of 2 minutes
+     */
+    public static ConnectionOptions bulkBot() {
+        return builder()
+                .connectTimeoutMillis(30000)
+                .readTimeoutMillis(120000)
+                .tcpNoDelay(true)
+                .lowLatency(false)
+                .sendBufferSize(256 * 1024)
+                .receiveBufferSize(256 * 1024)
+                .build();
+    }
+
+    /**
+     * @return A builder starting from these options
+     */
+    public Builder toBuilder() {
+        return new Builder()
+                .connectTimeoutMillis(connectTimeoutMillis)
+                .readTimeoutMillis(readTimeoutMillis)
+                .tcpNoDelay(tcpNoDelay)
+                .sendBufferSize(sendBufferSize)
+                .receiveBufferSize(receiveBufferSize)
+                .keepAlive(keepAlive)
+                .lowLatency(lowLatency);
+    }
+
+    /**
+     * @return How long to wait for the connection to be established, in milliseconds, INFINITE for no limit
+     */
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    /**
+     * @return How long to wait for incoming data before checking the connection, in milliseconds, INFINITE to
+     * wait forever
+     */
+    public int getReadTimeoutMillis() {
+        return readTimeoutMillis;
+    }
+
+    /**
+     * @return true if Nagle's algorithm is off (TCP_NODELAY)
+     */
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * @return Socket send buffer size (SO_SNDBUF) in bytes, SYSTEM_DEFAULT to not change it
+     */
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    /**
+     * @return Socket receive buffer size (SO_RCVBUF) in bytes, SYSTEM_DEFAULT to not change it
+     */
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * @return true if TCP keep-alive is on (SO_KEEPALIVE)
+     */
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * @return true if every command is sent immediately instead of batching, see
+     * {@link TCPClient#setLowLatency(boolean)}
+     */
+    public boolean isLowLatency() {
+        return lowLatency;
+    }
+
+    /**
+     * Apply the socket options to a socket which is not connected yet. The buffer sizes must be set before
+     * connecting, since the TCP window scale is agreed when the connection is established.
+     *
+     * @param socket The socket
+     * @throws IOException When an option can not be set
+     */
+    void applyTo(Socket socket) throws IOException {
+        socket.setTcpNoDelay(tcpNoDelay);
+        socket.setKeepAlive(keepAlive);
+        socket.setSoTimeout(readTimeoutMillis);
+        if (sendBufferSize != SYSTEM_DEFAULT) {
+            socket.setSendBufferSize(sendBufferSize);
+        }
+        if (receiveBufferSize != SYSTEM_DEFAULT) {
+            socket.setReceiveBufferSize(receiveBufferSize);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionOptions{connectTimeout=" + connectTimeoutMillis + "ms, readTimeout=" + readTimeoutMillis
+                + "ms, tcpNoDelay=" + tcpNoDelay + ", sendBuffer=" + sendBufferSize + ", receiveBuffer="
+                + receiveBufferSize + ", keepAlive=" + keepAlive + ", lowLatency=" + lowLatency + "}";
+    }
+
+    /**
+     * Builds ConnectionOptions. Starts from the defaults, see {@link ConnectionOptions#defaults()}.
+     */
+    public static final class Builder {
+        private int connectTimeoutMillis = 10000;
+        private int readTimeoutMillis = 60000;
+        private boolean tcpNoDelay = true;
+        private int sendBufferSize = SYSTEM_DEFAULT;
+        private int receiveBufferSize = SYSTEM_DEFAULT;
+        private boolean keepAlive = true;
+        private boolean lowLatency = false;
+
+        private Builder() {
+        }
+
+        /**
+         * @param millis How long to wait for the connection to be established, INFINITE for no limit
+         * @return This builder
+         */
+        public Builder connectTimeoutMillis(int millis) {
+            this.connectTimeoutMillis = checkNotNegative(millis, "Connect timeout");
+            return this;
+        }
+
+        /**
+         * @param millis How long to wait for incoming data before checking the connection, INFINITE to wait
+         *               forever
+         * @return This builder
+         */
+        public Builder readTimeoutMillis(int millis) {
+            this.readTimeoutMillis = checkNotNegative(millis, "Read timeout");
+            return this;
+        }
+
+        /**
+         * @param tcpNoDelay True to turn Nagle's algorithm off
+         * @return This builder
+         */
+        public Builder tcpNoDelay(boolean tcpNoDelay) {
+            this.tcpNoDelay = tcpNoDelay;
+            return this;
+        }
+
+        /**
+         * @param bytes Socket send buffer size, SYSTEM_DEFAULT to not change it
+         * @return This builder
+         */
+        public Builder sendBufferSize(int bytes) {
+            this.sendBufferSize = checkNotNegative(bytes, "Send buffer size");
+            return this;
+        }
+
+        /**
+         * @param bytes Socket receive buffer size, SYSTEM_DEFAULT to not change it
+         * @return This builder
+         */
+        public Builder receiveBufferSize(int bytes) {
+            this.receiveBufferSize = checkNotNegative(bytes, "Receive buffer size");
+            return this;
+        }
+
+        /**
+         * @param keepAlive True to turn TCP keep-alive on
+         * @return This builder
+         */
+        public Builder keepAlive(boolean keepAlive) {
+            this.keepAlive = keepAlive;
+            return this;
+        }
+
+        /**
+         * @param lowLatency True to send every command immediately instead of batching
+         * @return This builder
+         */
+        public Builder lowLatency(boolean lowLatency) {
+            this.lowLatency = lowLatency;
+            return this;
+        }
+
+        /**
+         * @return The options
+         */
+        public ConnectionOptions build() {
+            return new ConnectionOptions(this);
+        }
+
+        private static int checkNotNegative(int value, String what) {
+            if (value < 0) {
+                throw new IllegalArgumentException(what + " can not be negative");
+            }
+            return value;
+        }
+    }
+}
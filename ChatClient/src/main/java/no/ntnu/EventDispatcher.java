@@ -0,0 +1,199 @@
+package no.ntnu;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Delivers events from the socket reader to the listeners on a separate background task. The reader only puts
+ * the event in a bounded queue, so a slow listener does not stop reading from the socket (unless the queue is
+ * full and the overflow policy is BLOCK). For every listener, the lag between receiving an event and the listener
+ * finishing with it is measured.
+ */
+class EventDispatcher implements Runnable {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final ArrayDeque<ChatEvent> queue = new ArrayDeque<>();
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final ListenerRegistry listeners;
+    // Time to deliver each event to all the listeners, null for no measuring
+    private final LatencyHistogram dispatchTime;
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    // The following fields are guarded by lock
+    // Queued events which newer events of the same kind can be merged into (COALESCE policy only)
+    private final Map<ChatEvent.Kind, ChatEvent> coalescible = new EnumMap<>(ChatEvent.Kind.class);
+    private boolean running = false;
+    private boolean stopRequested = false;
+
+    /**
+     * @param capacity  Maximum number of events waiting in the queue
+     * @param policy    What to do when the queue is full
+     * @param listeners The listeners to deliver the events to
+     */
+    EventDispatcher(int capacity, OverflowPolicy policy, ListenerRegistry listeners) {
+        this(capacity, policy, listeners, null);
+    }
+
+    /**
+     * @param capacity     Maximum number of events waiting in the queue
+     * @param policy       What to do when the queue is full
+     * @param listeners    The listeners to deliver the events to
+     * @param dispatchTime Records the time to deliver each event to all the listeners, or null
+     */
+    EventDispatcher(int capacity, OverflowPolicy policy, ListenerRegistry listeners, LatencyHistogram dispatchTime) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.listeners = listeners;
+        this.dispatchTime = dispatchTime;
+    }
+
+    /**
+     * Start the dispatching task, unless it is already running.
+     *
+     * @param executor Executor to run the task on
+     */
+    void start(Executor executor) {
+        lock.lock();
+        try {
+            stopRequested = false;
+            if (running) {
+                return;
+            }
+            running = true;
+        } finally {
+            lock.unlock();
+        }
+        executor.execute(this);
+    }
+
+    /**
+     * Stop the dispatching task once all the queued events have been delivered.
+     */
+    void stop() {
+        lock.lock();
+        try {
+            stopRequested = true;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Put an event in the queue. Depending on the overflow policy, this may block while the queue is full.
+     * Connection state changes never wait: they are added beyond the capacity, see
+     * {@link ChatEvent.Kind#isLifecycle()}.
+     *
+     * @param event The event to deliver
+     */
+    void post(ChatEvent event) {
+        lock.lock();
+        try {
+            if (policy == OverflowPolicy.COALESCE && event.kind().isCoalescible()) {
+                ChatEvent queued = coalescible.get(event.kind());
+                if (queued != null) {
+                    queued.coalesce(event);
+                    coalescedCount.incrementAndGet();
+                    return;
+                }
+            }
+            while (queue.size() >= capacity && !event.kind().isLifecycle()) {
+                if (policy == OverflowPolicy.DROP_OLDEST) {
+                    ChatEvent dropped = queue.poll();
+                    coalescible.remove(dropped.kind(), dropped);
+                    droppedCount.incrementAndGet();
+                } else {
+                    notFull.awaitUninterruptibly();
+                }
+            }
+            queue.add(event);
+            if (policy == OverflowPolicy.COALESCE && event.kind().isCoalescible()) {
+                coalescible.put(event.kind(), event);
+            }
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The dispatching loop: take events from the queue and deliver them to all the listeners.
+     */
+    @Override
+    public void run() {
+        ChatEvent event;
+        while ((event = take()) != null) {
+            if (dispatchTime != null) {
+                long start = System.nanoTime();
+                deliver(event, listeners);
+                dispatchTime.record(System.nanoTime() - start);
+            } else {
+                deliver(event, listeners);
+            }
+        }
+    }
+
+    /**
+     * Deliver an event to all the listeners, in the calling thread.
+     *
+     * @param event     The event
+     * @param listeners The listeners to notify
+     */
+    static void deliver(ChatEvent event, ListenerRegistry listeners) {
+        for (ListenerRegistry.Entry entry : listeners.entries()) {
+            try {
+                event.deliver(entry.listener);
+            } catch (RuntimeException e) {
+                // A broken listener must not stop the delivery to the others
+                e.printStackTrace();
+            }
+            entry.lag.record(System.nanoTime() - event.receivedAt());
+        }
+    }
+
+    /**
+     * Wait for the next event.
+     *
+     * @return The event, or null when the dispatcher is stopped and the queue is empty
+     */
+    private ChatEvent take() {
+        lock.lock();
+        try {
+            while (queue.isEmpty()) {
+                if (stopRequested) {
+                    running = false;
+                    return null;
+                }
+                notEmpty.awaitUninterruptibly();
+            }
+            ChatEvent event = queue.poll();
+            coalescible.remove(event.kind(), event);
+            notFull.signal();
+            return event;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Number of events thrown away because the queue was full (DROP_OLDEST policy)
+     */
+    long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return Number of events merged into an older queued event (COALESCE policy)
+     */
+    long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+}
@@ -0,0 +1,169 @@
+package no.ntnu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * How commands are delimited on the wire. Every connection starts with TEXT framing: one command per line.
+ * The client can ask for BINARY framing by sending {@link #REQUEST}; a server which supports it answers
+ * {@link #ACCEPTED} (still as a text line) and both sides use binary frames for everything after it. Any other
+ * answer (a cmderror from a server which does not know the command) means that the connection stays in text.
+ * <p>
+ * A binary frame is the frame length as a varint (7 bits per byte, least significant group first, the high bit
+ * set on all but the last byte), followed by that many bytes: a one-byte opcode (see {@link ChatCommand#opcode()})
+ * and the UTF-8 payload, which is the command line without the command word and the space after it. Opcode 0
+ * means that the payload is the whole command line, for command words without an opcode. Since the length comes
+ * first, the receiver can read a whole frame without scanning it, and the payload can contain newlines.
+ * Binary frames can also carry compressed payloads, see {@link Compression}.
+ */
+enum Framing {
+    TEXT,
+    BINARY;
+
+    // Sent by the client to ask for binary framing
+    static final String REQUEST = "framing binary";
+    // The server's answer when it switches to binary framing
+    static final String ACCEPTED = "framingok binary";
+    // The longest varint of a frame length
+    static final int MAX_HEADER_BYTES = 5;
+
+    /**
+     * Encode a command line.
+     *
+     * @param line The command line, without the newline
+     * @return The bytes to send
+     */
+    byte[] encode(String line) {
+        return encode(line, null);
+    }
+
+    /**
+     * Encode a command line, compressing the payload of a binary frame if it is long enough.
+     *
+     * @param line       The command line, without the newline
+     * @param compressor The compressor of the connection, null for no compression
+     * @return The bytes to send
+     */
+    byte[] encode(String line, Compression.Compressor compressor) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length + MAX_HEADER_BYTES + 1);
+        try {
+            write(out, bytes, compressor);
+        } catch (IOException e) {
+            // Not thrown by a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Write a command line to a stream.
+     *
+     * @param out  The stream, should be buffered
+     * @param line The command line in UTF-8, without the newline
+     * @return Number of bytes written
+     * @throws IOException When writing fails
+     */
+    int write(OutputStream out, byte[] line) throws IOException {
+        return write(out, line, null);
+    }
+
+    /**
+     * Write a command line to a stream, compressing the payload of a binary frame if it is long enough.
+     *
+     * @param out        The stream, should be buffered
+     * @param line       The command line in UTF-8, without the newline
+     * @param compressor The compressor of the connection, null for no compression
+     * @return Number of bytes written
+     * @throws IOException When writing fails
+     */
+    int write(OutputStream out, byte[] line, Compression.Compressor compressor) throws IOException {
+        if (this == TEXT) {
+            if (indexOfLineBreak(line) >= 0) {
+                byte[] copy = new byte[line.length];
+                copyLine(line, copy);
+                out.write(copy);
+            } else {
+                out.write(line);
+            }
+            out.write('\n');
+            return line.length + 1;
+        }
+        ChatCommand command = commandOf(line);
+        int opcode = command.opcode();
+        byte[] payload = line;
+        int payloadStart = payloadStart(line, command);
+        int payloadLength = line.length - payloadStart;
+        if (compressor != null && compressor.shouldCompress(payloadLength)) {
+            payloadLength = compressor.compress(line, payloadStart, payloadLength);
+            payload = compressor.output();
+            payloadStart = 0;
+            opcode |= Compression.FLAG;
+        }
+        byte[] header = new byte[MAX_HEADER_BYTES + 1];
+        int headerLength = putVarint(header, 1 + payloadLength);
+        header[headerLength++] = (byte) opcode;
+        out.write(header, 0, headerLength);
+        out.write(payload, payloadStart, payloadLength);
+        return headerLength + payloadLength;
+    }
+
+    /**
+     * Store a frame length as a varint at the start of an array.
+     *
+     * @return Number of bytes stored
+     */
+    private static int putVarint(byte[] bytes, int value) {
+        int i = 0;
+        while ((value & ~0x7f) != 0) {
+            bytes[i++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        bytes[i++] = (byte) value;
+        return i;
+    }
+
+    private static ChatCommand commandOf(byte[] line) {
+        return ChatCommand.match(line, 0, wordLength(line));
+    }
+
+    /**
+     * @return Where the payload starts when the command word is replaced by its opcode: after the word and
+     * the space, or 0 if the word has no opcode
+     */
+    private static int payloadStart(byte[] line, ChatCommand command) {
+        if (command == ChatCommand.UNKNOWN) {
+            return 0;
+        }
+        return Math.min(command.word().length() + 1, line.length);
+    }
+
+    private static int wordLength(byte[] line) {
+        int i = 0;
+        while (i < line.length && line[i] != ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    private static int indexOfLineBreak(byte[] line) {
+        for (int i = 0; i < line.length; i++) {
+            if (line[i] == '\n' || line[i] == '\r') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Copy a line for text framing: line breaks inside it would split the command, they are replaced by spaces.
+     */
+    private static void copyLine(byte[] line, byte[] target) {
+        for (int i = 0; i < line.length; i++) {
+            byte b = line[i];
+            target[i] = b == '\n' || b == '\r' ? (byte) ' ' : b;
+        }
+    }
+}
@@ -1,17 +1,19 @@
 package no.ntnu;
 
-import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.scene.control.*;
 import javafx.scene.input.KeyCode;
-import javafx.scene.layout.HBox;
-import javafx.scene.layout.Pane;
-import javafx.scene.layout.Priority;
 import javafx.scene.layout.VBox;
 
-import static java.lang.Thread.sleep;
-
-import javafx.collections.ObservableList;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import javax.management.JMException;
 
 /**
  * The graphical interface containing all the user interface controls: buttons, inputs, etc.
@@ -40,7 +42,7 @@ public class GUIController implements ChatListener {
     private VBox userList;
 
     @FXML
-    private VBox textOutput;
+    private ListView<TranscriptEntry> textOutput;
 
     @FXML
     private TextArea textInput;
@@ -57,28 +59,151 @@ public class GUIController implements ChatListener {
     @FXML
     private TitledPane serverStatus;
 
-    @FXML
-    private ScrollPane outputScroll;
+    // How many messages the chat window keeps. Older messages are removed TRANSCRIPT_TRIM_SIZE at a time.
+    private static final int MAX_TRANSCRIPT_SIZE = 5000;
+    private static final int TRANSCRIPT_TRIM_SIZE = 500;
+
+    // Applies the updates coming from background threads on the GUI thread, once per frame
+    private GuiUpdatePump guiUpdates;
+
+    // The users last reported by the server. Updated on the TCP client's event thread.
+    private final UserListModel userListModel = new UserListModel();
+    // The label shown for each user in the user list. Accessed on the GUI thread only.
+    private final Map<String, Label> userLabels = new HashMap<>();
+
+    // The last status shown in the server status pane, and the round-trip time shown after it. Accessed on
+    // the GUI thread only.
+    private String status = "";
+    private String roundTripSummary = "";
+    private final Tooltip roundTripDetails = new Tooltip();
 
     // The TCP client that can connect, send commands, etc.
     private TCPClient tcpClient;
 
-    // Active user list will be refreshed periodically. This will be done on a separate CPU Thread to avoid blocking
-    // the GUI.
-    private Thread userPollThread;
+    // Runs connecting and the TCP client's listening, so the GUI thread is never blocked. The kind of
+    // threads used is selected at launch, see ExecutionMode.
+    private final ExecutorService backgroundTasks = ExecutionMode.defaultExecutor();
+
+    // Where the received messages are kept between sessions, and how many of them are shown at start
+    private static final String HISTORY_DIRECTORY = ".ntnu-chat/history";
+    private static final int HISTORY_PRELOAD = 200;
+    // Most search results shown
+    private static final int MAX_SEARCH_RESULTS = 100;
+    private static final String SEARCH_COMMAND = "/search ";
+    // Shows the client metrics in the chat window
+    private static final String METRICS_COMMAND = "/metrics";
+    // JMX name of the client metrics
+    private static final String METRICS_MBEAN_NAME = "no.ntnu:type=ChatClient";
+
+    // The received messages, null when the history could not be opened
+    private MessageStore history;
+    // Stores the received messages in the history
+    private MessageRecorder historyRecorder;
+    // Search index of the history, null when there is no history
+    private MessageIndex historyIndex;
+
+    // How often the active user list is refreshed: every 2 seconds while users come and go, backing off to
+    // every 30 seconds while nothing changes
+    private static final long MIN_USER_POLL_MILLIS = 2000;
+    private static final long MAX_USER_POLL_MILLIS = 30000;
 
     /**
      * Called by the FXML loader after the labels declared above are injected:
      */
     public void initialize() {
-        tcpClient = new TCPClient();
+        tcpClient = new TCPClient(backgroundTasks);
+        // A person is typing: send every message immediately instead of batching, with Nagle's algorithm off
+        tcpClient.setConnectionOptions(ConnectionOptions.lowLatencyInteractive());
+        // Messages with several lines (Shift+Enter) are sent in one piece if the server supports binary framing
+        tcpClient.setBinaryFraming(true);
+        // Long messages, like pasted logs, are compressed if the server supports it
+        tcpClient.setCompression(true);
+        // When the connection is lost, reconnect and log in again automatically
+        tcpClient.setReconnectPolicy(ReconnectPolicy.defaultPolicy());
+        // Active user list will be refreshed by the TCP client, in the background
+        tcpClient.setPresenceStrategy(PresenceStrategy.adaptive(MIN_USER_POLL_MILLIS, MAX_USER_POLL_MILLIS));
+        try {
+            tcpClient.getMetrics().registerMBean(METRICS_MBEAN_NAME);
+        } catch (JMException e) {
+            System.out.println("Metrics not available over JMX: " + e.getMessage());
+        }
         hostInput.setText("datakomm.work");
         portInput.setText("1300");
-        textOutput.heightProperty().addListener((observable, oldValue, newValue)
-                -> outputScroll.setVvalue(1.0));
+        textOutput.setCellFactory(TranscriptCell::new);
+        guiUpdates = new GuiUpdatePump(textOutput, MAX_TRANSCRIPT_SIZE, TRANSCRIPT_TRIM_SIZE);
+        guiUpdates.start();
+        openHistory();
         setKeyAndClickListeners();
     }
 
+    /**
+     * Open the message history and show its latest messages. Without a history (for example when another
+     * chat client is using it), the client works as before, only nothing is kept.
+     */
+    private void openHistory() {
+        try {
+            history = new MappedMessageStore(Paths.get(System.getProperty("user.home"), HISTORY_DIRECTORY));
+            historyIndex = new MessageIndex(history);
+            historyRecorder = new MessageRecorder(history, historyIndex);
+            for (TextMessage message : history.tail(HISTORY_PRELOAD)) {
+                guiUpdates.postEntry(new TranscriptEntry(message, TranscriptEntry.Style.RECEIVED));
+            }
+            // Index the stored messages in the background, a large history takes a moment
+            backgroundTasks.execute(() -> {
+                try {
+                    historyIndex.update();
+                } catch (IOException e) {
+                    System.out.println("Could not index the message history: " + e.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            System.out.println("Message history not available: " + e.getMessage());
+            history = null;
+        }
+    }
+
+    /**
+     * Called by the application when it stops: disconnect, and close the message history so that its files are
+     * unmapped and unlocked for the next chat client.
+     */
+    public void stop() {
+        tcpClient.disconnect();
+        if (history != null) {
+            try {
+                history.close();
+            } catch (IOException e) {
+                System.out.println("Could not close the message history: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Search the message history and show the results in the chat window. The search runs in the background.
+     *
+     * @param queryText The query, for example "from:alice is:private meeting", see SearchQuery
+     */
+    private void searchHistory(String queryText) {
+        if (historyIndex == null) {
+            addMsgToGui(true, new TextMessage("err", false, "Error: the message history is not available"), true);
+            return;
+        }
+        SearchQuery query = SearchQuery.parse(queryText);
+        backgroundTasks.execute(() -> {
+            try {
+                long start = System.nanoTime();
+                List<TextMessage> results = historyIndex.search(query, MAX_SEARCH_RESULTS);
+                long millis = (System.nanoTime() - start) / 1000000;
+                addMsgToGui(true, new TextMessage("info", false, "Info: " + results.size() + " messages found for \""
+                        + query + "\" in " + millis + " ms"), true);
+                for (TextMessage message : results) {
+                    guiUpdates.postEntry(new TranscriptEntry(message, TranscriptEntry.Style.RECEIVED));
+                }
+            } catch (IOException e) {
+                addMsgToGui(true, new TextMessage("err", false, "Error: search failed: " + e.getMessage()), true);
+            }
+        });
+    }
+
     /**
      * Initialize handling for all GUI events: clicking on buttons, and key presses
      */
@@ -123,7 +248,16 @@ public class GUIController implements ChatListener {
      */
     private void inputSubmit() {
         String msgToSend = textInput.getText();
-        if (!msgToSend.isEmpty()) {
+        if (msgToSend.startsWith(SEARCH_COMMAND)) {
+            // Not sent to the server, searches the message history
+            searchHistory(msgToSend.substring(SEARCH_COMMAND.length()));
+            textInput.setText("");
+        } else if (msgToSend.trim().equals(METRICS_COMMAND)) {
+            // Not sent to the server either
+            addMsgToGui(true, new TextMessage("info", false, "Info: client metrics\n"
+                    + tcpClient.getMetrics().dump()), true);
+            textInput.setText("");
+        } else if (!msgToSend.isEmpty()) {
             TextMessage msg;
             if (tcpClient.isConnectionActive()) {
                 // Split the message in max 3 parts. If the first one is "/privmsg", then recipient is the second
@@ -146,7 +280,7 @@ public class GUIController implements ChatListener {
     }
 
     /**
-     * Add a message to the GUI chat window
+     * Add a message to the GUI chat window. Can be called from any thread, the message is shown in the next frame.
      *
      * @param local   When true, this message was sent by us. When false -
      *                received from another user
@@ -154,58 +288,64 @@ public class GUIController implements ChatListener {
      * @param warning When true, this message is a warning that must be displayed to the user
      */
     private void addMsgToGui(boolean local, TextMessage msg, boolean warning) {
-        // Create GUI elements, set their text and style according to what 
-        // type of message this is
-
-        HBox message = new HBox();
-        VBox messageContent = new VBox();
-        String senderText;
-        Label messageSender = new Label();
-        messageSender.getStyleClass().add("sender");
-        if (msg.isPrivate()) {
-            senderText = "Private from " + msg.getSender() + ":";
-            messageSender.getStyleClass().add("private");
-        } else {
-            senderText = msg.getSender() + ":";
-        }
-        messageSender.setText(senderText);
-        Label messageText = new Label(msg.getText());
-        ObservableList<String> textStyle = messageText.getStyleClass();
-        textStyle.add("message");
-        messageText.setWrapText(true);
-        Pane spacer = new Pane();
-        HBox.setHgrow(spacer, Priority.ALWAYS);
-        spacer.setMinSize(10, 1);
+        // Decide how the message is displayed according to what type of message this is. The GUI elements
+        // themselves are created (and reused) by the TranscriptCell.
+        TranscriptEntry.Style style;
         if (warning) {
             // This message is a warning/info, add specific style to it
-            messageContent.getChildren().addAll(messageText);
-            message.getChildren().addAll(messageContent);
             if (msg.getSender().equals("err")) {
-                textStyle.add("warning");
+                style = TranscriptEntry.Style.WARNING;
             } else {
-                textStyle.add("info");
+                style = TranscriptEntry.Style.INFO;
             }
-        } else {
-            // Regular message
-            if (local) {
-                if (tcpClient.isConnectionActive()) {
-                    textStyle.add("sentMessage");
-                } else {
-                    // Trying to send a message without an active connection
-                    serverStatus.setText("Please login to send messages to server");
-                    textStyle.add("failedMessage");
-                }
-                // Add empty space first (left), then the message (right)
-                messageContent.getChildren().addAll(messageText);
-                message.getChildren().addAll(spacer, messageContent);
+        } else if (local) {
+            if (tcpClient.isConnectionActive()) {
+                style = TranscriptEntry.Style.SENT;
             } else {
-                textStyle.add("otherMessage");
-                // Add message first (left), then empty space (right)
-                messageContent.getChildren().addAll(messageSender, messageText);
-                message.getChildren().addAll(messageContent, spacer);
+                // Trying to send a message without an active connection
+                guiUpdates.post(() -> showStatus("Please login to send messages to server"));
+                style = TranscriptEntry.Style.FAILED;
+            }
+        } else {
+            style = TranscriptEntry.Style.RECEIVED;
+        }
+        guiUpdates.postEntry(new TranscriptEntry(msg, style));
+    }
+
+    /**
+     * Show a status in the server status pane, followed by the latest round-trip time. Must be called on the
+     * GUI thread.
+     *
+     * @param text The status
+     */
+    private void showStatus(String text) {
+        status = text;
+        serverStatus.setText(status + roundTripSummary);
+    }
+
+    /**
+     * Show the latest round-trip time of the user list requests (sent regularly, so it follows the server's
+     * responsiveness) after the status, and the percentiles of all the commands in the tooltip. Can be called
+     * from any thread.
+     */
+    private void showRoundTripTimes() {
+        long lastNanos = tcpClient.getLastRoundTripNanos("users");
+        String summary = lastNanos > 0 ? String.format(" - RTT %.1f ms", lastNanos / 1e6) : "";
+        StringBuilder details = new StringBuilder("Round-trip times (p50 / p99 / max):");
+        for (String command : new String[]{"login", "users", "help"}) {
+            LatencyHistogram times = tcpClient.getRoundTripTimes(command);
+            if (times.getCount() > 0) {
+                details.append(String.format("%n%s: %.1f / %.1f / %.1f ms (%d replies)", command,
+                        times.getValueAtPercentile(50) / 1e6, times.getValueAtPercentile(99) / 1e6,
+                        times.getMax() / 1e6, times.getCount()));
             }
         }
-        textOutput.getChildren().add(message);
+        guiUpdates.post(() -> {
+            roundTripSummary = summary;
+            serverStatus.setText(status + roundTripSummary);
+            roundTripDetails.setText(details.toString());
+            serverStatus.setTooltip(roundTripDetails);
+        });
     }
 
     /**
@@ -216,22 +356,23 @@ public class GUIController implements ChatListener {
      * @param port Remote TCP port
      */
     private void setupConnection(String host, String port) {
-        serverStatus.setText("Trying to connect...");
+        showStatus("Trying to connect...");
         connectBtn.setText("Connecting...");
         connectBtn.setDisable(true);
 
-        // Run the connection in a new background thread to avoid GUI freeze
-        Thread connThread = new Thread(() -> {
+        // Run the connection in a background task to avoid GUI freeze
+        backgroundTasks.execute(() -> {
             boolean connected = tcpClient.connect(host, Integer.parseInt(port));
             if (connected) {
                 // Connection established, start listening processes
                 tcpClient.addListener(this);
+                if (historyRecorder != null) {
+                    tcpClient.addListener(historyRecorder);
+                }
                 tcpClient.startListenThread();
-                startUserPolling();
             }
             updateButtons(connected);
         });
-        connThread.start();
     }
 
     /**
@@ -242,19 +383,19 @@ public class GUIController implements ChatListener {
      *                  server. When false, connection failed
      */
     private void updateButtons(boolean connected) {
-        String status;
+        String statusText;
         String connBtnText;
         if (connected) {
-            status = "Connection to server established";
+            statusText = "Connection to server established";
             connBtnText = "Disconnect";
         } else {
-            status = "Not connected: " + tcpClient.getLastError();
+            statusText = "Not connected: " + tcpClient.getLastError();
             connBtnText = "Connect";
         }
         // Make sure this will be executed on GUI thread
-        Platform.runLater(() -> {
+        guiUpdates.post(() -> {
             // Update button texts
-            serverStatus.setText(status);
+            showStatus(statusText);
             connectBtn.setText(connBtnText);
             // Connection button was disabled while connection was in progress, 
             // now we enable it
@@ -274,42 +415,6 @@ public class GUIController implements ChatListener {
     // from the server.
     ///////////////////////////////////////////////////////////////////////
 
-    /**
-     * Start a new thread that will poll the server for currently active users
-     */
-    private void startUserPolling() {
-        // Make sure we have just one polling thread, not duplicates
-        if (userPollThread == null) {
-
-            userPollThread = new Thread(() -> {
-                ////////////////////////////////////////////////////////////////
-                // This block of code will run in the polling thread
-                ////////////////////////////////////////////////////////////////
-                long threadId = Thread.currentThread().getId();
-                System.out.println("Started user polling in Thread "
-                        + threadId);
-                while (tcpClient.isConnectionActive()) {
-                    // TcpClient will ask server to send the latest user list. The response from the server will
-                    // not be handled here! Here we only ask for update and go to sleep. Then repeat.
-                    tcpClient.refreshUserList();
-                    try {
-                        sleep(3000);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
-                }
-                System.out.println("User polling thread " + threadId + " exiting...");
-                // Make sure we start the thread again next time
-                userPollThread = null;
-                ////////////////////////////////////////////////////////////////
-                // EOF polling thread code
-                ////////////////////////////////////////////////////////////////
-            });
-
-            userPollThread.start();
-        }
-    }
-
     /**
      * This method is called (by the TcpClient) when a login procedure is done: either it succeeded
      * or failed.
@@ -321,15 +426,14 @@ public class GUIController implements ChatListener {
      */
     @Override
     public void onLoginResult(boolean success, String errMsg) {
-        // Update the GUI. Do it on the GUI thread with Platform.runLater()
-        Platform.runLater(() -> {
-            if (success) {
-                serverStatus.setText("Server - login successful");
-            } else {
-                serverStatus.setText("Server - login failed");
-                addMsgToGui(true, new TextMessage("err", false, errMsg), true);
-            }
-        });
+        // Update the GUI. Do it on the GUI thread, in the next frame
+        showRoundTripTimes();
+        if (success) {
+            guiUpdates.post(() -> showStatus("Server - login successful"));
+        } else {
+            guiUpdates.post(() -> showStatus("Server - login failed"));
+            addMsgToGui(true, new TextMessage("err", false, errMsg), true);
+        }
     }
 
     /**
@@ -339,8 +443,8 @@ public class GUIController implements ChatListener {
      */
     @Override
     public void onMessageReceived(TextMessage message) {
-        // Show the message in the GUI. Do it on the GUI thread.
-        Platform.runLater(() -> addMsgToGui(false, message, false));
+        // Show the message in the GUI. It is added on the GUI thread, together with the other messages of the frame.
+        addMsgToGui(false, message, false);
     }
 
     /**
@@ -351,9 +455,8 @@ public class GUIController implements ChatListener {
      */
     @Override
     public void onMessageError(String errMsg) {
-        // Show error message in the GUI. Do it on the GUI thread.
-        Platform.runLater(() -> addMsgToGui(true, new TextMessage("err", false,
-                "Error: " + errMsg), true));
+        // Show error message in the GUI
+        addMsgToGui(true, new TextMessage("err", false, "Error: " + errMsg), true);
     }
 
     /**
@@ -364,21 +467,49 @@ public class GUIController implements ChatListener {
      */
     @Override
     public void onUserList(String[] usernames) {
-        // Update the user list. Do it on the GUI thread.
-        Platform.runLater(() -> {
-            userList.getChildren().clear();
-            for (String user : usernames) {
-                Label text = new Label(user);
-                text.getStyleClass().add("user");
-                // Set an "on-click" listener for the item in the user list - allow to send a private message
-                text.setOnMouseClicked(event -> {
-                    textInput.setText("/privmsg " + user + " ");
-                    textInput.requestFocus();
-                    textInput.end();
-                });
-                userList.getChildren().add(text);
+        // The user list is requested regularly, its round-trip time shows how responsive the server is
+        showRoundTripTimes();
+        // Usually the list is the same as last time, then there is nothing to update
+        UserListModel.Diff diff = userListModel.update(usernames);
+        if (diff != null) {
+            // Update the user list. Do it on the GUI thread.
+            guiUpdates.post(() -> updateUserList(diff));
+        }
+    }
+
+    /**
+     * Remove the labels of the users who left, and add labels for the users who joined. Must be called on the
+     * GUI thread.
+     *
+     * @param diff Changes in the user list
+     */
+    private void updateUserList(UserListModel.Diff diff) {
+        if (!diff.getRemoved().isEmpty()) {
+            Set<Label> removedLabels = new HashSet<>();
+            for (String user : diff.getRemoved()) {
+                Label label = userLabels.remove(user);
+                if (label != null) {
+                    removedLabels.add(label);
+                }
             }
-        });
+            // One change for all the removed users (removeAll checks each child against the set)
+            userList.getChildren().removeAll(removedLabels);
+        }
+        Label[] addedLabels = new Label[diff.getAdded().size()];
+        int i = 0;
+        for (String user : diff.getAdded()) {
+            Label text = new Label(user);
+            text.getStyleClass().add("user");
+            // Set an "on-click" listener for the item in the user list - allow to send a private message
+            text.setOnMouseClicked(event -> {
+                textInput.setText("/privmsg " + user + " ");
+                textInput.requestFocus();
+                textInput.end();
+            });
+            userLabels.put(user, text);
+            addedLabels[i++] = text;
+        }
+        userList.getChildren().addAll(addedLabels);
     }
 
     /**
@@ -389,18 +520,16 @@ public class GUIController implements ChatListener {
      */
     @Override
     public void onSupportedCommands(String[] commands) {
-        // Show the commands in the GUI. Do it on the GUI thread.
-        Platform.runLater(() -> {
-            StringBuilder listOfCommands = new StringBuilder(
-                    "Commands available: ");
-            for (String c : commands) {
-                listOfCommands.append(c).append(" ");
-            }
-            listOfCommands.append(
-                    "\nNB! These are chat protocol commands and won't work by just typing them");
-            addMsgToGui(true, new TextMessage("info", false, "Info: "
-                    + listOfCommands.toString()), true);
-        });
+        // Show the commands in the GUI
+        StringBuilder listOfCommands = new StringBuilder(
+                "Commands available: ");
+        for (String c : commands) {
+            listOfCommands.append(c).append(" ");
+        }
+        listOfCommands.append(
+                "\nNB! These are chat protocol commands and won't work by just typing them");
+        addMsgToGui(true, new TextMessage("info", false, "Info: "
+                + listOfCommands.toString()), true);
     }
 
     /**
@@ -410,11 +539,29 @@ public class GUIController implements ChatListener {
      */
     @Override
     public void onCommandError(String errMsg) {
-        // Shoe error message. Do it on the GUI thread.
-        Platform.runLater(() -> {
-            TextMessage msg = new TextMessage("err", false, "Error: " + errMsg);
-            addMsgToGui(true, msg, true);
-        });
+        // Show error message
+        TextMessage msg = new TextMessage("err", false, "Error: " + errMsg);
+        addMsgToGui(true, msg, true);
+    }
+
+    /**
+     * This method is called when the connection was lost and the client is about to reconnect
+     *
+     * @param attempt     Number of the attempt
+     * @param delayMillis Delay before the attempt
+     */
+    @Override
+    public void onReconnecting(int attempt, long delayMillis) {
+        String statusText = "Connection lost - reconnecting (attempt " + attempt + ")...";
+        guiUpdates.post(() -> showStatus(statusText));
+    }
+
+    /**
+     * This method is called when the client has reconnected after losing the connection
+     */
+    @Override
+    public void onReconnected() {
+        updateButtons(true);
     }
 
     /**
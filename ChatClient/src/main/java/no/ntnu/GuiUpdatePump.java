@@ -0,0 +1,96 @@
+package no.ntnu;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javafx.animation.AnimationTimer;
+import javafx.collections.ObservableList;
+import javafx.scene.control.ListView;
+
+/**
+ * Collects GUI updates posted from background threads and applies them on the GUI thread once per frame
+ * (JavaFX pulse), instead of one Platform.runLater() per event. All the transcript entries received since the
+ * previous frame are added to the chat window in one go, so a burst of messages causes one list change and
+ * one layout pass. At most MAX_UPDATES_PER_FRAME updates are applied per frame, the rest wait for the next
+ * frames, so the GUI stays responsive even during a flood.
+ */
+class GuiUpdatePump extends AnimationTimer {
+    // Cap on the number of updates (entries and other actions) applied in one frame
+    private static final int MAX_UPDATES_PER_FRAME = 500;
+
+    // Pending updates: either TranscriptEntry objects or Runnable actions, in the order they were posted
+    private final ConcurrentLinkedQueue<Object> pending = new ConcurrentLinkedQueue<>();
+    private final ListView<TranscriptEntry> transcript;
+    private final int maxTranscriptSize;
+    private final int trimSize;
+    // Reused batch of entries to add in this frame, accessed only on the GUI thread
+    private final List<TranscriptEntry> batch = new ArrayList<>();
+
+    /**
+     * @param transcript        The chat window
+     * @param maxTranscriptSize How many entries the chat window keeps
+     * @param trimSize          How many of the oldest entries are removed at once when the window is full
+     */
+    GuiUpdatePump(ListView<TranscriptEntry> transcript, int maxTranscriptSize, int trimSize) {
+        this.transcript = transcript;
+        this.maxTranscriptSize = maxTranscriptSize;
+        this.trimSize = trimSize;
+    }
+
+    /**
+     * Add an entry to the chat window in the next frame. Can be called from any thread.
+     *
+     * @param entry The entry to add
+     */
+    void postEntry(TranscriptEntry entry) {
+        pending.add(entry);
+    }
+
+    /**
+     * Run an action on the GUI thread in the next frame. Can be called from any thread.
+     *
+     * @param update The action, for example updating a label
+     */
+    void post(Runnable update) {
+        pending.add(update);
+    }
+
+    /**
+     * Called by JavaFX on the GUI thread once per frame.
+     *
+     * @param now Timestamp of the frame, in nanoseconds
+     */
+    @Override
+    public void handle(long now) {
+        Object update;
+        int applied = 0;
+        while (applied < MAX_UPDATES_PER_FRAME && (update = pending.poll()) != null) {
+            applied++;
+            if (update instanceof TranscriptEntry) {
+                batch.add((TranscriptEntry) update);
+            } else {
+                // Keep the order: entries posted before this action are shown first
+                addBatchToTranscript();
+                ((Runnable) update).run();
+            }
+        }
+        addBatchToTranscript();
+    }
+
+    /**
+     * Add the collected entries to the chat window as one change and scroll to the newest.
+     */
+    private void addBatchToTranscript() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        ObservableList<TranscriptEntry> items = transcript.getItems();
+        items.addAll(batch);
+        batch.clear();
+        if (items.size() > maxTranscriptSize + trimSize) {
+            // Forget the oldest messages. Done in big chunks, so the cost per message stays constant.
+            items.remove(0, items.size() - maxTranscriptSize);
+        }
+        transcript.scrollTo(items.size() - 1);
+    }
+}
@@ -0,0 +1,143 @@
+package no.ntnu;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One I/O thread of a ChatClientManager: a selector serving the sockets of many sessions. Everything that
+ * touches the sockets or the selection keys is done on this thread; other threads hand over work with
+ * {@link #execute(ChatSession, Runnable)}.
+ * <p>
+ * An exception thrown by the work of one session closes that session only, the loop goes on serving the others.
+ * When the loop stops, the sessions of the work which did not run yet are closed as well, so that nobody waits
+ * for work which will never be done.
+ */
+class IoLoop implements Runnable {
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Task> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed = false;
+    // Set when the loop thread has stopped, tasks handed over after that are failed right away
+    private volatile boolean terminated = false;
+
+    IoLoop() throws IOException {
+        selector = Selector.open();
+    }
+
+    /**
+     * @return The selector of this loop. Register channels only from the loop thread.
+     */
+    Selector selector() {
+        return selector;
+    }
+
+    /**
+     * Run a task on the loop thread, as soon as possible. Can be called from any thread.
+     *
+     * @param session The session the task works for, closed instead if the loop stops before the task runs
+     * @param task    The task
+     */
+    void execute(ChatSession session, Runnable task) {
+        tasks.add(new Task(session, task));
+        if (terminated) {
+            // The loop may have failed its remaining tasks before this one was added
+            failTasks();
+        } else {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Stop the loop and close all the sessions it serves.
+     */
+    void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!closed) {
+                selector.select();
+                Task task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.work.run();
+                    } catch (RuntimeException e) {
+                        fail(task.session, e);
+                    }
+                }
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    ChatSession session = (ChatSession) key.attachment();
+                    try {
+                        session.handleReady(key);
+                    } catch (RuntimeException e) {
+                        fail(session, e);
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            e.printStackTrace();
+        } finally {
+            terminated = true;
+            closeAll();
+        }
+    }
+
+    /**
+     * Close a session whose work threw an unexpected exception.
+     */
+    private static void fail(ChatSession session, RuntimeException cause) {
+        cause.printStackTrace();
+        try {
+            session.closeNow(cause);
+        } catch (RuntimeException e) {
+            // Closing anyway
+        }
+    }
+
+    /**
+     * Close the sessions still registered and the selector, and fail the tasks which did not run.
+     */
+    private void closeAll() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                ((ChatSession) key.attachment()).closeNow(new IOException("Client manager closed"));
+            }
+            selector.close();
+        } catch (IOException | ClosedSelectorException e) {
+            // Closing anyway
+        }
+        failTasks();
+    }
+
+    /**
+     * Close the sessions of all the queued tasks, without running the tasks. Used once the loop has stopped.
+     */
+    private void failTasks() {
+        Task task;
+        while ((task = tasks.poll()) != null) {
+            task.session.closeNow(new IOException("Client manager closed"));
+        }
+    }
+
+    /**
+     * Work handed over to the loop thread, for one session
+     */
+    private static final class Task {
+        final ChatSession session;
+        final Runnable work;
+
+        Task(ChatSession session, Runnable work) {
+            this.session = session;
+            this.work = work;
+        }
+    }
+}
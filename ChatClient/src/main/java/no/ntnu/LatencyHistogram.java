@@ -0,0 +1,141 @@
+package no.ntnu;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records latencies (or any non-negative long values) in log-linear buckets, like HdrHistogram: every power
+ * of two range is split into 64 equally wide buckets, so any recorded value is known with a relative error of
+ * less than 1.6%, from nanoseconds up to hours, in a fixed amount of memory (about 30 KB).
+ * <p>
+ * Recording is thread safe and does not lock. For the best performance each thread records into its own
+ * histogram, and the histograms are merged for reporting with {@link #add(LatencyHistogram)}.
+ * <p>
+ * Copied in the warm-up server, see {@link MetricsRegistry}.
+ */
+public class LatencyHistogram {
+    // Values below SUB_BUCKETS are recorded exactly. Above, each power of two range has SUB_BUCKETS / 2 buckets.
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+    // Enough buckets for every positive long value
+    private static final int BUCKETS = SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * HALF_SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Record one value.
+     *
+     * @param value The value, negative values are recorded as 0
+     */
+    public void record(long value) {
+        counts.incrementAndGet(indexOf(Math.max(0, value)));
+    }
+
+    /**
+     * Add all the values recorded by another histogram to this one.
+     *
+     * @param other The histogram to add
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = other.counts.get(i);
+            if (count != 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+    }
+
+    /**
+     * @return Number of recorded values
+     */
+    public long getCount() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Get the value below which the given percentage of the recorded values fall.
+     *
+     * @param percentile Percentage, between 0 and 100, for example 99.9
+     * @return The value (within the precision of the histogram), 0 if nothing has been recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = getCount();
+        if (total == 0) {
+            return 0;
+        }
+        // The rank of the value we look for, at least the first value
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return highestValueIn(i);
+            }
+        }
+        return highestValueIn(BUCKETS - 1);
+    }
+
+    /**
+     * @return The largest recorded value (within the precision of the histogram), 0 if nothing has been recorded
+     */
+    public long getMax() {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (counts.get(i) != 0) {
+                return highestValueIn(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return The mean of the recorded values (within the precision of the histogram), 0 if nothing has been
+     * recorded
+     */
+    public double getMean() {
+        long total = 0;
+        double sum = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = counts.get(i);
+            if (count != 0) {
+                total += count;
+                // The middle of the bucket
+                sum += count * ((lowestValueIn(i) + (double) highestValueIn(i)) / 2);
+            }
+        }
+        return total == 0 ? 0 : sum / total;
+    }
+
+    /**
+     * Find the bucket of a value.
+     */
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // Shift the value so that it has SUB_BUCKET_BITS significant bits: it is then between
+        // HALF_SUB_BUCKETS and SUB_BUCKETS - 1
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS + 1;
+        return SUB_BUCKETS + (shift - 1) * HALF_SUB_BUCKETS + (int) (value >>> shift) - HALF_SUB_BUCKETS;
+    }
+
+    static long lowestValueIn(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1;
+        long subBucket = (index - SUB_BUCKETS) % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+        return subBucket << shift;
+    }
+
+    static long highestValueIn(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1;
+        return lowestValueIn(index) + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,68 @@
+package no.ntnu;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How far behind a listener is: the time from the moment an event was received from the server until the
+ * listener had finished processing it. Updated by the event dispatcher, can be read from any thread.
+ */
+public class ListenerLag {
+
+    private volatile long eventCount = 0;
+    private volatile long lastLagNanos = 0;
+    private volatile long maxLagNanos = 0;
+    private volatile long totalLagNanos = 0;
+
+    /**
+     * Record one processed event. Called only by the dispatcher thread.
+     *
+     * @param lagNanos Time between receiving the event and the end of processing, in nanoseconds
+     */
+    void record(long lagNanos) {
+        eventCount = eventCount + 1;
+        lastLagNanos = lagNanos;
+        totalLagNanos = totalLagNanos + lagNanos;
+        if (lagNanos > maxLagNanos) {
+            maxLagNanos = lagNanos;
+        }
+    }
+
+    /**
+     * @return Number of events processed by the listener
+     */
+    public long getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * @return Lag of the last processed event, in milliseconds
+     */
+    public double getLastLagMillis() {
+        return toMillis(lastLagNanos);
+    }
+
+    /**
+     * @return The biggest lag seen, in milliseconds
+     */
+    public double getMaxLagMillis() {
+        return toMillis(maxLagNanos);
+    }
+
+    /**
+     * @return Average lag over all the processed events, in milliseconds
+     */
+    public double getAverageLagMillis() {
+        long count = eventCount;
+        return count > 0 ? toMillis(totalLagNanos) / count : 0;
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d events, lag last %.2f ms, avg %.2f ms, max %.2f ms",
+                getEventCount(), getLastLagMillis(), getAverageLagMillis(), getMaxLagMillis());
+    }
+}
@@ -0,0 +1,100 @@
+package no.ntnu;
+
+/**
+ * The registered listeners of a chat client. Registering and unregistering (rare, usually from the GUI thread)
+ * copy the whole array, while event delivery (frequent, on the dispatcher thread) just reads the current array:
+ * no lock, no iterator, no allocation. A listener registered or removed during a delivery takes effect from the
+ * next event.
+ */
+class ListenerRegistry {
+    private static final Entry[] NO_ENTRIES = new Entry[0];
+
+    // Never modified, replaced by a new array on every change
+    private volatile Entry[] entries = NO_ENTRIES;
+
+    /**
+     * Register a listener, unless it is already registered.
+     *
+     * @param listener The listener to add
+     * @return true if added, false if it was already registered
+     */
+    synchronized boolean add(ChatListener listener) {
+        Entry[] current = entries;
+        if (indexOf(current, listener) >= 0) {
+            return false;
+        }
+        Entry[] updated = new Entry[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = new Entry(listener);
+        entries = updated;
+        return true;
+    }
+
+    /**
+     * Unregister a listener.
+     *
+     * @param listener The listener to remove
+     * @return true if removed, false if it was not registered
+     */
+    synchronized boolean remove(ChatListener listener) {
+        Entry[] current = entries;
+        int index = indexOf(current, listener);
+        if (index < 0) {
+            return false;
+        }
+        Entry[] updated = new Entry[current.length - 1];
+        System.arraycopy(current, 0, updated, 0, index);
+        System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+        entries = updated;
+        return true;
+    }
+
+    /**
+     * @return true when no listeners are registered
+     */
+    boolean isEmpty() {
+        return entries.length == 0;
+    }
+
+    /**
+     * Get the current listeners for delivering an event. The returned array must not be modified.
+     *
+     * @return Snapshot of the registered listeners, in registration order
+     */
+    Entry[] entries() {
+        return entries;
+    }
+
+    /**
+     * Get the lag statistics of a listener.
+     *
+     * @param listener The listener
+     * @return The statistics, or null if the listener is not registered
+     */
+    ListenerLag lagOf(ChatListener listener) {
+        Entry[] current = entries;
+        int index = indexOf(current, listener);
+        return index >= 0 ? current[index].lag : null;
+    }
+
+    private static int indexOf(Entry[] entries, ChatListener listener) {
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i].listener.equals(listener)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A registered listener together with its lag statistics
+     */
+    static final class Entry {
+        final ChatListener listener;
+        final ListenerLag lag = new ListenerLag();
+
+        Entry(ChatListener listener) {
+            this.listener = listener;
+        }
+    }
+}
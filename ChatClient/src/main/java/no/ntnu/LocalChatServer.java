@@ -0,0 +1,495 @@
+package no.ntnu;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * A chat server implementing the whole chat protocol, to run tests and benchmarks without the course server.
+ * It can be embedded (start it on port 0 and ask for the port it got) or run on its own with main().
+ * <p>
+ * All the clients are served by one thread with a Selector. A broadcast message is encoded once per framing
+ * (text lines or binary frames, as negotiated by each client) and the same bytes are queued for every recipient,
+ * so fan-out to thousands of clients costs one small buffer wrapper per recipient. Only the clients which use
+ * compression get a copy of their own, since each of them has its own deflate stream. A client which does not
+ * read its messages is disconnected when too much output is waiting for it.
+ */
+public class LocalChatServer implements Closeable {
+    // The port of the course server
+    private static final int DEFAULT_PORT = 1300;
+    // How many not-yet-accepted connections the OS may queue for us
+    private static final int ACCEPT_BACKLOG = 4096;
+    // Initial size of the per-client receive buffer
+    private static final int RECEIVE_BUFFER_SIZE = 512;
+    // A client with this much output waiting is too slow, and is disconnected
+    private static final int MAX_PENDING_OUTPUT = 4 * 1024 * 1024;
+    // Most buffers written to a socket in one system call
+    private static final int MAX_GATHER = 64;
+    private static final Pattern VALID_USERNAME = Pattern.compile("[A-Za-z0-9]+");
+    private static final String SUPPORTED = "supported msg privmsg login users help framing compression";
+
+    private final Selector selector;
+    private final ServerSocketChannel welcomeChannel;
+    // Logged in clients by username. Accessed only by the server thread.
+    private final Map<String, Client> users = new HashMap<>();
+    // All connected clients. Accessed only by the server thread.
+    private final Set<Client> clients = new HashSet<>();
+    // Clients to disconnect once the current command is handled. Accessed only by the server thread.
+    private final ArrayList<Client> slowClients = new ArrayList<>();
+    // Reused for gathering writes. Accessed only by the server thread.
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private volatile int clientCount = 0;
+    private volatile boolean closed = false;
+    // When false, framing and compression requests get no answer at all
+    private volatile boolean answerExtensionRequests = true;
+    // What stopped the server thread, if it was not close()
+    private volatile Exception failure;
+    private Thread serverThread;
+
+    /**
+     * Create a server on a free port chosen by the system, see {@link #getPort()}.
+     *
+     * @throws IOException When the listening socket can not be opened
+     */
+    public LocalChatServer() throws IOException {
+        this(0);
+    }
+
+    /**
+     * @param port TCP port to listen on, 0 for any free port
+     * @throws IOException When the listening socket can not be opened
+     */
+    public LocalChatServer(int port) throws IOException {
+        selector = Selector.open();
+        welcomeChannel = ServerSocketChannel.open();
+        try {
+            welcomeChannel.bind(new InetSocketAddress("localhost", port), ACCEPT_BACKLOG);
+            welcomeChannel.configureBlocking(false);
+            welcomeChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Start serving clients on a background (daemon) thread.
+     *
+     * @return This server
+     */
+    public synchronized LocalChatServer start() {
+        if (serverThread == null && !closed) {
+            serverThread = new Thread(this::run, "local-chat-server");
+            serverThread.setDaemon(true);
+            serverThread.start();
+        }
+        return this;
+    }
+
+    /**
+     * Choose whether to answer the framing and compression requests. A server which does not answer them acts
+     * like one which silently drops the commands it does not know.
+     *
+     * @param answer false to ignore the requests, true (the default) to answer them
+     * @return This server
+     */
+    public LocalChatServer setAnswerExtensionRequests(boolean answer) {
+        this.answerExtensionRequests = answer;
+        return this;
+    }
+
+    /**
+     * @return The port the server listens on
+     */
+    public int getPort() {
+        return welcomeChannel.socket().getLocalPort();
+    }
+
+    /**
+     * @return Number of connected clients
+     */
+    public int getClientCount() {
+        return clientCount;
+    }
+
+    /**
+     * @return The exception which stopped the server thread, null if it is running or was stopped by close()
+     */
+    public Exception getFailure() {
+        return failure;
+    }
+
+    /**
+     * Stop the server and disconnect all the clients. Returns when the server thread has stopped, so the port
+     * can be used again right away.
+     */
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            closed = true;
+            thread = serverThread;
+        }
+        if (thread == null) {
+            // Never started, nobody else uses the selector
+            closeAll();
+            return;
+        }
+        // The server thread notices the flag, closes the sockets and exits
+        selector.wakeup();
+        if (thread != Thread.currentThread()) {
+            boolean interrupted = false;
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Run the server on the given port (default 1300) until the process is stopped.
+     *
+     * @param args Optional port number
+     * @throws IOException When the listening socket can not be opened
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        LocalChatServer server = new LocalChatServer(port);
+        System.out.println("Chat server listening on port " + server.getPort());
+        server.run();
+    }
+
+    /**
+     * The event loop. Returns when the server is closed. The selector and the sockets are used and closed only
+     * on this thread.
+     */
+    private void run() {
+        try {
+            while (!closed) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (key.isValid() && key.isAcceptable()) {
+                            acceptClients();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            readFromClient((Client) key.attachment());
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            writeToClient((Client) key.attachment());
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        if (key.attachment() != null) {
+                            closeClient((Client) key.attachment());
+                        }
+                    }
+                    closeSlowClients();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+            e.printStackTrace();
+        } finally {
+            closeAll();
+        }
+    }
+
+    /**
+     * Disconnect all the clients and close the listening socket and the selector.
+     */
+    private void closeAll() {
+        for (Client client : new HashSet<>(clients)) {
+            closeClient(client);
+        }
+        try {
+            welcomeChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+
+    /**
+     * Accept all the pending connections and register them for reading.
+     */
+    private void acceptClients() throws IOException {
+        SocketChannel channel;
+        while ((channel = welcomeChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Client client = new Client(channel);
+            client.key = channel.register(selector, SelectionKey.OP_READ, client);
+            clients.add(client);
+            clientCount = clients.size();
+        }
+    }
+
+    /**
+     * Read what the client has sent and handle all the complete commands.
+     */
+    private void readFromClient(Client client) throws IOException {
+        if (client.decoder.readFrom(client.channel) < 0) {
+            throw new EOFException("Client closed the connection");
+        }
+        while (!client.slow && client.decoder.next()) {
+            if (!client.decoder.isEmptyLine()) {
+                handleCommand(client);
+            }
+        }
+    }
+
+    /**
+     * Handle the command in the client's decoder and queue the responses.
+     */
+    private void handleCommand(Client client) {
+        CommandDecoder decoder = client.decoder;
+        switch (decoder.command()) {
+            case LOGIN:
+                login(client, decoder.payload());
+                break;
+
+            case MSG:
+                if (client.username == null) {
+                    send(client, "msgerr unauthorized");
+                } else {
+                    String message = "msg " + client.username + " " + decoder.payload();
+                    // Encoded at most once for each framing
+                    byte[][] encoded = new byte[Framing.values().length][];
+                    for (Client recipient : clients) {
+                        if (recipient != client && recipient.compressor != null) {
+                            send(recipient, message);
+                        } else if (recipient != client) {
+                            int f = recipient.framing.ordinal();
+                            if (encoded[f] == null) {
+                                encoded[f] = recipient.framing.encode(message);
+                            }
+                            send(recipient, encoded[f]);
+                        }
+                    }
+                }
+                break;
+
+            case PRIVMSG:
+                String recipientName = decoder.argument();
+                Client recipient = users.get(recipientName);
+                if (client.username == null) {
+                    send(client, "msgerr unauthorized");
+                } else if (recipient == null) {
+                    send(client, "msgerr incorrect recipient " + recipientName);
+                } else {
+                    send(recipient, "privmsg " + client.username + " " + decoder.textAfterArgument());
+                }
+                break;
+
+            case USERS:
+                StringBuilder list = new StringBuilder("users");
+                for (String username : users.keySet()) {
+                    list.append(' ').append(username);
+                }
+                send(client, list.toString());
+                break;
+
+            case HELP:
+                send(client, SUPPORTED);
+                break;
+
+            case FRAMING:
+                if (!answerExtensionRequests) {
+                    break;
+                }
+                if (client.framing == Framing.TEXT && decoder.payload().equals("binary")) {
+                    // The answer is the last text line, everything after it is in binary frames
+                    send(client, Framing.ACCEPTED);
+                    client.framing = Framing.BINARY;
+                    decoder.setFraming(Framing.BINARY);
+                } else {
+                    send(client, "cmderror framing not supported");
+                }
+                break;
+
+            case COMPRESSION:
+                if (!answerExtensionRequests) {
+                    break;
+                }
+                if (client.framing == Framing.BINARY && client.compressor == null
+                        && decoder.payload().equals("deflate")) {
+                    // Sent uncompressed, the client can decompress what comes after it
+                    send(client, Compression.ACCEPTED);
+                    client.compressor = new Compression.Compressor(Compression.DEFAULT_THRESHOLD, null, null);
+                    client.decompressor = new Compression.Decompressor(CommandDecoder.MAX_LINE_LENGTH, null, null);
+                    decoder.setDecompressor(client.decompressor);
+                } else {
+                    send(client, "cmderror compression not supported");
+                }
+                break;
+
+            default:
+                send(client, "cmderror command not supported");
+        }
+    }
+
+    /**
+     * Log the client in. A client can log in again with another username, then the old one is released.
+     */
+    private void login(Client client, String username) {
+        if (!VALID_USERNAME.matcher(username).matches()) {
+            send(client, "loginerr incorrect username format");
+            return;
+        }
+        Client owner = users.get(username);
+        if (owner != null && owner != client) {
+            send(client, "loginerr username already in use");
+            return;
+        }
+        if (client.username != null) {
+            users.remove(client.username);
+        }
+        client.username = username;
+        users.put(username, client);
+        send(client, "loginok");
+    }
+
+    /**
+     * Queue a command for a client, encoded with the client's framing and compression.
+     */
+    private void send(Client client, String line) {
+        send(client, client.framing.encode(line, client.compressor));
+    }
+
+    /**
+     * Queue bytes for a client and try to write them right away. A client which can not take them is
+     * disconnected after the current command (not right away, since the caller may be iterating the clients).
+     *
+     * @param client The recipient
+     * @param bytes  A complete encoded command, shared between recipients, must not be modified
+     */
+    private void send(Client client, byte[] bytes) {
+        if (client.slow) {
+            return;
+        }
+        if (client.pendingBytes + bytes.length > MAX_PENDING_OUTPUT) {
+            // Too slow reader, it would make the server run out of memory
+            markSlow(client);
+            return;
+        }
+        client.output.add(ByteBuffer.wrap(bytes));
+        client.pendingBytes += bytes.length;
+        if (client.output.size() == 1) {
+            try {
+                writeToClient(client);
+            } catch (IOException e) {
+                markSlow(client);
+            }
+        }
+    }
+
+    private void markSlow(Client client) {
+        client.slow = true;
+        slowClients.add(client);
+    }
+
+    private void closeSlowClients() {
+        for (Client client : slowClients) {
+            closeClient(client);
+        }
+        slowClients.clear();
+    }
+
+    /**
+     * Write as much of the queued output as the socket accepts, wait for writability if something is left.
+     */
+    private void writeToClient(Client client) throws IOException {
+        ArrayDeque<ByteBuffer> output = client.output;
+        ByteBuffer[] buffers = gather;
+        while (!output.isEmpty()) {
+            int count = 0;
+            for (ByteBuffer buffer : output) {
+                if (count == buffers.length) {
+                    break;
+                }
+                buffers[count++] = buffer;
+            }
+            client.pendingBytes -= client.channel.write(buffers, 0, count);
+            int done = 0;
+            while (done < count && !output.peek().hasRemaining()) {
+                output.poll();
+                done++;
+            }
+            if (done < count) {
+                // The socket send buffer is full
+                break;
+            }
+        }
+        if (client.key.isValid()) {
+            client.key.interestOps(output.isEmpty()
+                    ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Disconnect a client and release its username.
+     */
+    private void closeClient(Client client) {
+        client.key.cancel();
+        try {
+            client.channel.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        if (client.username != null && users.get(client.username) == client) {
+            users.remove(client.username);
+        }
+        clients.remove(client);
+        clientCount = clients.size();
+        if (client.compressor != null) {
+            client.compressor.end();
+            client.decompressor.end();
+        }
+    }
+
+    /**
+     * State of one connected client
+     */
+    private static final class Client {
+        private final SocketChannel channel;
+        private final CommandDecoder decoder = new CommandDecoder(RECEIVE_BUFFER_SIZE);
+        private final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+        private SelectionKey key;
+        private String username;
+        private Framing framing = Framing.TEXT;
+        // Both null until the client asks for compression
+        private Compression.Compressor compressor;
+        private Compression.Decompressor decompressor;
+        private int pendingBytes = 0;
+        // Set when the client is to be disconnected
+        private boolean slow = false;
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package no.ntnu;
+
+/**
+ * Result of a login request: either success, or failure with the error message from the server
+ */
+public class LoginResult {
+
+    private final boolean success;
+    private final String errorMessage;
+
+    /**
+     * @param success      When true, the client has logged in
+     * @param errorMessage Error message in case of failure, null on success
+     */
+    public LoginResult(boolean success, String errorMessage) {
+        this.success = success;
+        this.errorMessage = errorMessage;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    @Override
+    public String toString() {
+        return success ? "login ok" : "login failed: " + errorMessage;
+    }
+}
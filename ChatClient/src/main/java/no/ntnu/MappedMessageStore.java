@@ -0,0 +1,363 @@
+package no.ntnu;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A message store kept in a directory of memory-mapped segment files. Messages are appended to the last
+ * segment; when it is full a new one is started, and when there are too many segments the oldest one is
+ * deleted, so the history never takes more than segmentSize * maxSegments bytes of disk. The data lives in
+ * the OS page cache, not on the Java heap: the heap only holds an index with the position of every message
+ * (4 bytes per message), so reading any message or range is direct, without scanning.
+ * <p>
+ * A segment file is named after the sequence number of its first message. It holds records of
+ * [length: int][flags: byte][sender length: short][sender: UTF-8][text: UTF-8], the rest of the file is
+ * zeros. The length is written last, so a message is either completely stored or not at all, even if the
+ * process dies while appending. When the store is opened, the segments are scanned to rebuild the index.
+ * <p>
+ * Thread safe. Only one store (one process) can use a directory at a time.
+ */
+public class MappedMessageStore implements MessageStore {
+    /**
+     * Default size of a segment file: 8 MiB, roughly 100 000 chat messages
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+    /**
+     * Default number of segments kept
+     */
+    public static final int DEFAULT_MAX_SEGMENTS = 16;
+
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String LOCK_FILE = "store.lock";
+    private static final int LENGTH_SIZE = 4;
+    // Flags byte and sender length
+    private static final int RECORD_HEADER_SIZE = 3;
+    private static final byte FLAG_PRIVATE = 1;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    // Oldest first, the last one is written to
+    private final List<Segment> segments = new ArrayList<>();
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private boolean closed = false;
+
+    /**
+     * Open (or create) a store with the default size limits.
+     *
+     * @param directory The directory of the segment files, created if needed
+     * @throws IOException When the directory can not be used, or is used by another store
+     */
+    public MappedMessageStore(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+    }
+
+    /**
+     * Open (or create) a store.
+     *
+     * @param directory   The directory of the segment files, created if needed
+     * @param segmentSize Size of each segment file in bytes, also the limit for the size of one message
+     * @param maxSegments Most segment files kept, at least 2
+     * @throws IOException When the directory can not be used, or is used by another store
+     */
+    public MappedMessageStore(Path directory, int segmentSize, int maxSegments) throws IOException {
+        if (segmentSize <= LENGTH_SIZE + RECORD_HEADER_SIZE || maxSegments < 2) {
+            throw new IllegalArgumentException("Invalid store size: " + maxSegments + " segments of "
+                    + segmentSize + " bytes");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        Files.createDirectories(directory);
+        lockChannel = FileChannel.open(directory.resolve(LOCK_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock acquired;
+        try {
+            acquired = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Already used by another store in this JVM
+            acquired = null;
+        }
+        lock = acquired;
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException("Message store " + directory + " is used by another client");
+        }
+        try {
+            openSegments();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open the existing segments, oldest first, and start the first one if there is none.
+     */
+    private void openSegments() throws IOException {
+        List<Long> baseSequences = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    baseSequences.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // Not one of our files
+                }
+            }
+        }
+        Collections.sort(baseSequences);
+        for (long baseSequence : baseSequences) {
+            segments.add(Segment.open(segmentFile(baseSequence), baseSequence, segmentSize));
+        }
+        if (segments.isEmpty()) {
+            segments.add(Segment.open(segmentFile(0), 0, segmentSize));
+        }
+    }
+
+    @Override
+    public synchronized long append(TextMessage message) throws IOException {
+        checkOpen();
+        byte[] sender = bytes(message.getSender());
+        byte[] text = bytes(message.getText());
+        int length = RECORD_HEADER_SIZE + sender.length + text.length;
+        if (LENGTH_SIZE + length > segmentSize || sender.length > 0xFFFF) {
+            throw new IOException("Message too large for the history: " + length + " bytes");
+        }
+        Segment segment = lastSegment();
+        if (!segment.hasRoom(length)) {
+            segment = startSegment(segment.nextSequence());
+        }
+        return segment.append(message.isPrivate() ? FLAG_PRIVATE : 0, sender, text);
+    }
+
+    @Override
+    public synchronized long firstSequence() {
+        return closed ? 0 : segments.get(0).baseSequence;
+    }
+
+    @Override
+    public synchronized long nextSequence() {
+        return closed ? 0 : lastSegment().nextSequence();
+    }
+
+    @Override
+    public synchronized void scan(long from, long to, Visitor visitor) throws IOException {
+        checkOpen();
+        long sequence = Math.max(from, firstSequence());
+        int segmentIndex = segmentIndexOf(sequence);
+        while (sequence < to && segmentIndex < segments.size()) {
+            Segment segment = segments.get(segmentIndex);
+            if (sequence >= segment.nextSequence()) {
+                segmentIndex++;
+            } else if (!visitor.visit(sequence, segment.read(sequence))) {
+                return;
+            } else {
+                sequence++;
+            }
+        }
+    }
+
+    @Override
+    public synchronized List<TextMessage> read(long from, int maxCount) throws IOException {
+        List<TextMessage> messages = new ArrayList<>(Math.max(0, Math.min(maxCount, 1024)));
+        scan(from, from + maxCount, (sequence, message) -> messages.add(message));
+        return messages;
+    }
+
+    /**
+     * Write the changes to the disk and close the store.
+     */
+    @Override
+    public synchronized void close() {
+        if (!segments.isEmpty()) {
+            lastSegment().buffer.force();
+            segments.clear();
+        }
+        closed = true;
+        try {
+            if (lock != null) {
+                lock.release();
+            }
+            lockChannel.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Message store is closed");
+        }
+    }
+
+    private Segment lastSegment() {
+        return segments.get(segments.size() - 1);
+    }
+
+    /**
+     * Find the segment holding a sequence number.
+     *
+     * @return Index in the segment list, or 0 if the message is older than all the segments
+     */
+    private int segmentIndexOf(long sequence) {
+        int low = 0;
+        int high = segments.size() - 1;
+        while (low < high) {
+            // The last segment with a base sequence not above the sequence we look for
+            int middle = (low + high + 1) >>> 1;
+            if (segments.get(middle).baseSequence <= sequence) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Start a new segment, and delete the oldest one when there are too many.
+     */
+    private Segment startSegment(long baseSequence) throws IOException {
+        lastSegment().buffer.force();
+        Segment segment = Segment.open(segmentFile(baseSequence), baseSequence, segmentSize);
+        segments.add(segment);
+        while (segments.size() > maxSegments) {
+            Segment oldest = segments.remove(0);
+            // The mapping stays valid until it is garbage collected. On systems which do not allow deleting a
+            // mapped file, the file is deleted when the JVM exits.
+            try {
+                Files.delete(oldest.file);
+            } catch (IOException e) {
+                oldest.file.toFile().deleteOnExit();
+            }
+        }
+        return segment;
+    }
+
+    private Path segmentFile(long baseSequence) {
+        return directory.resolve(String.format("%020d%s", baseSequence, SEGMENT_SUFFIX));
+    }
+
+    private static byte[] bytes(String s) {
+        return s != null ? s.getBytes(StandardCharsets.UTF_8) : new byte[0];
+    }
+
+    /**
+     * One memory-mapped segment file, and the index of the messages in it
+     */
+    private static final class Segment {
+        private final Path file;
+        private final long baseSequence;
+        private final MappedByteBuffer buffer;
+        // Position of each message in the file
+        private int[] positions = new int[1024];
+        private int count = 0;
+        private int writePosition = 0;
+
+        private Segment(Path file, long baseSequence, MappedByteBuffer buffer) {
+            this.file = file;
+            this.baseSequence = baseSequence;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Map a segment file, creating it if needed, and index the messages in it.
+         */
+        static Segment open(Path file, long baseSequence, int segmentSize) throws IOException {
+            MappedByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // An existing segment keeps its size, even if the configured size has changed
+                long size = channel.size() > 0 ? channel.size() : segmentSize;
+                // The mapping stays valid after the channel is closed
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+            Segment segment = new Segment(file, baseSequence, buffer);
+            segment.recover();
+            return segment;
+        }
+
+        /**
+         * Index the complete records. Anything after them is left over from a crash while appending, and
+         * is cleared.
+         */
+        private void recover() {
+            int capacity = buffer.capacity();
+            int position = 0;
+            while (position + LENGTH_SIZE <= capacity) {
+                int length = buffer.getInt(position);
+                if (length < RECORD_HEADER_SIZE || length > capacity - position - LENGTH_SIZE
+                        || (buffer.getShort(position + LENGTH_SIZE + 1) & 0xFFFF) > length - RECORD_HEADER_SIZE) {
+                    break;
+                }
+                addPosition(position);
+                position += LENGTH_SIZE + length;
+            }
+            writePosition = position;
+            if (position + LENGTH_SIZE <= capacity && buffer.getInt(position) != 0) {
+                for (int i = position; i < capacity; i++) {
+                    buffer.put(i, (byte) 0);
+                }
+            }
+        }
+
+        long nextSequence() {
+            return baseSequence + count;
+        }
+
+        boolean hasRoom(int length) {
+            return writePosition + LENGTH_SIZE + length <= buffer.capacity();
+        }
+
+        long append(byte flags, byte[] sender, byte[] text) {
+            int position = writePosition;
+            ByteBuffer record = buffer.duplicate();
+            record.position(position + LENGTH_SIZE);
+            record.put(flags);
+            record.putShort((short) sender.length);
+            record.put(sender);
+            record.put(text);
+            // Written last: the record exists only once it is complete
+            buffer.putInt(position, RECORD_HEADER_SIZE + sender.length + text.length);
+            writePosition = record.position();
+            addPosition(position);
+            return baseSequence + count - 1;
+        }
+
+        TextMessage read(long sequence) {
+            int position = positions[(int) (sequence - baseSequence)];
+            int length = buffer.getInt(position);
+            ByteBuffer record = buffer.duplicate();
+            record.position(position + LENGTH_SIZE);
+            boolean priv = (record.get() & FLAG_PRIVATE) != 0;
+            byte[] sender = new byte[record.getShort() & 0xFFFF];
+            record.get(sender);
+            byte[] text = new byte[length - RECORD_HEADER_SIZE - sender.length];
+            record.get(text);
+            return new TextMessage(new String(sender, StandardCharsets.UTF_8), priv,
+                    new String(text, StandardCharsets.UTF_8));
+        }
+
+        private void addPosition(int position) {
+            if (count == positions.length) {
+                positions = Arrays.copyOf(positions, count * 2);
+            }
+            positions[count++] = position;
+        }
+    }
+}
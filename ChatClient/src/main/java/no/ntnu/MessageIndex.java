@@ -0,0 +1,335 @@
+package no.ntnu;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An inverted index over a message store, for searching the history by keywords, sender and privacy without
+ * reading the messages. For every word (and every sender) the index keeps the sorted list of the sequence
+ * numbers of the messages containing it; a query intersects the lists, starting from the shortest one and
+ * from the newest messages, so it touches only a few entries even on a history of millions of messages.
+ * <p>
+ * The index is built incrementally: {@link #update()} indexes the messages appended to the store since the
+ * last update, and forgets the messages the store no longer keeps. The index lives on the heap, a sequence
+ * number takes 4 bytes in each list. Thread safe.
+ */
+public class MessageIndex {
+    // Longer words are not indexed, a query with one matches nothing
+    private static final int MAX_TERM_LENGTH = 64;
+    // Forget the dropped messages once this many of them are still in the lists
+    private static final int PRUNE_STEP = 10000;
+
+    private final MessageStore store;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, Postings> terms = new HashMap<>();
+    private final Map<String, Postings> senders = new HashMap<>();
+    private final Postings privateMessages = new Postings();
+    // The lists store sequence numbers relative to this one, to fit in an int
+    private long baseSequence;
+    // The oldest message still in the lists
+    private long firstSequence;
+    // The next message to index
+    private long nextSequence;
+
+    /**
+     * Create an empty index, call {@link #update()} to index the messages already in the store.
+     *
+     * @param store The store to index
+     */
+    public MessageIndex(MessageStore store) {
+        this.store = store;
+        clear(store.firstSequence());
+    }
+
+    /**
+     * Index the messages appended to the store since the last update. The first update indexes the whole
+     * store, which may take a while on a large history.
+     *
+     * @throws IOException When the store can not be read
+     */
+    public void update() throws IOException {
+        lock.lock();
+        try {
+            catchUp();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Index the new messages, unless another thread is updating or searching the index right now (then the
+     * new messages are indexed by that thread or by the next update). Never waits for a long update.
+     *
+     * @return true if the index was updated
+     * @throws IOException When the store can not be read
+     */
+    public boolean tryUpdate() throws IOException {
+        if (!lock.tryLock()) {
+            return false;
+        }
+        try {
+            catchUp();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Find the newest messages matching a query. The new messages in the store are indexed first.
+     *
+     * @param query    The query
+     * @param maxCount Most messages to return
+     * @return The matching messages, oldest first
+     * @throws IOException When the store can not be read
+     */
+    public List<TextMessage> search(SearchQuery query, int maxCount) throws IOException {
+        long[] sequences;
+        lock.lock();
+        try {
+            catchUp();
+            sequences = find(query, maxCount);
+        } finally {
+            lock.unlock();
+        }
+        List<TextMessage> messages = new ArrayList<>(sequences.length);
+        for (long sequence : sequences) {
+            // A message dropped by the store meanwhile is not returned
+            messages.addAll(store.read(sequence, 1));
+        }
+        return messages;
+    }
+
+    /**
+     * @return Number of messages in the index
+     */
+    public long size() {
+        lock.lock();
+        try {
+            return nextSequence - firstSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Split a text into lower case words, as they are indexed and searched for.
+     *
+     * @param text The text
+     * @return The words, in the order of the text, may contain duplicates
+     */
+    static List<String> tokenize(String text) {
+        return tokenize(text, false);
+    }
+
+    /**
+     * Split a search keyword into words like {@link #tokenize(String)}, but keep the words too long to be
+     * indexed: a query with such a word matches no message, instead of ignoring the word.
+     *
+     * @param text The keyword
+     * @return The words, in the order of the text
+     */
+    static List<String> tokenizeQuery(String text) {
+        return tokenize(text, true);
+    }
+
+    private static List<String> tokenize(String text, boolean keepLongWords) {
+        List<String> words = new ArrayList<>();
+        if (text == null) {
+            return words;
+        }
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                if (keepLongWords || i - start <= MAX_TERM_LENGTH) {
+                    words.add(text.substring(start, i).toLowerCase());
+                }
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Index the new messages and prune the dropped ones. Must be called with the lock held.
+     */
+    private void catchUp() throws IOException {
+        long storeFirst = store.firstSequence();
+        long storeNext = store.nextSequence();
+        if (storeNext - baseSequence > Integer.MAX_VALUE || storeNext < nextSequence) {
+            // Out of the range of the lists, or the store was replaced: start over
+            clear(storeFirst);
+        }
+        nextSequence = Math.max(nextSequence, storeFirst);
+        store.scan(nextSequence, storeNext, (sequence, message) -> {
+            add(sequence, message);
+            return true;
+        });
+        if (storeFirst - firstSequence >= PRUNE_STEP) {
+            prune(storeFirst);
+        }
+    }
+
+    private void clear(long sequence) {
+        terms.clear();
+        senders.clear();
+        privateMessages.removeBelow(Integer.MAX_VALUE);
+        baseSequence = sequence;
+        firstSequence = sequence;
+        nextSequence = sequence;
+    }
+
+    private void add(long sequence, TextMessage message) {
+        int offset = (int) (sequence - baseSequence);
+        for (String term : tokenize(message.getText())) {
+            Postings postings = terms.get(term);
+            if (postings == null) {
+                postings = new Postings();
+                terms.put(term, postings);
+            }
+            // A word repeated in the message is listed once
+            postings.addIfLast(offset);
+        }
+        Postings postings = senders.get(message.getSender());
+        if (postings == null) {
+            postings = new Postings();
+            senders.put(message.getSender(), postings);
+        }
+        postings.addIfLast(offset);
+        if (message.isPrivate()) {
+            privateMessages.addIfLast(offset);
+        }
+        nextSequence = sequence + 1;
+    }
+
+    /**
+     * Remove the messages older than the given one from all the lists.
+     */
+    private void prune(long sequence) {
+        int offset = (int) (sequence - baseSequence);
+        pruneAll(terms, offset);
+        pruneAll(senders, offset);
+        privateMessages.removeBelow(offset);
+        firstSequence = sequence;
+    }
+
+    private static void pruneAll(Map<String, Postings> lists, int offset) {
+        Iterator<Postings> it = lists.values().iterator();
+        while (it.hasNext()) {
+            Postings postings = it.next();
+            postings.removeBelow(offset);
+            if (postings.size == 0) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Find the sequence numbers of the newest matching messages. Must be called with the lock held.
+     */
+    private long[] find(SearchQuery query, int maxCount) {
+        List<Postings> lists = new ArrayList<>();
+        for (String term : query.getTerms()) {
+            Postings postings = terms.get(term);
+            if (postings == null) {
+                return new long[0];
+            }
+            lists.add(postings);
+        }
+        if (query.getSender() != null) {
+            Postings postings = senders.get(query.getSender());
+            if (postings == null) {
+                return new long[0];
+            }
+            lists.add(postings);
+        }
+        if (Boolean.TRUE.equals(query.getPrivate())) {
+            lists.add(privateMessages);
+        }
+        boolean publicOnly = Boolean.FALSE.equals(query.getPrivate());
+        int oldest = (int) (firstSequence - baseSequence);
+
+        long[] found = new long[Math.max(0, maxCount)];
+        int count = 0;
+        if (lists.isEmpty()) {
+            // Any message (maybe public only): walk back from the newest one
+            for (int offset = (int) (nextSequence - baseSequence) - 1; offset >= oldest && count < found.length; offset--) {
+                if (!publicOnly || !privateMessages.contains(offset)) {
+                    found[count++] = baseSequence + offset;
+                }
+            }
+        } else {
+            Collections.sort(lists, Comparator.comparingInt(postings -> postings.size));
+            Postings shortest = lists.get(0);
+            for (int i = shortest.size - 1; i >= 0 && count < found.length; i--) {
+                int offset = shortest.values[i];
+                if (offset < oldest) {
+                    break;
+                }
+                if (inAll(lists, offset) && (!publicOnly || !privateMessages.contains(offset))) {
+                    found[count++] = baseSequence + offset;
+                }
+            }
+        }
+        // Newest first so far, return oldest first
+        long[] sequences = new long[count];
+        for (int i = 0; i < count; i++) {
+            sequences[i] = found[count - 1 - i];
+        }
+        return sequences;
+    }
+
+    private static boolean inAll(List<Postings> lists, int offset) {
+        for (int i = 1; i < lists.size(); i++) {
+            if (!lists.get(i).contains(offset)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A sorted list of message offsets
+     */
+    private static final class Postings {
+        private int[] values = new int[4];
+        private int size = 0;
+
+        /**
+         * Add an offset, larger than or equal to the ones already in the list (then it is not added again)
+         */
+        void addIfLast(int offset) {
+            if (size > 0 && values[size - 1] == offset) {
+                return;
+            }
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = offset;
+        }
+
+        boolean contains(int offset) {
+            return Arrays.binarySearch(values, 0, size, offset) >= 0;
+        }
+
+        void removeBelow(int offset) {
+            int index = Arrays.binarySearch(values, 0, size, offset);
+            int removed = index >= 0 ? index : -index - 1;
+            if (removed > 0) {
+                System.arraycopy(values, removed, values, 0, size - removed);
+                size -= removed;
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package no.ntnu;
+
+import java.io.IOException;
+
+/**
+ * A chat listener that stores every received message in a message store, and optionally indexes it for
+ * searching. Register it on a TCPClient next to the listeners that show the messages. When the store fails
+ * (for example the disk is full), the error is reported once and the following messages are not stored.
+ */
+public class MessageRecorder implements ChatListener {
+    private final MessageStore store;
+    private final MessageIndex index;
+    private volatile boolean failed = false;
+
+    /**
+     * @param store The store to fill
+     */
+    public MessageRecorder(MessageStore store) {
+        this(store, null);
+    }
+
+    /**
+     * @param store The store to fill
+     * @param index Index of the store, updated with every message, or null
+     */
+    public MessageRecorder(MessageStore store, MessageIndex index) {
+        this.store = store;
+        this.index = index;
+    }
+
+    @Override
+    public void onMessageReceived(TextMessage message) {
+        if (failed) {
+            return;
+        }
+        try {
+            store.append(message);
+            if (index != null) {
+                // Do not wait while the index is being built or searched, the message is indexed later
+                index.tryUpdate();
+            }
+        } catch (IOException e) {
+            failed = true;
+            System.out.println("Message history disabled: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void onDisconnect() {
+    }
+
+    @Override
+    public void onLoginResult(boolean success, String errMsg) {
+    }
+
+    @Override
+    public void onMessageError(String errMsg) {
+    }
+
+    @Override
+    public void onUserList(String[] usernames) {
+    }
+
+    @Override
+    public void onSupportedCommands(String[] commands) {
+    }
+
+    @Override
+    public void onCommandError(String errMsg) {
+    }
+}
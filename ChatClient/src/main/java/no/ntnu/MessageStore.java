@@ -0,0 +1,78 @@
+package no.ntnu;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The chat history: an append-only log of messages. Every message gets a sequence number, counting from 0 in
+ * the order the messages were appended. A store may drop its oldest messages to stay within its size limit,
+ * {@link #firstSequence()} tells which messages are still available.
+ */
+public interface MessageStore extends Closeable {
+
+    /**
+     * Receives the messages of a range scan, see {@link #scan(long, long, Visitor)}
+     */
+    interface Visitor {
+        /**
+         * @param sequence Sequence number of the message
+         * @param message  The message
+         * @return true to continue the scan, false to stop it
+         */
+        boolean visit(long sequence, TextMessage message);
+    }
+
+    /**
+     * Add a message at the end of the history.
+     *
+     * @param message The message
+     * @return The sequence number of the message
+     * @throws IOException When the message can not be stored
+     */
+    long append(TextMessage message) throws IOException;
+
+    /**
+     * @return Sequence number of the oldest message still stored (equal to {@link #nextSequence()} when the
+     * store is empty)
+     */
+    long firstSequence();
+
+    /**
+     * @return Sequence number the next appended message will get
+     */
+    long nextSequence();
+
+    /**
+     * Read the messages with sequence numbers from {@code from} (inclusive) to {@code to} (exclusive), oldest
+     * first, without loading the rest of the history. Messages no longer stored are skipped.
+     *
+     * @param from    Sequence number of the first message
+     * @param to      Sequence number after the last message
+     * @param visitor Receives the messages
+     * @throws IOException When the store can not be read
+     */
+    void scan(long from, long to, Visitor visitor) throws IOException;
+
+    /**
+     * Read consecutive messages.
+     *
+     * @param from     Sequence number of the first message
+     * @param maxCount Most messages to read
+     * @return The messages, oldest first
+     * @throws IOException When the store can not be read
+     */
+    List<TextMessage> read(long from, int maxCount) throws IOException;
+
+    /**
+     * Read the latest messages, for example to show the end of the history when the chat window opens.
+     *
+     * @param count Most messages to read
+     * @return The messages, oldest first
+     * @throws IOException When the store can not be read
+     */
+    default List<TextMessage> tail(int count) throws IOException {
+        long next = nextSequence();
+        return read(Math.max(firstSequence(), next - count), count);
+    }
+}
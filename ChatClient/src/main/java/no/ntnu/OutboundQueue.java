@@ -0,0 +1,448 @@
+package no.ntnu;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Queue of commands waiting to be sent to the server. Commands are written by a background writer
+ * ({@link #run()}) in batches: the writer waits until either enough bytes are queued or the first queued command
+ * has waited for the linger time, then writes the whole batch with one flush. This way many small commands
+ * share one system call and often one TCP segment.
+ * <p>
+ * In low-latency mode (or for a command enqueued with flushNow) the writer does not wait at all.
+ * Every command gets a future which completes when the command has been written to the socket, or completes
+ * exceptionally when it could not be sent.
+ * <p>
+ * A resumable queue survives the loss of the connection: the commands which could not be written are kept, and
+ * are sent to the new connection given to {@link #resume(OutputStream, String)}.
+ * <p>
+ * The commands are encoded when written, with the framing agreed with the server. While the framing is being
+ * negotiated ({@link #startNegotiation()}) commands are queued but not written, since the framing they will be
+ * sent with is not known yet.
+ */
+class OutboundQueue implements Runnable {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+    private final int maxBatchBytes;
+    private final long lingerNanos;
+    // Counts the bytes written, null for no counting
+    private final LongAdder sentBytes;
+
+    // The following fields are guarded by lock
+    private OutputStream out;
+    private int queuedBytes = 0;
+    private int flushRequests = 0;
+    private boolean lowLatency = false;
+    private IOException closedCause = null;
+    private boolean resumable = false;
+    // While suspended, commands are queued but not written
+    private boolean suspended = false;
+    private Framing framing = Framing.TEXT;
+    // While negotiating, commands are queued but not written either
+    private boolean negotiating = false;
+    // Compresses the long payloads, null for no compression
+    private Compression.Compressor compressor = null;
+    // The first command given to the last resume(), it stays in front of the batches requeued after it
+    private Pending resumeFirst = null;
+
+    // The framing and the compressor of the batch being written. Written only by the writer, with the lock held.
+    private Framing batchFraming = Framing.TEXT;
+    private Compression.Compressor batchCompressor = null;
+
+    /**
+     * @param out           Stream to write the commands to
+     * @param maxBatchBytes When this many bytes are queued, they are sent without waiting for the linger time
+     * @param lingerMillis  How long a command may wait for other commands to be batched with
+     */
+    OutboundQueue(OutputStream out, int maxBatchBytes, long lingerMillis) {
+        this(out, maxBatchBytes, lingerMillis, null);
+    }
+
+    /**
+     * @param out           Stream to write the commands to
+     * @param maxBatchBytes When this many bytes are queued, they are sent without waiting for the linger time
+     * @param lingerMillis  How long a command may wait for other commands to be batched with
+     * @param sentBytes     Counter of the bytes written, or null
+     */
+    OutboundQueue(OutputStream out, int maxBatchBytes, long lingerMillis, LongAdder sentBytes) {
+        this.out = new BufferedOutputStream(out, maxBatchBytes);
+        this.maxBatchBytes = maxBatchBytes;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.sentBytes = sentBytes;
+    }
+
+    /**
+     * Queue a command for sending. The newline (or the frame header) is added automatically.
+     *
+     * @param command  The command to send, without the newline. It may contain line breaks only when sent with
+     *                 binary framing, text framing replaces them with spaces.
+     * @param flushNow When true, send this command (and everything before it) without waiting for more commands
+     * @return Future completed when the command is written, or exceptionally when it can not be sent
+     */
+    CompletableFuture<Void> enqueue(String command, boolean flushNow) {
+        return add(new Pending(command.getBytes(StandardCharsets.UTF_8), flushNow));
+    }
+
+    /**
+     * Send all the queued commands now.
+     *
+     * @return Future completed when all the commands queued before this call have been written
+     */
+    CompletableFuture<Void> flush() {
+        return add(new Pending(null, true));
+    }
+
+    /**
+     * Switch low-latency mode on or off. In low-latency mode every command is sent immediately, batching
+     * happens only for commands queued while the writer is busy.
+     *
+     * @param lowLatency True to enable
+     */
+    void setLowLatency(boolean lowLatency) {
+        lock.lock();
+        try {
+            this.lowLatency = lowLatency;
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Keep the unsent commands when writing fails, instead of failing them.
+     *
+     * @param resumable True to enable
+     */
+    void setResumable(boolean resumable) {
+        lock.lock();
+        try {
+            this.resumable = resumable;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop writing, because the connection is lost. The commands stay queued until {@link #resume} is called.
+     */
+    void suspend() {
+        lock.lock();
+        try {
+            suspended = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hold the commands until the framing has been negotiated, see {@link #finishNegotiation(Framing, String)}. The
+     * request must be sent before any queued command, for example written to the socket before calling this.
+     */
+    void startNegotiation() {
+        lock.lock();
+        try {
+            negotiating = true;
+            framing = Framing.TEXT;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Send the held commands, and all the following ones, with the negotiated framing.
+     *
+     * @param agreed       The framing the server has agreed to
+     * @param firstCommand Command to send before all the held ones (for example a request for another
+     *                     extension), null if none
+     */
+    void finishNegotiation(Framing agreed, String firstCommand) {
+        lock.lock();
+        try {
+            if (firstCommand != null) {
+                Pending first = new Pending(firstCommand.getBytes(StandardCharsets.UTF_8), true);
+                queue.addFirst(first);
+                queuedBytes += first.bytes.length + 1;
+                flushRequests++;
+            }
+            framing = agreed;
+            negotiating = false;
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Compress the long payloads of the commands written from now on. Used only with binary framing. The queue
+     * owns the compressor from now on, and ends it when it is replaced or the queue is closed.
+     *
+     * @param compressor The compressor agreed with the server
+     */
+    void setCompressor(Compression.Compressor compressor) {
+        lock.lock();
+        try {
+            if (closedCause != null) {
+                // The writer has stopped, or stops without taking another batch
+                retire(compressor);
+                return;
+            }
+            if (compressor != this.compressor) {
+                retire(this.compressor);
+            }
+            this.compressor = compressor;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Continue writing on a new connection.
+     *
+     * @param newOut       Stream of the new connection
+     * @param firstCommand Command to send before all the queued ones (for example a login), null if none
+     */
+    void resume(OutputStream newOut, String firstCommand) {
+        lock.lock();
+        try {
+            out = new BufferedOutputStream(newOut, maxBatchBytes);
+            // A new connection starts without compression, the compressor state belongs to the old one
+            retire(compressor);
+            compressor = null;
+            resumeFirst = null;
+            if (firstCommand != null) {
+                resumeFirst = new Pending(firstCommand.getBytes(StandardCharsets.UTF_8), true);
+                queue.addFirst(resumeFirst);
+                queuedBytes += resumeFirst.bytes.length + 1;
+                flushRequests++;
+            }
+            suspended = false;
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop the writer. All the commands not sent yet fail with the given cause.
+     *
+     * @param cause Why the queue is closed
+     */
+    void close(IOException cause) {
+        List<Pending> failed;
+        lock.lock();
+        try {
+            if (closedCause != null) {
+                return;
+            }
+            closedCause = cause;
+            failed = new ArrayList<>(queue);
+            queue.clear();
+            queuedBytes = 0;
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+        for (Pending p : failed) {
+            p.future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * The writer loop: wait for a batch of commands and write it, until the queue is closed or writing fails.
+     */
+    @Override
+    public void run() {
+        List<Pending> batch = new ArrayList<>();
+        OutputStream stream;
+        while ((stream = takeBatch(batch)) != null) {
+            try {
+                int written = 0;
+                for (Pending p : batch) {
+                    if (p.bytes != null) {
+                        written += batchFraming.write(stream, p.bytes, batchCompressor);
+                    }
+                }
+                stream.flush();
+                if (sentBytes != null) {
+                    sentBytes.add(written);
+                }
+                for (Pending p : batch) {
+                    p.future.complete(null);
+                }
+            } catch (IOException e) {
+                if (!requeue(batch, stream)) {
+                    for (Pending p : batch) {
+                        p.future.completeExceptionally(e);
+                    }
+                    close(e);
+                }
+            }
+            batch.clear();
+        }
+        lock.lock();
+        try {
+            retire(compressor);
+            compressor = null;
+            endBatchCompressor();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * End a compressor which is no longer used for new batches: now, unless the writer is still using it for
+     * the batch it has taken, then when the writer takes the next batch or stops. Must be called with the lock
+     * held.
+     */
+    private void retire(Compression.Compressor old) {
+        if (old != null && old != batchCompressor) {
+            old.end();
+        }
+    }
+
+    /**
+     * End the compressor of the last batch, if it has been replaced meanwhile (or the writer stops). Called by
+     * the writer with the lock held.
+     */
+    private void endBatchCompressor() {
+        if (batchCompressor != null && batchCompressor != compressor) {
+            batchCompressor.end();
+        }
+        batchCompressor = null;
+    }
+
+    /**
+     * Put a batch which could not be written back to the front of the queue, if the queue is resumable. The
+     * commands may have been partly received by the server, then they are sent twice.
+     * <p>
+     * Writing is suspended until the next resume(), unless the connection has been replaced while the batch was
+     * being written. Then the batch is sent on the new connection right away, after the first command of the
+     * resume (the login must reach the new server before the messages).
+     *
+     * @param batch  The commands which could not be written
+     * @param failed The stream the batch was written to
+     * @return true if requeued, false if the queue is not resumable
+     */
+    private boolean requeue(List<Pending> batch, OutputStream failed) {
+        lock.lock();
+        try {
+            if (!resumable || closedCause != null) {
+                return false;
+            }
+            boolean resumed = failed != out;
+            Pending first = resumed && queue.peek() == resumeFirst ? queue.poll() : null;
+            for (int i = batch.size() - 1; i >= 0; i--) {
+                Pending p = batch.get(i);
+                queue.addFirst(p);
+                if (p.bytes != null) {
+                    queuedBytes += p.bytes.length + 1;
+                }
+                if (p.flushNow) {
+                    flushRequests++;
+                }
+            }
+            if (first != null) {
+                queue.addFirst(first);
+            }
+            if (resumed) {
+                changed.signal();
+            } else {
+                suspended = true;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private CompletableFuture<Void> add(Pending pending) {
+        lock.lock();
+        try {
+            if (closedCause != null) {
+                pending.future.completeExceptionally(closedCause);
+            } else {
+                queue.add(pending);
+                if (pending.bytes != null) {
+                    queuedBytes += pending.bytes.length + 1;
+                }
+                if (pending.flushNow) {
+                    flushRequests++;
+                }
+                changed.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return pending.future;
+    }
+
+    /**
+     * Wait until a batch is ready to be sent and move it to the given list.
+     *
+     * @return The stream to write the batch to, null when the queue is closed
+     */
+    private OutputStream takeBatch(List<Pending> batch) {
+        lock.lock();
+        try {
+            do {
+                while (closedCause == null && (suspended || negotiating || queue.isEmpty())) {
+                    changed.awaitUninterruptibly();
+                }
+                if (closedCause != null) {
+                    return null;
+                }
+                long deadline = queue.peek().enqueuedAt + lingerNanos;
+                long remaining;
+                while (closedCause == null && !suspended && !negotiating && !lowLatency && flushRequests == 0
+                        && queuedBytes < maxBatchBytes && (remaining = deadline - System.nanoTime()) > 0) {
+                    try {
+                        changed.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                if (closedCause != null) {
+                    return null;
+                }
+                // If suspended while lingering, wait for the new connection
+            } while (suspended || negotiating);
+            batch.addAll(queue);
+            batchFraming = framing;
+            endBatchCompressor();
+            batchCompressor = compressor;
+            queue.clear();
+            queuedBytes = 0;
+            flushRequests = 0;
+            return out;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A command waiting to be sent. A flush request has no bytes.
+     */
+    private static class Pending {
+        private final byte[] bytes;
+        private final boolean flushNow;
+        private final long enqueuedAt = System.nanoTime();
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Pending(byte[] bytes, boolean flushNow) {
+            this.bytes = bytes;
+            this.flushNow = flushNow;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package no.ntnu;
+
+/**
+ * What to do when a new event arrives from the server but the event queue to the listeners is full
+ */
+public enum OverflowPolicy {
+    /**
+     * Wait until the listeners have processed an event. Nothing is lost, but reading from the socket stops
+     * while the queue is full. Connection state changes (disconnect, reconnecting) are queued without waiting.
+     */
+    BLOCK,
+
+    /**
+     * Throw away the oldest queued event to make room for the new one. Reading never stops, but listeners may
+     * miss events.
+     */
+    DROP_OLDEST,
+
+    /**
+     * A new user list or command list replaces the one still waiting in the queue, since only the latest state
+     * matters. Other events (messages, errors) are never lost: they wait for space like with BLOCK.
+     */
+    COALESCE
+}
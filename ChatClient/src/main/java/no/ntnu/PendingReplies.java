@@ -0,0 +1,127 @@
+package no.ntnu;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Requests sent to the server which are still waiting for a reply. The chat protocol has no request IDs, but the
+ * server answers the requests of one connection in the order they were sent. So a reply always belongs to the
+ * oldest pending request of the matching kind: loginok/loginerr to a login, users to a user list request,
+ * supported to a help request. A cmderror answers the oldest pending request of any kind, the one the server
+ * did not understand, so that request fails.
+ * <p>
+ * Every request of these kinds must be registered here, also the ones nobody waits for, otherwise the
+ * replies would be matched with the wrong requests. The register and send steps must happen in the same order,
+ * so callers hold the lock of this object while doing both.
+ */
+class PendingReplies {
+    private final ArrayDeque<CompletableFuture<LoginResult>> logins = new ArrayDeque<>();
+    private final ArrayDeque<CompletableFuture<String[]>> userLists = new ArrayDeque<>();
+    private final ArrayDeque<CompletableFuture<String[]>> supportedLists = new ArrayDeque<>();
+    // The kinds of all the pending requests, LOGIN, USERS or HELP, in the order they were sent
+    private final ArrayDeque<ChatCommand> order = new ArrayDeque<>();
+
+    /**
+     * Register a sent login request.
+     */
+    synchronized void expectLogin(CompletableFuture<LoginResult> reply) {
+        logins.add(reply);
+        order.add(ChatCommand.LOGIN);
+    }
+
+    /**
+     * Register a sent user list request.
+     */
+    synchronized void expectUsers(CompletableFuture<String[]> reply) {
+        userLists.add(reply);
+        order.add(ChatCommand.USERS);
+    }
+
+    /**
+     * Register a sent help request.
+     */
+    synchronized void expectSupported(CompletableFuture<String[]> reply) {
+        supportedLists.add(reply);
+        order.add(ChatCommand.HELP);
+    }
+
+    /**
+     * Take the oldest pending login request.
+     *
+     * @return The future waiting for the reply, null if a login reply was not expected
+     */
+    synchronized CompletableFuture<LoginResult> nextLogin() {
+        order.removeFirstOccurrence(ChatCommand.LOGIN);
+        return logins.poll();
+    }
+
+    /**
+     * Take the oldest pending user list request.
+     *
+     * @return The future waiting for the reply, null if a user list was not expected
+     */
+    synchronized CompletableFuture<String[]> nextUsers() {
+        order.removeFirstOccurrence(ChatCommand.USERS);
+        return userLists.poll();
+    }
+
+    /**
+     * Take the oldest pending help request.
+     *
+     * @return The future waiting for the reply, null if a command list was not expected
+     */
+    synchronized CompletableFuture<String[]> nextSupported() {
+        order.removeFirstOccurrence(ChatCommand.HELP);
+        return supportedLists.poll();
+    }
+
+    /**
+     * Fail the oldest pending request, of any kind. Used when the server answers with a cmderror.
+     *
+     * @param cause Why the request failed
+     * @return The kind of the failed request (LOGIN, USERS or HELP), null if no request was pending
+     */
+    ChatCommand failOldest(Throwable cause) {
+        ChatCommand kind;
+        CompletableFuture<?> failed;
+        synchronized (this) {
+            kind = order.poll();
+            if (kind == ChatCommand.LOGIN) {
+                failed = logins.poll();
+            } else if (kind == ChatCommand.USERS) {
+                failed = userLists.poll();
+            } else if (kind == ChatCommand.HELP) {
+                failed = supportedLists.poll();
+            } else {
+                failed = null;
+            }
+        }
+        if (failed != null) {
+            failed.completeExceptionally(cause);
+        }
+        return kind;
+    }
+
+    /**
+     * Fail all the pending requests, for example when the connection is closed.
+     *
+     * @param cause Why no reply will arrive
+     */
+    void failAll(Throwable cause) {
+        List<CompletableFuture<?>> failed = new ArrayList<>();
+        synchronized (this) {
+            failed.addAll(logins);
+            failed.addAll(userLists);
+            failed.addAll(supportedLists);
+            logins.clear();
+            userLists.clear();
+            supportedLists.clear();
+            order.clear();
+        }
+        for (CompletableFuture<?> f : failed) {
+            f.completeExceptionally(cause);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package no.ntnu;
+
+/**
+ * Polls with a delay between a minimum and a maximum: the minimum after a change, doubled after every unchanged
+ * list. Fixed-rate polling is the case where the minimum and the maximum are the same. A negative minimum
+ * disables polling.
+ */
+class PollingPresenceStrategy implements PresenceStrategy {
+    private final long minDelay;
+    private final long maxDelay;
+    private final boolean refreshOnUnknownSender;
+
+    /**
+     * @param minDelay               Delay in milliseconds after a change, NEVER to disable polling
+     * @param maxDelay               Longest delay in milliseconds
+     * @param refreshOnUnknownSender When true, a message from an unknown user triggers a refresh
+     */
+    PollingPresenceStrategy(long minDelay, long maxDelay, boolean refreshOnUnknownSender) {
+        if (minDelay >= 0 && maxDelay < minDelay) {
+            throw new IllegalArgumentException("Maximum delay less than minimum delay");
+        }
+        this.minDelay = minDelay;
+        this.maxDelay = maxDelay;
+        this.refreshOnUnknownSender = refreshOnUnknownSender;
+    }
+
+    @Override
+    public long nextDelayMillis(long previousDelay, boolean changed) {
+        long delay;
+        if (minDelay < 0) {
+            delay = NEVER;
+        } else if (changed || previousDelay < minDelay) {
+            delay = minDelay;
+        } else {
+            delay = Math.min(previousDelay * 2, maxDelay);
+        }
+        return delay;
+    }
+
+    @Override
+    public boolean refreshOnUnknownSender() {
+        return refreshOnUnknownSender;
+    }
+}
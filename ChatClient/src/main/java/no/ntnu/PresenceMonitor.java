@@ -0,0 +1,140 @@
+package no.ntnu;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the user list of one client up to date by asking the server for it when the presence strategy says
+ * so. The requests of all the clients are timed by one shared scheduler thread, which only queues the request:
+ * no thread sleeps per client. The replies are reported by the client's reader, which also reports the
+ * senders of incoming messages, so that a message from an unknown user can trigger a refresh.
+ */
+class PresenceMonitor {
+    // Shared by all the clients, created when the first monitor starts
+    private static ScheduledExecutorService scheduler;
+
+    private final PresenceStrategy strategy;
+    private final Supplier<CompletableFuture<String[]>> request;
+
+    // The following fields are guarded by this
+    private final UserListModel users = new UserListModel();
+    private long delay = 0;
+    private ScheduledFuture<?> nextPoll;
+    private boolean requestInFlight = false;
+    private boolean stopped = false;
+
+    /**
+     * @param strategy Decides when to ask for the user list
+     * @param request  Sends a user list request to the server
+     */
+    PresenceMonitor(PresenceStrategy strategy, Supplier<CompletableFuture<String[]>> request) {
+        this.strategy = strategy;
+        this.request = request;
+    }
+
+    /**
+     * Start monitoring: ask for the user list right away, unless the strategy never polls.
+     */
+    synchronized void start() {
+        if (strategy.nextDelayMillis(0, true) != PresenceStrategy.NEVER) {
+            refresh();
+        }
+    }
+
+    /**
+     * Stop monitoring, no more requests will be sent.
+     */
+    synchronized void stop() {
+        stopped = true;
+        cancelNextPoll();
+    }
+
+    /**
+     * Called when a user list is received from the server, whoever asked for it.
+     *
+     * @param usernames The connected users
+     */
+    synchronized void onUserList(String[] usernames) {
+        boolean changed = users.update(usernames) != null;
+        requestInFlight = false;
+        scheduleNextPoll(changed);
+    }
+
+    /**
+     * Called when a message is received from the server.
+     *
+     * @param sender Username of the sender
+     */
+    synchronized void onMessage(String sender) {
+        if (strategy.refreshOnUnknownSender() && !users.contains(sender)) {
+            refresh();
+        }
+    }
+
+    /**
+     * Called by the scheduler when it is time to poll
+     */
+    private synchronized void poll() {
+        nextPoll = null;
+        refresh();
+    }
+
+    /**
+     * Ask for the user list now, unless a request is already waiting for the reply.
+     */
+    private void refresh() {
+        if (stopped || requestInFlight) {
+            return;
+        }
+        cancelNextPoll();
+        requestInFlight = true;
+        request.get().whenComplete((list, error) -> {
+            if (error != null) {
+                // Not sent, or the connection was closed (a reconnecting client fails its pending requests).
+                // No reply will come to schedule the next poll, so back off as if the list had not changed.
+                synchronized (this) {
+                    requestInFlight = false;
+                    scheduleNextPoll(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Schedule the next poll after the delay the strategy decides, replacing any poll already scheduled.
+     *
+     * @param changed True when the last user list was different from the one before it
+     */
+    private void scheduleNextPoll(boolean changed) {
+        delay = strategy.nextDelayMillis(delay, changed);
+        cancelNextPoll();
+        if (!stopped && delay != PresenceStrategy.NEVER) {
+            nextPoll = scheduler().schedule(this::poll, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void cancelNextPoll() {
+        if (nextPoll != null) {
+            nextPoll.cancel(false);
+            nextPoll = null;
+        }
+    }
+
+    /**
+     * @return The scheduler shared by all the monitors
+     */
+    private static synchronized ScheduledExecutorService scheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread t = new Thread(task, "chat-presence");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return scheduler;
+    }
+}
@@ -0,0 +1,60 @@
+package no.ntnu;
+
+/**
+ * Decides how often a client asks the server for the list of connected users. Strategies are stateless, so one
+ * strategy object can be shared by many clients.
+ */
+public interface PresenceStrategy {
+    /**
+     * Returned by {@link #nextDelayMillis(long, boolean)} when the client should not poll
+     */
+    long NEVER = -1;
+
+    /**
+     * Decide when to ask for the user list next time.
+     *
+     * @param previousDelay The previous delay in milliseconds, 0 when the client just connected
+     * @param changed       True when the last user list was different from the one before it
+     *                      (always true when the client just connected)
+     * @return Milliseconds to wait before the next request, or NEVER to stop polling
+     */
+    long nextDelayMillis(long previousDelay, boolean changed);
+
+    /**
+     * @return true when a message from a user who is not in the current user list should trigger an immediate
+     * refresh of the list
+     */
+    boolean refreshOnUnknownSender();
+
+    /**
+     * Ask for the user list at a fixed interval.
+     *
+     * @param intervalMillis Milliseconds between two requests
+     * @return The strategy
+     */
+    static PresenceStrategy fixed(long intervalMillis) {
+        return new PollingPresenceStrategy(intervalMillis, intervalMillis, false);
+    }
+
+    /**
+     * Ask for the user list often while it changes, and less and less often while it stays the same: the
+     * delay starts at minMillis and doubles after every unchanged list, up to maxMillis. A message from an
+     * unknown user triggers an immediate refresh.
+     *
+     * @param minMillis Delay after a change
+     * @param maxMillis Longest delay
+     * @return The strategy
+     */
+    static PresenceStrategy adaptive(long minMillis, long maxMillis) {
+        return new PollingPresenceStrategy(minMillis, maxMillis, true);
+    }
+
+    /**
+     * Never ask for the user list: the server sends the user list by itself whenever it changes.
+     *
+     * @return The strategy
+     */
+    static PresenceStrategy push() {
+        return new PollingPresenceStrategy(NEVER, NEVER, false);
+    }
+}
@@ -0,0 +1,61 @@
+package no.ntnu;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How a TCPClient reconnects after losing the connection: exponential back-off with jitter. The delay before
+ * attempt n is about initialDelay * 2^(n-1), capped at maxDelay, and randomized between half and all of it, so
+ * that many clients dropped by the same server restart do not all reconnect at the same moment.
+ */
+public class ReconnectPolicy {
+    // Unlimited number of attempts
+    public static final int FOREVER = 0;
+
+    private final long initialDelay;
+    private final long maxDelay;
+    private final int maxAttempts;
+
+    /**
+     * @param initialDelayMillis Delay before the first attempt, in milliseconds
+     * @param maxDelayMillis     Longest delay between two attempts, in milliseconds
+     * @param maxAttempts        How many times to try before giving up, FOREVER to never give up
+     */
+    public ReconnectPolicy(long initialDelayMillis, long maxDelayMillis, int maxAttempts) {
+        if (initialDelayMillis <= 0 || maxDelayMillis < initialDelayMillis || maxAttempts < 0) {
+            throw new IllegalArgumentException("Invalid reconnect policy");
+        }
+        this.initialDelay = initialDelayMillis;
+        this.maxDelay = maxDelayMillis;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * @return Policy starting with a delay of 0.5 seconds, up to 30 seconds, never giving up
+     */
+    public static ReconnectPolicy defaultPolicy() {
+        return new ReconnectPolicy(500, 30000, FOREVER);
+    }
+
+    /**
+     * @param attempt Number of the attempt, starting from 1
+     * @return true if this attempt is allowed
+     */
+    public boolean shouldRetry(int attempt) {
+        return maxAttempts == FOREVER || attempt <= maxAttempts;
+    }
+
+    /**
+     * @param attempt Number of the attempt, starting from 1
+     * @return Milliseconds to wait before the attempt
+     */
+    public long delayMillis(int attempt) {
+        long delay = maxDelay;
+        int doublings = attempt - 1;
+        // Avoid overflow: after enough doublings the delay is capped anyway
+        if (doublings < 62 && initialDelay <= maxDelay >> doublings) {
+            delay = initialDelay << doublings;
+        }
+        long half = delay / 2;
+        return half + ThreadLocalRandom.current().nextLong(delay - half + 1);
+    }
+}
@@ -0,0 +1,158 @@
+package no.ntnu;
+
+/**
+ * Measures the round-trip time of the chat commands that get a reply: login, users and help. The send time
+ * of every such command is recorded, and matched with the next reply of the right kind - the server answers
+ * the commands of one connection in order, see {@link PendingReplies}. The times are recorded in latency
+ * histograms, one per command. Thread safe; recording does not allocate.
+ */
+final class RoundTripTracker {
+    private static final ChatCommand[] TRACKED = {ChatCommand.LOGIN, ChatCommand.USERS, ChatCommand.HELP};
+
+    // Indexed by ChatCommand ordinal, null for the commands without a reply
+    private final SendTimes[] sendTimes = new SendTimes[ChatCommand.values().length];
+    private final LatencyHistogram[] histograms = new LatencyHistogram[ChatCommand.values().length];
+    private final long[] lastRoundTrip = new long[ChatCommand.values().length];
+
+    /**
+     * @param metrics Where the round-trip histograms are registered, as "client.rtt.COMMAND"
+     */
+    RoundTripTracker(MetricsRegistry metrics) {
+        for (ChatCommand command : TRACKED) {
+            sendTimes[command.ordinal()] = new SendTimes();
+            histograms[command.ordinal()] = metrics.histogram("client.rtt." + command.word());
+        }
+    }
+
+    /**
+     * Find the command a reply answers.
+     *
+     * @param reply A reply from the server
+     * @return The command, or null if the reply is not an answer to a tracked command
+     */
+    static ChatCommand requestOf(ChatCommand reply) {
+        switch (reply) {
+            case LOGINOK:
+            case LOGINERR:
+                return ChatCommand.LOGIN;
+            case USERS:
+                return ChatCommand.USERS;
+            case SUPPORTED:
+                return ChatCommand.HELP;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Record that a command was sent. Commands without a reply are ignored.
+     *
+     * @param command   The command
+     * @param sentNanos When it was sent, from System.nanoTime()
+     */
+    synchronized void sent(ChatCommand command, long sentNanos) {
+        SendTimes times = sendTimes[command.ordinal()];
+        if (times != null) {
+            times.add(sentNanos);
+        }
+    }
+
+    /**
+     * Record that a reply was received, and the round-trip time of the command it answers. Only for a reply
+     * which answered a pending request: a user list the server sends on its own would otherwise take the send
+     * time of a request still waiting for its reply.
+     *
+     * @param reply         The reply
+     * @param receivedNanos When it was received, from System.nanoTime()
+     */
+    synchronized void received(ChatCommand reply, long receivedNanos) {
+        ChatCommand command = requestOf(reply);
+        if (command == null) {
+            return;
+        }
+        SendTimes times = sendTimes[command.ordinal()];
+        if (!times.isEmpty()) {
+            long roundTrip = receivedNanos - times.poll();
+            histograms[command.ordinal()].record(roundTrip);
+            lastRoundTrip[command.ordinal()] = roundTrip;
+        }
+    }
+
+    /**
+     * Forget the oldest command of a kind waiting for a reply, when the server answered it with an error.
+     * No round-trip time is recorded for it.
+     *
+     * @param command The command, LOGIN, USERS or HELP
+     */
+    synchronized void failed(ChatCommand command) {
+        SendTimes times = sendTimes[command.ordinal()];
+        if (times != null && !times.isEmpty()) {
+            times.poll();
+        }
+    }
+
+    /**
+     * Forget the commands waiting for a reply, when their replies will never come (the connection is closed).
+     */
+    synchronized void clear() {
+        for (SendTimes times : sendTimes) {
+            if (times != null) {
+                times.clear();
+            }
+        }
+    }
+
+    /**
+     * @param command A command
+     * @return The round-trip times of the command, null if it has no reply
+     */
+    LatencyHistogram histogram(ChatCommand command) {
+        return histograms[command.ordinal()];
+    }
+
+    /**
+     * @param command A command
+     * @return The round-trip time of the last reply to the command in nanoseconds, 0 if none yet
+     */
+    synchronized long last(ChatCommand command) {
+        return lastRoundTrip[command.ordinal()];
+    }
+
+    /**
+     * A FIFO ring of send times
+     */
+    private static final class SendTimes {
+        private long[] times = new long[16];
+        private int head = 0;
+        private int size = 0;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void add(long time) {
+            if (size == times.length) {
+                long[] bigger = new long[size * 2];
+                for (int i = 0; i < size; i++) {
+                    bigger[i] = times[(head + i) % times.length];
+                }
+                times = bigger;
+                head = 0;
+            }
+            times[(head + size) % times.length] = time;
+            size++;
+        }
+
+        long poll() {
+            long time = times[head];
+            head = (head + 1) % times.length;
+            size--;
+            return time;
+        }
+
+        void clear() {
+            head = 0;
+            size = 0;
+        }
+    }
+}
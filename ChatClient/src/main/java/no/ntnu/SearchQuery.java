@@ -0,0 +1,103 @@
+package no.ntnu;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A search in the message history: keywords which must all be in the message text, and optionally the
+ * sender and whether the message is private. Written as text, for example
+ * {@code from:alice is:private meeting tomorrow}.
+ */
+public final class SearchQuery {
+    private static final String SENDER_PREFIX = "from:";
+    private static final String PRIVATE = "is:private";
+    private static final String PUBLIC = "is:public";
+
+    private final List<String> terms;
+    private final String sender;
+    private final Boolean priv;
+
+    /**
+     * @param terms  Keywords which must all be in the text (in any case), may be empty
+     * @param sender Username of the sender, or null for any sender
+     * @param priv   True for private messages only, false for public messages only, null for both
+     */
+    public SearchQuery(List<String> terms, String sender, Boolean priv) {
+        List<String> normalized = new ArrayList<>();
+        for (String term : terms) {
+            normalized.addAll(MessageIndex.tokenizeQuery(term));
+        }
+        this.terms = Collections.unmodifiableList(normalized);
+        this.sender = sender;
+        this.priv = priv;
+    }
+
+    /**
+     * Parse a query: "from:USERNAME" selects the sender, "is:private" and "is:public" the kind of messages,
+     * all the other words are keywords.
+     *
+     * @param query The query text
+     * @return The query
+     */
+    public static SearchQuery parse(String query) {
+        List<String> terms = new ArrayList<>();
+        String sender = null;
+        Boolean priv = null;
+        for (String word : query.trim().split("\\s+")) {
+            if (word.startsWith(SENDER_PREFIX) && word.length() > SENDER_PREFIX.length()) {
+                sender = word.substring(SENDER_PREFIX.length());
+            } else if (word.equalsIgnoreCase(PRIVATE)) {
+                priv = Boolean.TRUE;
+            } else if (word.equalsIgnoreCase(PUBLIC)) {
+                priv = Boolean.FALSE;
+            } else if (!word.isEmpty()) {
+                terms.add(word);
+            }
+        }
+        return new SearchQuery(terms, sender, priv);
+    }
+
+    /**
+     * @return Normalized keywords (lower case, without punctuation), all must match
+     */
+    public List<String> getTerms() {
+        return terms;
+    }
+
+    /**
+     * @return Username of the sender, or null for any sender
+     */
+    public String getSender() {
+        return sender;
+    }
+
+    /**
+     * @return True for private messages only, false for public messages only, null for both
+     */
+    public Boolean getPrivate() {
+        return priv;
+    }
+
+    /**
+     * @return true when the query matches every message
+     */
+    public boolean isEmpty() {
+        return terms.isEmpty() && sender == null && priv == null;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        if (sender != null) {
+            s.append(SENDER_PREFIX).append(sender).append(' ');
+        }
+        if (priv != null) {
+            s.append(priv ? PRIVATE : PUBLIC).append(' ');
+        }
+        for (String term : terms) {
+            s.append(term).append(' ');
+        }
+        return s.toString().trim();
+    }
+}
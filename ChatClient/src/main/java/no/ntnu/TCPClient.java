@@ -2,18 +2,123 @@ package no.ntnu;
 
 import java.io.*;
 import java.net.*;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class TCPClient {
-    private PrintWriter toServer;
-    private BufferedReader fromServer;
-    private Socket connection;
+    // Outgoing commands are batched: sent when this many bytes are queued, or after the linger time
+    private static final int OUTBOUND_BATCH_BYTES = 16 * 1024;
+    private static final long OUTBOUND_LINGER_MILLIS = 2;
+    // How long disconnect() waits for the queued commands to be sent
+    private static final long DISCONNECT_FLUSH_MILLIS = 500;
+    // How long to wait for the answer to the framing request at most, then the client stays with text lines
+    private static final int FRAMING_NEGOTIATION_TIMEOUT_MILLIS = 3000;
+
+    // Queue of commands waiting to be sent, written by a background task
+    private OutboundQueue toServer;
+    private boolean lowLatency = false;
+    private InputStream fromServer;
+    private volatile Socket connection;
+    // Where we are connected, to reconnect to the same server
+    private String host;
+    private int port;
+    // Socket settings, applied when connecting and reconnecting
+    private volatile ConnectionOptions options = ConnectionOptions.defaults();
+    // True when nothing has been received for the read timeout, and a request has been sent to check that the
+    // server is still there. Accessed only by the listening task.
+    private boolean probing = false;
+    // Splits the incoming bytes into commands, reused for the whole connection
+    private CommandDecoder decoder;
+    // Ask the server for binary framing after connecting
+    private boolean binaryFraming = false;
+    // The framing agreed with the server on the current connection
+    private volatile Framing framing = Framing.TEXT;
+    // True while waiting for the server's answer to the framing request
+    private volatile boolean negotiatingFraming = false;
+    // Ask the server for compression once binary framing is agreed
+    private boolean compression = false;
+    private int compressionThreshold = Compression.DEFAULT_THRESHOLD;
+    // True while waiting for the server's answer to the compression request
+    private volatile boolean negotiatingCompression = false;
+    // True once the server has agreed to compression on the current connection
+    private volatile boolean compressing = false;
 
     // Hint: if you want to store a message for the last error, store it here
     private String lastError = null;
 
-    private final List<ChatListener> listeners = new LinkedList<>();
+    private final ListenerRegistry listeners = new ListenerRegistry();
+
+    // Default size of the queue between the socket reader and the listeners
+    private static final int DEFAULT_EVENT_QUEUE_CAPACITY = 1024;
+
+    // Traffic, timing and connection metrics of this client
+    private final ClientMetrics metrics;
+    // Round-trip times of the commands with a reply
+    private final RoundTripTracker roundTrips;
+
+    // Delivers the received events to the listeners
+    private EventDispatcher dispatcher;
+
+    // Requests waiting for a reply from the server
+    private final PendingReplies pendingReplies = new PendingReplies();
+
+    // Decides how often the user list is refreshed, null for no automatic refresh
+    private PresenceStrategy presenceStrategy = null;
+    // Refreshes the user list while listening, null when not monitoring
+    private PresenceMonitor presence;
+
+    // How to reconnect after losing the connection, null to not reconnect
+    private volatile ReconnectPolicy reconnectPolicy = null;
+    // True while the connection is lost and the client is trying to reconnect
+    private volatile boolean reconnecting = false;
+    // True once disconnect() has been called (or the client gave up reconnecting). Changed only while holding
+    // the lock of this client.
+    private volatile boolean closing = false;
+    // The username of the last successful login, used to log in again after reconnecting
+    private volatile String lastUsername = null;
+
+    // Runs the background tasks of this client, such as listening for incoming commands
+    private final Executor executor;
+
+    /**
+     * Create a chat client which runs its background tasks on the shared executor, configured at launch
+     * (see {@link ExecutionMode}).
+     */
+    public TCPClient() {
+        this(ExecutionMode.defaultExecutor());
+    }
+
+    /**
+     * Create a chat client which runs its background tasks on the given executor. Many clients can share one
+     * executor, for example one running virtual threads.
+     *
+     * @param executor Executor for the background tasks. Each connected client occupies three tasks: one
+     *                 listening for incoming commands, one writing outgoing commands and one delivering
+     *                 events to the listeners.
+     */
+    public TCPClient(Executor executor) {
+        this(executor, new MetricsRegistry());
+    }
+
+    /**
+     * Create a chat client which runs its background tasks on the given executor and registers its metrics in
+     * the given registry. Clients sharing a registry add up their metrics.
+     *
+     * @param executor Executor for the background tasks, see {@link #TCPClient(Executor)}
+     * @param metrics  Registry for the metrics of the client
+     */
+    public TCPClient(Executor executor, MetricsRegistry metrics) {
+        this.executor = executor;
+        this.metrics = new ClientMetrics(metrics);
+        this.roundTrips = new RoundTripTracker(metrics);
+        this.dispatcher = new EventDispatcher(DEFAULT_EVENT_QUEUE_CAPACITY, OverflowPolicy.BLOCK, listeners,
+                this.metrics.dispatchTime);
+    }
 
     /**
      * Connect to a chat server.
@@ -27,13 +132,31 @@ public class TCPClient {
         // Hint: Remember to set up all the necessary input/output stream variables
         boolean connected;
         try {
-            connection = new Socket(host, port);
-            toServer = new PrintWriter(connection.getOutputStream(), true);
-            fromServer = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+            connection = openSocket(host, port);
+            probing = false;
+            this.host = host;
+            this.port = port;
+            synchronized (this) {
+                closing = false;
+            }
+            toServer = new OutboundQueue(connection.getOutputStream(), OUTBOUND_BATCH_BYTES, OUTBOUND_LINGER_MILLIS,
+                    metrics.bytesSent);
+            toServer.setLowLatency(lowLatency);
+            toServer.setResumable(reconnectPolicy != null);
+            fromServer = connection.getInputStream();
+            decoder = new CommandDecoder();
+            framing = Framing.TEXT;
+            if (binaryFraming) {
+                requestBinaryFraming(connection);
+            }
+            executor.execute(toServer);
+            dispatcher.start(executor);
             connected = true;
+            metrics.connects.increment();
         }
         catch (IOException e) {
             connected = false;
+            metrics.connectFailures.increment();
         }
         return connected;
     }
@@ -49,9 +172,27 @@ public class TCPClient {
      */
     public synchronized void disconnect() {
         // Hint: remember to check if connection is active
-        if (!this.connection.isClosed()) {
+        if (this.connection != null && !this.closing) {
             try {
+                this.closing = true;
+                // Wake up the reconnecting task, if it is waiting
+                this.notifyAll();
+                if (this.reconnecting) {
+                    this.reconnecting = false;
+                }
+                else {
+                    flushBeforeClose();
+                }
+                IOException cause = new IOException("Disconnected");
+                this.toServer.close(cause);
+                if (this.presence != null) {
+                    this.presence.stop();
+                    this.presence = null;
+                }
                 this.connection.close();
+                this.pendingReplies.failAll(cause);
+                this.roundTrips.clear();
+                this.metrics.disconnects.increment();
                 this.onDisconnect();
             }
             catch (IOException e) {
@@ -61,11 +202,31 @@ public class TCPClient {
     }
 
     /**
-     * @return true if the connection is active (opened), false if not.
+     * Give the queued commands a short time to be sent before the socket is closed.
+     */
+    private void flushBeforeClose() {
+        try {
+            toServer.flush().get(DISCONNECT_FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        catch (ExecutionException | TimeoutException e) {
+            // The commands could not be sent, their futures report the error
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return true if the connection is active (opened), false if not. While reconnecting, the connection is
+     * considered active: commands are queued and sent once reconnected.
      */
     public boolean isConnectionActive() {
         boolean connectionActive;
-        if (connection == null) {
+        Socket socket = connection;
+        if (reconnecting) {
+            connectionActive = true;
+        }
+        else if (socket == null || socket.isClosed()) {
             connectionActive = false;
         }
         else {
@@ -75,42 +236,372 @@ public class TCPClient {
     }
 
     /**
-     * Send a command to server.
+     * Reconnect automatically when the connection is lost: the client tries to connect to the same server again,
+     * logs in with the last username, and sends the commands queued in the meantime. Must be set before
+     * connecting.
+     *
+     * @param policy When and how many times to try, null to not reconnect
+     */
+    public void setReconnectPolicy(ReconnectPolicy policy) {
+        this.reconnectPolicy = policy;
+    }
+
+    /**
+     * @return true while the connection is lost and the client is trying to reconnect
+     */
+    public boolean isReconnecting() {
+        return reconnecting;
+    }
+
+    /**
+     * Set the socket options: timeouts, Nagle's algorithm, buffer sizes and keep-alive. They are applied when
+     * connecting (and reconnecting). Also switches low-latency mode according to the options, see
+     * {@link #setLowLatency(boolean)}.
+     *
+     * @param options The options, for example {@link ConnectionOptions#lowLatencyInteractive()}
+     */
+    public void setConnectionOptions(ConnectionOptions options) {
+        this.options = options;
+        this.setLowLatency(options.isLowLatency());
+    }
+
+    /**
+     * @return The socket options used when connecting
+     */
+    public ConnectionOptions getConnectionOptions() {
+        return options;
+    }
+
+    /**
+     * Open a socket to the chat server, with the connection options.
+     */
+    private Socket openSocket(String host, int port) throws IOException {
+        ConnectionOptions options = this.options;
+        Socket socket = new Socket();
+        try {
+            options.applyTo(socket);
+            socket.connect(new InetSocketAddress(host, port), options.getConnectTimeoutMillis());
+        }
+        catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    /**
+     * Ask the server for binary framing. The request is written directly to the new socket, before any queued
+     * command, and the queue holds the commands until the answer arrives (see parseIncomingCommands()). A server
+     * which ignores the request holds them only until the negotiation times out, see waitServerResponse().
+     */
+    private void requestBinaryFraming(Socket socket) throws IOException {
+        negotiatingCompression = false;
+        compressing = false;
+        toServer.startNegotiation();
+        negotiatingFraming = true;
+        byte[] request = Framing.TEXT.encode(Framing.REQUEST);
+        OutputStream out = socket.getOutputStream();
+        out.write(request);
+        out.flush();
+        metrics.bytesSent.add(request.length);
+        metrics.commandSent(ChatCommand.FRAMING);
+        // Until the answer arrives, or the read timeout if it is shorter
+        int timeout = options.getReadTimeoutMillis();
+        if (timeout == ConnectionOptions.INFINITE || timeout > FRAMING_NEGOTIATION_TIMEOUT_MILLIS) {
+            timeout = FRAMING_NEGOTIATION_TIMEOUT_MILLIS;
+        }
+        socket.setSoTimeout(timeout);
+    }
+
+    /**
+     * Handle the server's answer to the framing request: use the agreed framing from now on, and send the
+     * commands held meanwhile.
+     *
+     * @param agreed The framing to use
+     */
+    private void finishFramingNegotiation(Framing agreed) {
+        negotiatingFraming = false;
+        try {
+            connection.setSoTimeout(options.getReadTimeoutMillis());
+        }
+        catch (SocketException e) {
+            // Closed meanwhile, the next read fails
+        }
+        framing = agreed;
+        decoder.setFraming(agreed);
+        String compressionRequest = null;
+        if (agreed == Framing.BINARY && compression) {
+            // Sent before the held commands. Nothing waits for the answer: until it arrives, the commands are
+            // just sent uncompressed.
+            negotiatingCompression = true;
+            compressionRequest = Compression.REQUEST;
+            metrics.commandSent(ChatCommand.COMPRESSION);
+        }
+        toServer.finishNegotiation(agreed, compressionRequest);
+    }
+
+    /**
+     * Handle the server's answer to the compression request.
+     *
+     * @param accepted True if the server has agreed to compression
+     */
+    private void finishCompressionNegotiation(boolean accepted) {
+        negotiatingCompression = false;
+        if (accepted) {
+            // Compressed frames from the server may follow right after the answer. The decoder and the queue
+            // end the ones they replace, and these when the connection is closed.
+            decoder.setDecompressor(new Compression.Decompressor(CommandDecoder.MAX_LINE_LENGTH,
+                    metrics.compressedReceived, metrics.compressionSavedReceived,
+                    metrics.compressionExpandedReceived));
+            toServer.setCompressor(new Compression.Compressor(compressionThreshold,
+                    metrics.compressedSent, metrics.compressionSavedSent, metrics.compressionExpandedSent));
+            compressing = true;
+        }
+    }
+
+    /**
+     * Called by the listening task when the connection is lost. Tries to reconnect according to the reconnect
+     * policy, waiting between the attempts. The commands queued meanwhile are kept and sent after reconnecting.
+     *
+     * @param cause Why the connection was lost
+     * @return true when reconnected, or when disconnect() was called meanwhile; false when the client does not
+     * reconnect (no policy, or all the attempts failed) and must be disconnected
+     */
+    private boolean reconnect(IOException cause) {
+        ReconnectPolicy policy = reconnectPolicy;
+        synchronized (this) {
+            if (policy == null || closing) {
+                return false;
+            }
+            reconnecting = true;
+        }
+        toServer.suspend();
+        try {
+            connection.close();
+        }
+        catch (IOException e) {
+            // Lost anyway
+        }
+        // The new connection gets a new decoder, and negotiates compression again
+        decoder.release();
+        // The replies to the requests sent on the lost connection will never arrive
+        pendingReplies.failAll(cause);
+        roundTrips.clear();
+
+        for (int attempt = 1; policy.shouldRetry(attempt); attempt++) {
+            long delay = policy.delayMillis(attempt);
+            onReconnecting(attempt, delay);
+            if (!backOff(delay)) {
+                return true;
+            }
+            try {
+                Socket socket = openSocket(host, port);
+                synchronized (this) {
+                    if (closing) {
+                        socket.close();
+                        return true;
+                    }
+                    connection = socket;
+                    probing = false;
+                    fromServer = socket.getInputStream();
+                    decoder = new CommandDecoder();
+                    framing = Framing.TEXT;
+                    if (binaryFraming) {
+                        // The new server may not support it, negotiate again
+                        requestBinaryFraming(socket);
+                    }
+                    String username = lastUsername;
+                    if (username != null) {
+                        // Log in again before sending the queued commands
+                        synchronized (pendingReplies) {
+                            CompletableFuture<LoginResult> relogin = new CompletableFuture<>();
+                            relogin.thenAccept(result -> rememberLogin(username, result));
+                            pendingReplies.expectLogin(relogin);
+                            roundTrips.sent(ChatCommand.LOGIN, System.nanoTime());
+                            toServer.resume(socket.getOutputStream(), "login " + username);
+                            metrics.commandSent(ChatCommand.LOGIN);
+                        }
+                    }
+                    else {
+                        toServer.resume(socket.getOutputStream(), null);
+                    }
+                    reconnecting = false;
+                }
+                metrics.reconnects.increment();
+                onReconnected();
+                return true;
+            }
+            catch (IOException e) {
+                lastError = "Reconnect failed: " + e.getMessage();
+            }
+        }
+        synchronized (this) {
+            reconnecting = false;
+        }
+        return false;
+    }
+
+    /**
+     * Wait before a reconnect attempt.
+     *
+     * @param delayMillis How long to wait
+     * @return true when it is time to try, false if disconnect() was called meanwhile
+     */
+    private synchronized boolean backOff(long delayMillis) {
+        long deadline = System.currentTimeMillis() + delayMillis;
+        long remaining = delayMillis;
+        while (!closing && remaining > 0) {
+            try {
+                wait(remaining);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return !closing;
+    }
+
+    /**
+     * Remember the username of a successful login, to log in again after reconnecting.
+     */
+    private void rememberLogin(String username, LoginResult result) {
+        if (result.isSuccess()) {
+            lastUsername = username;
+        }
+    }
+
+    /**
+     * Send a command to server. The command is queued and sent in a batch together with other commands, see
+     * {@link #setLowLatency(boolean)} and {@link #flush()}.
      *
      * @param cmd A command. It should include the command word and optional attributes, according to the protocol.
-     * @return true on success, false otherwise
+     * @return Future completed when the command has been written to the socket, or completed exceptionally
+     * when it could not be sent
      */
-    private boolean sendCommand(String cmd) {
+    private CompletableFuture<Void> sendCommand(String cmd) {
         // Hint: Remember to check if connection is active
-        boolean sent;
+        CompletableFuture<Void> sent;
         if (this.isConnectionActive() && !cmd.isEmpty()) {
-            toServer.println(cmd);
-            sent = true;
+            ChatCommand command = ChatCommand.ofLine(cmd);
+            // Recorded before queueing, the reply may arrive before enqueue() returns. Matched with the reply
+            // in parseIncomingCommands().
+            roundTrips.sent(command, System.nanoTime());
+            sent = toServer.enqueue(cmd, false);
+            metrics.commandSent(command);
         }
         else {
-            sent = false;
+            sent = failed(new IOException(cmd.isEmpty() ? "Empty command" : "Not connected"));
         }
         return sent;
     }
 
+    /**
+     * Send all the queued commands immediately, without waiting for more commands to batch.
+     *
+     * @return Future completed when all the commands queued so far have been written to the socket
+     */
+    public CompletableFuture<Void> flush() {
+        CompletableFuture<Void> flushed;
+        if (this.isConnectionActive()) {
+            flushed = toServer.flush();
+        }
+        else {
+            flushed = failed(new IOException("Not connected"));
+        }
+        return flushed;
+    }
+
+    /**
+     * Switch low-latency mode on or off. In low-latency mode every command is sent as soon as possible,
+     * otherwise commands wait a couple of milliseconds to be sent in batches. Interactive clients should use
+     * low-latency mode, bots sending many commands benefit from batching.
+     *
+     * @param lowLatency True to send every command immediately
+     */
+    public void setLowLatency(boolean lowLatency) {
+        this.lowLatency = lowLatency;
+        if (this.isConnectionActive()) {
+            toServer.setLowLatency(lowLatency);
+        }
+    }
+
+    /**
+     * Ask the server for binary framing after connecting: commands are sent as length-prefixed frames, which
+     * are cheaper to read than lines and let a message contain line breaks. If the server does not support it,
+     * the client stays with text lines. Must be set before connecting.
+     *
+     * @param binaryFraming True to ask for binary framing
+     */
+    public void setBinaryFraming(boolean binaryFraming) {
+        this.binaryFraming = binaryFraming;
+    }
+
+    /**
+     * @return true if the server has agreed to binary framing on the current connection
+     */
+    public boolean isBinaryFraming() {
+        return framing == Framing.BINARY;
+    }
+
+    /**
+     * Ask the server for compression after connecting: the long messages are compressed in both directions,
+     * with one deflate stream per direction for the whole connection. Works only with binary framing, see
+     * {@link #setBinaryFraming(boolean)}; if the server does not support it, messages are sent uncompressed.
+     * Must be set before connecting.
+     *
+     * @param compression True to ask for compression
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Set the size from which messages are compressed. Shorter messages are sent as they are, compressing them
+     * would save little and take time. Must be set before connecting.
+     *
+     * @param bytes Smallest message (in UTF-8 bytes) to compress
+     */
+    public void setCompressionThreshold(int bytes) {
+        this.compressionThreshold = bytes;
+    }
+
+    /**
+     * @return true if the server has agreed to compression on the current connection
+     */
+    public boolean isCompressing() {
+        return compressing;
+    }
+
     /**
      * Send a public message to all the recipients.
      *
      * @param message Message to send
-     * @return true if message sent, false on error
+     * @return true if message accepted for sending, false on error
      */
     public boolean sendPublicMessage(String message) {
+        return !sendPublicMessageAsync(message).isCompletedExceptionally();
+    }
+
+    /**
+     * Send a public message to all the recipients. A message with several lines is sent as it is with binary
+     * framing, otherwise each line is sent as a message of its own.
+     *
+     * @param message Message to send
+     * @return Future completed when the message has been written to the socket, or completed exceptionally
+     * on error
+     */
+    public CompletableFuture<Void> sendPublicMessageAsync(String message) {
         // Hint: Reuse sendCommand() method
         // Hint: update lastError if you want to store the reason for the error.
-        boolean sent;
+        CompletableFuture<Void> sent;
         if (!message.isEmpty()) {
-            String send = "msg " + message;
-            this.sendCommand(send);
-            sent = true;
+            sent = this.sendMessageLines("msg ", message);
         }
         else {
             lastError = "Message was empty string.";
-            sent = false;
+            sent = failed(new IllegalArgumentException(lastError));
         }
         return sent;
     }
@@ -121,11 +612,32 @@ public class TCPClient {
      * @param username Username to use
      */
     public void tryLogin(String username) {
+        login(username);
+    }
+
+    /**
+     * Send a login request to the chat server. The result is also reported to the listeners.
+     *
+     * @param username Username to use
+     * @return Future completed with the server's answer, or completed exceptionally when the request could not
+     * be sent or the connection was closed before the answer arrived
+     */
+    public CompletableFuture<LoginResult> login(String username) {
         // Hint: Reuse sendCommand() method
+        CompletableFuture<LoginResult> result = new CompletableFuture<>();
         if (!username.isEmpty()) {
             String message = "login " + username;
-            this.sendCommand(message);
+            result.thenAccept(loginResult -> rememberLogin(username, loginResult));
+            synchronized (pendingReplies) {
+                if (trackSent(this.sendCommand(message), result)) {
+                    pendingReplies.expectLogin(result);
+                }
+            }
         }
+        else {
+            result.completeExceptionally(new IllegalArgumentException("Username not specified"));
+        }
+        return result;
     }
 
     /**
@@ -133,9 +645,25 @@ public class TCPClient {
      * clear your current user list and use events in the listener.
      */
     public void refreshUserList() {
+        users();
+    }
+
+    /**
+     * Send a request for latest user list to the server. The list is also reported to the listeners.
+     *
+     * @return Future completed with the usernames of the currently connected users, or completed exceptionally
+     * when the request could not be sent or the connection was closed before the answer arrived
+     */
+    public CompletableFuture<String[]> users() {
         // Hint: Use Wireshark and the provided chat client reference app to find out what commands the
         // client and server exchange for user listing.
-        this.sendCommand("users");
+        CompletableFuture<String[]> result = new CompletableFuture<>();
+        synchronized (pendingReplies) {
+            if (trackSent(this.sendCommand("users"), result)) {
+                pendingReplies.expectUsers(result);
+            }
+        }
+        return result;
     }
 
     /**
@@ -143,60 +671,180 @@ public class TCPClient {
      *
      * @param recipient username of the chat user who should receive the message
      * @param message   Message to send
-     * @return true if message sent, false on error
+     * @return true if message accepted for sending, false on error
      */
     public boolean sendPrivateMessage(String recipient, String message) {
+        return !sendPrivateMessageAsync(recipient, message).isCompletedExceptionally();
+    }
+
+    /**
+     * Send a private message to a single recipient. A message with several lines is sent like in
+     * {@link #sendPublicMessageAsync(String)}.
+     *
+     * @param recipient username of the chat user who should receive the message
+     * @param message   Message to send
+     * @return Future completed when the message has been written to the socket, or completed exceptionally
+     * on error
+     */
+    public CompletableFuture<Void> sendPrivateMessageAsync(String recipient, String message) {
         // Hint: Reuse sendCommand() method
         // Hint: update lastError if you want to store the reason for the error.
 
-        boolean sent = false;
+        CompletableFuture<Void> sent;
         if (recipient.isEmpty() || message.isEmpty()) {
             lastError = "Recipient or message not specified.";
+            sent = failed(new IllegalArgumentException(lastError));
         }
         else {
-            String command = "privmsg " + recipient + " " + message;
-            this.sendCommand(command);
-            sent = true;
+            sent = this.sendMessageLines("privmsg " + recipient + " ", message);
         }
 
         return sent;
     }
 
+    /**
+     * Send a message command. Line breaks would end the command early in text framing, then every line of the
+     * message is sent with a command of its own.
+     *
+     * @param prefix  The command word and the arguments before the message text, ending with a space
+     * @param message The message text
+     * @return Future completed when all the commands have been written to the socket
+     */
+    private CompletableFuture<Void> sendMessageLines(String prefix, String message) {
+        CompletableFuture<Void> sent;
+        if (framing == Framing.BINARY || (message.indexOf('\n') < 0 && message.indexOf('\r') < 0)) {
+            sent = this.sendCommand(prefix + message);
+        }
+        else {
+            List<CompletableFuture<Void>> lines = new ArrayList<>();
+            for (String line : message.split("\r?\n|\r")) {
+                if (!line.isEmpty()) {
+                    lines.add(this.sendCommand(prefix + line));
+                }
+            }
+            if (lines.isEmpty()) {
+                lastError = "Message was empty string.";
+                sent = failed(new IllegalArgumentException(lastError));
+            }
+            else {
+                sent = CompletableFuture.allOf(lines.toArray(new CompletableFuture<?>[0]));
+            }
+        }
+        return sent;
+    }
+
 
     /**
      * Send a request for the list of commands that server supports.
      */
     public void askSupportedCommands() {
+        supportedCommands();
+    }
+
+    /**
+     * Send a request for the list of commands that server supports. The list is also reported to the
+     * listeners.
+     *
+     * @return Future completed with the supported commands, or completed exceptionally when the request could
+     * not be sent or the connection was closed before the answer arrived
+     */
+    public CompletableFuture<String[]> supportedCommands() {
         // Hint: Reuse sendCommand() method
-        this.sendCommand("help");
+        CompletableFuture<String[]> result = new CompletableFuture<>();
+        synchronized (pendingReplies) {
+            if (trackSent(this.sendCommand("help"), result)) {
+                pendingReplies.expectSupported(result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Make a reply future fail if its request can not be sent.
+     *
+     * @param sent  The future of sending the request
+     * @param reply The future waiting for the reply
+     * @return false if sending has already failed, true if the request is (or will be) sent
+     */
+    private static boolean trackSent(CompletableFuture<Void> sent, CompletableFuture<?> reply) {
+        sent.whenComplete((ignored, error) -> {
+            if (error != null) {
+                reply.completeExceptionally(error);
+            }
+        });
+        return !sent.isCompletedExceptionally();
     }
 
 
     /**
      * Wait for chat server's response
      *
-     * @return one line of text (one command) received from the server
+     * @return true when one command (one line of text) has been received and is available in the decoder,
+     * false when the connection was closed
      */
-    private String waitServerResponse() {
-        String response = "";
+    private boolean waitServerResponse() {
         boolean gotResponse = false;
         while (this.isConnectionActive() && !gotResponse) {
             try {
-                response = fromServer.readLine();
-                if (!response.isEmpty()) {
-                    gotResponse = true;
+                if (decoder.next()) {
+                    if (!decoder.isEmptyLine()) {
+                        gotResponse = true;
+                    }
+                }
+                else {
+                    int count = decoder.readFrom(fromServer);
+                    if (count < 0) {
+                        throw new EOFException("Connection closed by the server");
+                    }
+                    metrics.bytesReceived.add(count);
+                    probing = false;
+                }
+            }
+            catch (SocketTimeoutException e) {
+                if (negotiatingFraming) {
+                    // The server has ignored the framing request, stay with text lines
+                    this.finishFramingNegotiation(Framing.TEXT);
+                    continue;
+                }
+                // Nothing received for the read timeout. A quiet server is normal, a dead connection is not:
+                // ask for something, and give up if the answer does not come within another timeout.
+                if (!probing) {
+                    probing = true;
+                    metrics.probes.increment();
+                    // A request like any other, so that its answer is not taken for the answer to another one
+                    this.users();
+                }
+                else {
+                    this.connectionFailed(new IOException("No answer from the server within "
+                            + options.getReadTimeoutMillis() + " ms", e));
                 }
             }
             catch (IOException e) {
-                e.printStackTrace();
-                this.disconnect();
-                this.connection = null;
-                this.fromServer = null;
-                this.toServer = null;
+                this.connectionFailed(e);
             }
         }
 
-        return response;
+        return gotResponse;
+    }
+
+    /**
+     * Called by the listening task when reading fails: reconnect, or disconnect if the client does not
+     * reconnect.
+     *
+     * @param e Why reading failed
+     */
+    private void connectionFailed(IOException e) {
+        if (!this.closing) {
+            metrics.connectionsLost.increment();
+        }
+        if (!this.reconnect(e)) {
+            if (!this.closing) {
+                e.printStackTrace();
+            }
+            this.disconnect();
+            this.connection = null;
+            this.fromServer = null;
+        }
     }
 
     /**
@@ -213,14 +861,35 @@ public class TCPClient {
     }
 
     /**
-     * Start listening for incoming commands from the server in a new CPU thread.
+     * @return A future that has already failed with the given error
+     */
+    private static <T> CompletableFuture<T> failed(Exception cause) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(cause);
+        return future;
+    }
+
+    /**
+     * Start listening for incoming commands from the server in a background task.
      */
     public void startListenThread() {
-        // Call parseIncomingCommands() in the new thread.
-        Thread t = new Thread(() -> {
-            parseIncomingCommands();
-        });
-        t.start();
+        // Call parseIncomingCommands() in the background.
+        executor.execute(this::parseIncomingCommands);
+        if (presenceStrategy != null) {
+            presence = new PresenceMonitor(presenceStrategy, this::users);
+            presence.start();
+        }
+    }
+
+    /**
+     * Refresh the user list automatically while connected. The listeners receive the lists as if they had been
+     * requested with {@link #refreshUserList()}. Takes effect when listening starts, see
+     * {@link #startListenThread()}.
+     *
+     * @param strategy Decides when to ask the server for the user list, null to stop refreshing automatically
+     */
+    public void setPresenceStrategy(PresenceStrategy strategy) {
+        this.presenceStrategy = strategy;
     }
 
     /**
@@ -234,47 +903,148 @@ public class TCPClient {
             // and act on it.
             // Hint: In Step 3 you need to handle only login-related responses.
             // Hint: In Step 3 reuse onLoginResult() method
-            String[] commandToParse = this.waitServerResponse().split(" ", 2);
-            switch (commandToParse[0]) {
-                case "loginok":
-                    this.onLoginResult(true, " ");
+            if (!this.waitServerResponse()) {
+                // Connection closed
+                continue;
+            }
+            long parseStart = System.nanoTime();
+            // The content is decoded only when someone needs it: a listener, or a request waiting for the reply
+            boolean notify = !listeners.isEmpty();
+            PresenceMonitor presence = this.presence;
+            ChatCommand command = decoder.command();
+            switch (command) {
+                case FRAMINGOK:
+                    if (negotiatingFraming) {
+                        this.finishFramingNegotiation(Framing.BINARY);
+                    }
                     break;
 
-                case "loginerr":
-                    this.onLoginResult(false, commandToParse[1]);
+                case COMPRESSIONOK:
+                    if (negotiatingCompression) {
+                        this.finishCompressionNegotiation(true);
+                    }
                     break;
 
-                case "users":
-                    String[] users = commandToParse[1].split(" ");
-                    this.onUsersList(users);
+                case LOGINOK:
+                    this.handleLoginResult(new LoginResult(true, null), notify, parseStart);
                     break;
 
-                case "msg":
-                    String[] msgParts = commandToParse[1].split(" ", 2);
-                    this.onMsgReceived(false, msgParts[0], msgParts[1]);
+                case LOGINERR:
+                    this.handleLoginResult(new LoginResult(false, decoder.payload()), notify, parseStart);
                     break;
 
-                case "privmsg":
-                    String[] privMsgParts = commandToParse[1].split(" ", 2);
-                    this.onMsgReceived(true, privMsgParts[0], privMsgParts[1]);
+                case USERS:
+                    // A user list the client did not ask for has no round-trip time
+                    CompletableFuture<String[]> usersReply = pendingReplies.nextUsers();
+                    if (usersReply != null) {
+                        roundTrips.received(command, parseStart);
+                    }
+                    if (notify || usersReply != null || presence != null) {
+                        String[] users = decoder.payloadWords();
+                        // Completed before notifying, which may wait for space in the event queue
+                        if (usersReply != null) {
+                            usersReply.complete(users);
+                        }
+                        if (presence != null) {
+                            presence.onUserList(users);
+                        }
+                        if (notify) {
+                            this.onUsersList(users);
+                        }
+                    }
                     break;
 
-                case "msgerr":
-                    this.onMsgError(commandToParse[1]);
+                case MSG:
+                case PRIVMSG:
+                    if (presence != null) {
+                        presence.onMessage(decoder.argument());
+                    }
+                    if (notify) {
+                        boolean priv = command == ChatCommand.PRIVMSG;
+                        this.onMsgReceived(priv, decoder.argument(), decoder.textAfterArgument());
+                    }
                     break;
 
-                case "cmderror":
-                    this.onCmdError(commandToParse[1]);
+                case MSGERR:
+                    if (notify) {
+                        this.onMsgError(decoder.payload());
+                    }
                     break;
 
-                case "supported":
-                    String[] supportedCommands = commandToParse[1].split(" ");
-                    this.onSupported(supportedCommands);
+                case CMDERROR:
+                    if (negotiatingFraming) {
+                        // The server does not know the framing request, stay with text lines
+                        this.finishFramingNegotiation(Framing.TEXT);
+                    }
+                    else if (negotiatingCompression) {
+                        // Or it does not know the compression request
+                        this.finishCompressionNegotiation(false);
+                    }
+                    else {
+                        // The answer to the oldest pending request, which must not take a later reply
+                        String error = decoder.payload();
+                        ChatCommand failed = pendingReplies.failOldest(
+                                new IOException("Command rejected by the server: " + error));
+                        if (failed != null) {
+                            roundTrips.failed(failed);
+                        }
+                        if (notify) {
+                            this.onCmdError(error);
+                        }
+                    }
+                    break;
+
+                case SUPPORTED:
+                    CompletableFuture<String[]> supportedReply = pendingReplies.nextSupported();
+                    if (supportedReply != null) {
+                        roundTrips.received(command, parseStart);
+                    }
+                    if (notify || supportedReply != null) {
+                        String[] supportedCommands = decoder.payloadWords();
+                        if (supportedReply != null) {
+                            supportedReply.complete(supportedCommands);
+                        }
+                        if (notify) {
+                            this.onSupported(supportedCommands);
+                        }
+                    }
                     break;
 
                 default:
-                    this.onCmdError("The response from the server could not be recognized.");
+                    if (negotiatingFraming) {
+                        // Not an answer we understand, but an answer: the server can not switch the framing
+                        this.finishFramingNegotiation(Framing.TEXT);
+                    }
+                    else if (notify) {
+                        this.onCmdError("The response from the server could not be recognized.");
+                    }
             }
+            metrics.commandReceived(command);
+            metrics.parseTime.record(System.nanoTime() - parseStart);
+        }
+        // Closed: the decompressor is released here, by the only task using it
+        if (decoder != null) {
+            decoder.release();
+        }
+    }
+
+    /**
+     * Complete the oldest pending login request and notify the listeners.
+     *
+     * @param result        The login result received from the server
+     * @param notify        When true, notify the listeners
+     * @param receivedNanos When the result was received, from System.nanoTime()
+     */
+    private void handleLoginResult(LoginResult result, boolean notify, long receivedNanos) {
+        // Completed first: notifying may wait for space in the event queue, and a listener may be waiting for
+        // this future
+        CompletableFuture<LoginResult> loginReply = pendingReplies.nextLogin();
+        if (loginReply != null) {
+            roundTrips.received(result.isSuccess() ? ChatCommand.LOGINOK : ChatCommand.LOGINERR, receivedNanos);
+            loginReply.complete(result);
+        }
+        if (notify) {
+            this.onLoginResult(result.isSuccess(), result.isSuccess() ? " " : result.getErrorMessage());
         }
     }
 
@@ -284,9 +1054,7 @@ public class TCPClient {
      * @param listener
      */
     public void addListener(ChatListener listener) {
-        if (!listeners.contains(listener)) {
-            listeners.add(listener);
-        }
+        listeners.add(listener);
     }
 
     /**
@@ -298,10 +1066,82 @@ public class TCPClient {
         listeners.remove(listener);
     }
 
+    /**
+     * Configure the queue between the socket reader and the listeners. Can be changed only while not connected.
+     *
+     * @param capacity Maximum number of events waiting to be delivered
+     * @param policy   What to do when a new event arrives and the queue is full
+     * @throws IllegalStateException when the client is connected
+     */
+    public void setEventQueue(int capacity, OverflowPolicy policy) {
+        if (isConnectionActive()) {
+            throw new IllegalStateException("Event queue can not be changed while connected");
+        }
+        dispatcher = new EventDispatcher(capacity, policy, listeners, metrics.dispatchTime);
+    }
+
+    /**
+     * Get statistics on how far behind a listener is in processing the events received from the server.
+     *
+     * @param listener A registered listener
+     * @return Lag statistics of the listener, null if the listener is not registered
+     */
+    public ListenerLag getListenerLag(ChatListener listener) {
+        return listeners.lagOf(listener);
+    }
+
+    /**
+     * Get the metrics of this client: bytes and commands sent and received, parse and listener dispatch time,
+     * and connection events. The registry can be published over JMX or dumped as text.
+     *
+     * @return The metrics registry of this client
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics.registry();
+    }
+
+    /**
+     * Get the round-trip times of a command: the time from sending the command to receiving the reply, as seen
+     * by this client (it includes the network and the server, and the time the command waited to be sent).
+     *
+     * @param command "login", "users" or "help"
+     * @return Round-trip times in nanoseconds, null for the commands without a reply
+     */
+    public LatencyHistogram getRoundTripTimes(String command) {
+        return roundTrips.histogram(ChatCommand.ofLine(command));
+    }
+
+    /**
+     * @param command "login", "users" or "help"
+     * @return The round-trip time of the last reply to the command, in nanoseconds. 0 if there has been no
+     * reply yet, or the command has no reply.
+     */
+    public long getLastRoundTripNanos(String command) {
+        return roundTrips.last(ChatCommand.ofLine(command));
+    }
+
+    /**
+     * @return Number of events not delivered to the listeners because the event queue was full
+     * (OverflowPolicy.DROP_OLDEST)
+     */
+    public long getDroppedEventCount() {
+        return dispatcher.getDroppedCount();
+    }
+
+    /**
+     * @return Number of user list and command list events replaced by a newer one while waiting in the event
+     * queue (OverflowPolicy.COALESCE)
+     */
+    public long getCoalescedEventCount() {
+        return dispatcher.getCoalescedCount();
+    }
+
 
     ///////////////////////////////////////////////////////////////////////////////////////////////////////////
     // The following methods are all event-notificators - notify all the listeners about a specific event.
-    // By "event" here we mean "information received from the chat server".
+    // By "event" here we mean "information received from the chat server". The events are queued and delivered
+    // to the listeners by the dispatcher on a separate background task, so that slow listeners do not block
+    // reading from the socket.
     ///////////////////////////////////////////////////////////////////////////////////////////////////////////
 
     /**
@@ -312,9 +1152,7 @@ public class TCPClient {
      * @param errMsg  Error message if any
      */
     private void onLoginResult(boolean success, String errMsg) {
-        for (ChatListener l : listeners) {
-            l.onLoginResult(success, errMsg);
-        }
+        dispatcher.post(ChatEvent.loginResult(success, errMsg));
     }
 
     /**
@@ -323,9 +1161,26 @@ public class TCPClient {
      */
     private void onDisconnect() {
         // Hint: all the onXXX() methods will be similar to onLoginResult()
-        for (ChatListener l : listeners) {
-            l.onDisconnect();
-        }
+        dispatcher.post(ChatEvent.disconnect());
+        // Nothing more will arrive on this connection
+        dispatcher.stop();
+    }
+
+    /**
+     * Notify listeners that the connection was lost and a reconnect attempt is coming
+     *
+     * @param attempt     Number of the attempt
+     * @param delayMillis Delay before the attempt
+     */
+    private void onReconnecting(int attempt, long delayMillis) {
+        dispatcher.post(ChatEvent.reconnecting(attempt, delayMillis));
+    }
+
+    /**
+     * Notify listeners that the client has reconnected
+     */
+    private void onReconnected() {
+        dispatcher.post(ChatEvent.reconnected());
     }
 
     /**
@@ -334,9 +1189,7 @@ public class TCPClient {
      * @param users List with usernames
      */
     private void onUsersList(String[] users) {
-        for (ChatListener l : listeners) {
-            l.onUserList(users);
-        }
+        dispatcher.post(ChatEvent.userList(users));
     }
 
     /**
@@ -347,9 +1200,7 @@ public class TCPClient {
      * @param text   Message text
      */
     private void onMsgReceived(boolean priv, String sender, String text) {
-        for (ChatListener l : listeners) {
-            l.onMessageReceived(new TextMessage(sender, priv, text));
-        }
+        dispatcher.post(ChatEvent.message(new TextMessage(sender, priv, text)));
     }
 
     /**
@@ -358,9 +1209,7 @@ public class TCPClient {
      * @param errMsg Error description returned by the server
      */
     private void onMsgError(String errMsg) {
-        for (ChatListener l : listeners) {
-            l.onMessageError(errMsg);
-        }
+        dispatcher.post(ChatEvent.messageError(errMsg));
     }
 
     /**
@@ -369,9 +1218,7 @@ public class TCPClient {
      * @param errMsg Error message
      */
     private void onCmdError(String errMsg) {
-        for (ChatListener l : listeners) {
-            l.onCommandError(errMsg);
-        }
+        dispatcher.post(ChatEvent.commandError(errMsg));
     }
 
     /**
@@ -381,8 +1228,6 @@ public class TCPClient {
      * @param commands Commands supported by the server
      */
     private void onSupported(String[] commands) {
-        for (ChatListener l : listeners) {
-            l.onSupportedCommands(commands);
-        }
+        dispatcher.post(ChatEvent.supported(commands));
     }
 }
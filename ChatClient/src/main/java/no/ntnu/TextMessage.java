@@ -3,13 +3,17 @@ package no.ntnu;
 import java.util.Objects;
 
 /**
- * Represents a chat message
+ * Represents a chat message. Two messages are equal when they have the same sender, privacy and text, so
+ * messages can be safely deduplicated or cached in hash based collections. The sender names are shared
+ * between messages.
  */
 public class TextMessage {
 
     private final String sender;
     private final boolean priv;
     private final String text;
+    // Calculated on first use, 0 means not calculated yet (like in String)
+    private int hash;
 
     /**
      * @param sender Username of the sender
@@ -17,7 +21,7 @@ public class TextMessage {
      * @param text Text of the message
      */
     public TextMessage(String sender, boolean priv, String text) {
-        this.sender = sender;
+        this.sender = UsernamePool.intern(sender);
         this.priv = priv;
         this.text = text;
     }
@@ -41,16 +45,31 @@ public class TextMessage {
 
     @Override
     public boolean equals(Object o) {
-        return o != null && o.hashCode() == this.hashCode();
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TextMessage)) {
+            return false;
+        }
+        TextMessage other = (TextMessage) o;
+        // Cheap checks first: the hashes when both are known, and the senders, which are usually the same instance
+        return (hash == 0 || other.hash == 0 || hash == other.hash)
+                && priv == other.priv
+                && Objects.equals(sender, other.sender)
+                && Objects.equals(text, other.text);
     }
 
     @Override
     public int hashCode() {
-        int hash = 3;
-        hash = 71 * hash + Objects.hashCode(this.sender);
-        hash = 71 * hash + (this.priv ? 1 : 0);
-        hash = 71 * hash + Objects.hashCode(this.text);
-        return hash;
+        int h = hash;
+        if (h == 0) {
+            h = 3;
+            h = 71 * h + Objects.hashCode(this.sender);
+            h = 71 * h + (this.priv ? 1 : 0);
+            h = 71 * h + Objects.hashCode(this.text);
+            hash = h;
+        }
+        return h;
     }
 
 }
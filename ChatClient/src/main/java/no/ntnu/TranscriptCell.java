@@ -0,0 +1,90 @@
+package no.ntnu;
+
+import javafx.collections.ObservableList;
+import javafx.scene.Node;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Pane;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.VBox;
+
+/**
+ * Displays one transcript entry in the chat window. The ListView creates only as many cells as fit on the
+ * screen and reuses them while scrolling, so the controls below are created once per cell, not once per message.
+ */
+class TranscriptCell extends ListCell<TranscriptEntry> {
+    // Style classes set on the message text depending on the entry style
+    private static final String[] TEXT_STYLES = {"sentMessage", "failedMessage", "otherMessage", "warning", "info"};
+    // Part of the list width a message bubble may use before wrapping
+    private static final double MAX_MESSAGE_WIDTH = 0.8;
+
+    private final HBox message = new HBox();
+    private final Pane leftSpacer = new Pane();
+    private final Pane rightSpacer = new Pane();
+    private final VBox messageContent = new VBox();
+    private final Label messageSender = new Label();
+    private final Label messageText = new Label();
+
+    /**
+     * @param listView The list this cell belongs to, used to limit the width of the message bubbles
+     */
+    TranscriptCell(ListView<TranscriptEntry> listView) {
+        messageSender.getStyleClass().add("sender");
+        messageText.getStyleClass().add("message");
+        messageText.setWrapText(true);
+        messageText.maxWidthProperty().bind(listView.widthProperty().multiply(MAX_MESSAGE_WIDTH));
+        for (Pane spacer : new Pane[]{leftSpacer, rightSpacer}) {
+            HBox.setHgrow(spacer, Priority.ALWAYS);
+            spacer.setMinSize(10, 1);
+        }
+        messageContent.getChildren().addAll(messageSender, messageText);
+        message.getChildren().addAll(leftSpacer, messageContent, rightSpacer);
+        // Do not let long messages widen the cell, they wrap instead
+        setPrefWidth(0);
+    }
+
+    @Override
+    protected void updateItem(TranscriptEntry entry, boolean empty) {
+        super.updateItem(entry, empty);
+        if (empty || entry == null) {
+            setGraphic(null);
+            return;
+        }
+        TextMessage msg = entry.getMessage();
+        TranscriptEntry.Style style = entry.getStyle();
+
+        ObservableList<String> textStyle = messageText.getStyleClass();
+        textStyle.removeAll(TEXT_STYLES);
+        textStyle.add(TEXT_STYLES[style.ordinal()]);
+        messageText.setText(msg.getText());
+
+        // Received messages show the sender, and stay on the left. Sent messages are on the right.
+        boolean received = style == TranscriptEntry.Style.RECEIVED;
+        boolean sent = style == TranscriptEntry.Style.SENT || style == TranscriptEntry.Style.FAILED;
+        setShown(messageSender, received);
+        if (received) {
+            if (msg.isPrivate()) {
+                messageSender.setText("Private from " + msg.getSender() + ":");
+                if (!messageSender.getStyleClass().contains("private")) {
+                    messageSender.getStyleClass().add("private");
+                }
+            } else {
+                messageSender.setText(msg.getSender() + ":");
+                messageSender.getStyleClass().remove("private");
+            }
+        }
+        setShown(leftSpacer, sent);
+        setShown(rightSpacer, received);
+        setGraphic(message);
+    }
+
+    /**
+     * Show or hide a control, hidden controls take no space
+     */
+    private static void setShown(Node node, boolean shown) {
+        node.setVisible(shown);
+        node.setManaged(shown);
+    }
+}
@@ -0,0 +1,43 @@
+package no.ntnu;
+
+/**
+ * One line of the chat transcript shown in the GUI: a message together with how it must be displayed
+ */
+class TranscriptEntry {
+
+    /**
+     * How an entry is displayed
+     */
+    enum Style {
+        // Sent by us, shown on the right
+        SENT,
+        // Sent by us while not connected, shown on the right, highlighted as failed
+        FAILED,
+        // Received from another user, shown on the left with the sender
+        RECEIVED,
+        // Error notification
+        WARNING,
+        // Information notification
+        INFO
+    }
+
+    private final TextMessage message;
+    private final Style style;
+
+    /**
+     * @param message The message to display
+     * @param style   How to display it
+     */
+    TranscriptEntry(TextMessage message, Style style) {
+        this.message = message;
+        this.style = style;
+    }
+
+    TextMessage getMessage() {
+        return message;
+    }
+
+    Style getStyle() {
+        return style;
+    }
+}
@@ -0,0 +1,100 @@
+package no.ntnu;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The set of currently connected users, as last reported by the server. Every new list from the server is
+ * compared to the current one, so that the GUI only needs to add the users who joined and remove the users
+ * who left - and nothing at all when the list did not change, which is the usual case when polling.
+ * Not thread safe, use it from one thread only.
+ */
+class UserListModel {
+    private Set<String> users = new HashSet<>();
+
+    /**
+     * Replace the current user list with a new one from the server.
+     *
+     * @param usernames Usernames of currently connected users
+     * @return The changes compared to the previous list, or null when nothing changed
+     */
+    Diff update(String[] usernames) {
+        Set<String> updated = new HashSet<>(usernames.length * 2);
+        List<String> added = new ArrayList<>();
+        for (String username : usernames) {
+            // The set keeps the names for as long as the users stay, share them with the messages
+            String user = UsernamePool.intern(username);
+            if (updated.add(user) && !users.contains(user)) {
+                added.add(user);
+            }
+        }
+        List<String> removed = new ArrayList<>();
+        // If all the old users are still there, the sizes tell us that nobody left, no need to check each one
+        if (updated.size() - added.size() != users.size()) {
+            for (String user : users) {
+                if (!updated.contains(user)) {
+                    removed.add(user);
+                }
+            }
+        }
+        users = updated;
+        if (added.isEmpty() && removed.isEmpty()) {
+            return null;
+        }
+        return new Diff(added, removed);
+    }
+
+    /**
+     * @param username The username to check
+     * @return true if the user is in the current list
+     */
+    boolean contains(String username) {
+        return users.contains(username);
+    }
+
+    /**
+     * @return Number of users in the current list
+     */
+    int size() {
+        return users.size();
+    }
+
+    /**
+     * Forget all the users, for example when disconnected
+     *
+     * @return The changes: all the users removed, or null if the list was already empty
+     */
+    Diff clear() {
+        return update(new String[0]);
+    }
+
+    /**
+     * Users who joined and users who left between two user lists
+     */
+    static final class Diff {
+        private final List<String> added;
+        private final List<String> removed;
+
+        Diff(List<String> added, List<String> removed) {
+            this.added = Collections.unmodifiableList(added);
+            this.removed = Collections.unmodifiableList(removed);
+        }
+
+        /**
+         * @return Users who are new in the list, in the order the server sent them
+         */
+        List<String> getAdded() {
+            return added;
+        }
+
+        /**
+         * @return Users who are no longer in the list
+         */
+        List<String> getRemoved() {
+            return removed;
+        }
+    }
+}
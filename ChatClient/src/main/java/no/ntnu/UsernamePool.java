@@ -0,0 +1,40 @@
+package no.ntnu;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shares one String instance per username between all the messages (and user lists) that mention it. A chat
+ * has few users but may keep millions of messages, so without sharing most of the sender strings in memory
+ * would be copies of the same few names. Thread safe.
+ */
+final class UsernamePool {
+    // Stop adding names beyond this, so that a server sending random sender names can not fill the memory
+    private static final int MAX_NAMES = 10000;
+    private static final ConcurrentHashMap<String, String> NAMES = new ConcurrentHashMap<>();
+
+    private UsernamePool() {
+    }
+
+    /**
+     * Get the shared instance of a username.
+     *
+     * @param username The username, may be null
+     * @return An equal string: the shared one, or the given one if it became shared now (or the pool is full)
+     */
+    static String intern(String username) {
+        if (username == null) {
+            return null;
+        }
+        String shared = NAMES.get(username);
+        if (shared == null) {
+            if (NAMES.size() >= MAX_NAMES) {
+                return username;
+            }
+            shared = NAMES.putIfAbsent(username, username);
+            if (shared == null) {
+                shared = username;
+            }
+        }
+        return shared;
+    }
+}
@@ -0,0 +1,158 @@
+package no.ntnu;
+
+import no.ntnu.datakomm.chat.helpers.EmptyChatListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests many sessions sharing the I/O threads of one ChatClientManager, against a local chat server
+ */
+public class ChatClientManagerTest {
+    // How long to wait for a reply
+    private static final int TIMEOUT = 5000;
+    private static final int SESSIONS = 50;
+
+    private LocalChatServer server;
+    private ChatClientManager manager;
+
+    @Before
+    public void start() throws IOException {
+        server = new LocalChatServer().start();
+        manager = new ChatClientManager(2);
+    }
+
+    @After
+    public void stop() {
+        manager.close();
+        server.close();
+        assertNull(server.getFailure());
+    }
+
+    private ChatSession connect() throws Exception {
+        return manager.connect("localhost", server.getPort()).get(TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void testManySessions() throws Exception {
+        List<CompletableFuture<ChatSession>> connecting = new ArrayList<>();
+        for (int i = 0; i < SESSIONS; i++) {
+            connecting.add(manager.connect("localhost", server.getPort()));
+        }
+        List<ChatSession> sessions = new ArrayList<>();
+        for (CompletableFuture<ChatSession> c : connecting) {
+            sessions.add(c.get(TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+        assertEquals(SESSIONS, manager.getSessionCount());
+
+        List<CompletableFuture<LoginResult>> logins = new ArrayList<>();
+        for (int i = 0; i < SESSIONS; i++) {
+            logins.add(sessions.get(i).login("bot" + i));
+        }
+        for (CompletableFuture<LoginResult> login : logins) {
+            assertTrue(login.get(TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
+        }
+        assertFalse(sessions.get(1).login("bot0").get(TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
+
+        List<String> users = Arrays.asList(sessions.get(0).users().get(TIMEOUT, TimeUnit.MILLISECONDS));
+        for (int i = 0; i < SESSIONS; i++) {
+            assertTrue(users.contains("bot" + i));
+        }
+        assertTrue(Arrays.asList(sessions.get(0).supportedCommands().get(TIMEOUT, TimeUnit.MILLISECONDS))
+                .contains("privmsg"));
+
+        // A public message reaches all the other sessions, a private one only its recipient
+        CountDownLatch publicReceived = new CountDownLatch(SESSIONS - 1);
+        AtomicInteger privateReceived = new AtomicInteger();
+        CountDownLatch privateToRecipient = new CountDownLatch(1);
+        for (int i = 0; i < SESSIONS; i++) {
+            final boolean recipient = i == 2;
+            sessions.get(i).addListener(new EmptyChatListener() {
+                @Override
+                public void onMessageReceived(TextMessage message) {
+                    if (message.isPrivate()) {
+                        privateReceived.incrementAndGet();
+                        if (recipient && message.equals(new TextMessage("bot1", true, "Only for you"))) {
+                            privateToRecipient.countDown();
+                        }
+                    } else if (message.equals(new TextMessage("bot0", false, "Hello everyone"))) {
+                        publicReceived.countDown();
+                    }
+                }
+            });
+        }
+        sessions.get(0).sendPublicMessage("Hello everyone").get(TIMEOUT, TimeUnit.MILLISECONDS);
+        sessions.get(1).sendPrivateMessage("bot2", "Only for you").get(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertTrue(publicReceived.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(privateToRecipient.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        // The server answers in order: after this reply, the private message has been delivered
+        sessions.get(1).users().get(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertEquals(1, privateReceived.get());
+
+        for (ChatSession session : sessions) {
+            session.close();
+        }
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (manager.getSessionCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, manager.getSessionCount());
+        assertFalse(sessions.get(0).isOpen());
+        assertTrue(sessions.get(0).users().isCompletedExceptionally());
+    }
+
+    @Test
+    public void testUnknownHost() throws Exception {
+        // The same I/O thread serves both sessions
+        manager.close();
+        manager = new ChatClientManager(1);
+        ChatSession session = connect();
+        assertTrue(session.login("survivor").get(TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
+
+        CompletableFuture<ChatSession> unknown = manager.connect("no-such-host.invalid", server.getPort());
+        try {
+            unknown.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            fail("Connected to an unknown host");
+        } catch (ExecutionException e) {
+            // Expected
+        }
+
+        // The I/O thread still serves the other sessions, and new ones
+        assertTrue(session.isOpen());
+        assertTrue(Arrays.asList(session.users().get(TIMEOUT, TimeUnit.MILLISECONDS)).contains("survivor"));
+        assertTrue(connect().login("newcomer").get(TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        ChatSession session = connect();
+        CountDownLatch disconnected = new CountDownLatch(1);
+        session.addListener(new EmptyChatListener() {
+            @Override
+            public void onDisconnect() {
+                disconnected.countDown();
+            }
+        });
+        manager.close();
+        assertTrue(disconnected.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertFalse(session.isOpen());
+        try {
+            manager.connect("localhost", server.getPort()).get(TIMEOUT, TimeUnit.MILLISECONDS);
+            fail("Connected with a closed manager");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package no.ntnu;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests splitting received bytes into commands, with text lines and binary frames
+ */
+public class CommandDecoderTest {
+
+    /**
+     * Give all the bytes to the decoder, in as many reads as its buffer needs.
+     */
+    private static void receive(CommandDecoder decoder, byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            int count = decoder.readFrom(new ByteArrayInputStream(bytes, offset, bytes.length - offset));
+            assertTrue(count > 0);
+            offset += count;
+        }
+    }
+
+    private static void receive(CommandDecoder decoder, String text) throws IOException {
+        receive(decoder, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testLines() throws IOException {
+        CommandDecoder decoder = new CommandDecoder();
+        receive(decoder, "msg alice Hello there\nusers alice  bob\n\nfoo bar\n");
+        assertTrue(decoder.next());
+        assertEquals(ChatCommand.MSG, decoder.command());
+        assertEquals("alice", decoder.argument());
+        assertEquals("Hello there", decoder.textAfterArgument());
+        assertTrue(decoder.next());
+        assertEquals(ChatCommand.USERS, decoder.command());
+        assertArrayEquals(new String[]{"alice", "bob"}, decoder.payloadWords());
+        assertTrue(decoder.next());
+        assertTrue(decoder.isEmptyLine());
+        assertTrue(decoder.next());
+        assertEquals(ChatCommand.UNKNOWN, decoder.command());
+        assertFalse(decoder.isEmptyLine());
+        assertFalse(decoder.next());
+    }
+
+    @Test
+    public void testCrlf() throws IOException {
+        CommandDecoder decoder = new CommandDecoder();
+        receive(decoder, "loginok\r\nmsgerr Unknown user\r\n\r\n");
+        assertTrue(decoder.next());
+        assertEquals(ChatCommand.LOGINOK, decoder.command());
+        assertEquals("", decoder.payload());
+        assertTrue(decoder.next());
+        assertEquals(ChatCommand.MSGERR, decoder.command());
+        assertEquals("Unknown user", decoder.payload());
+        assertTrue(decoder.next());
+        assertTrue(decoder.isEmptyLine());
+        assertFalse(decoder.next());
+    }
+
+    @Test
+    public void testLineSplitAcrossReads() throws IOException {
+        CommandDecoder decoder = new CommandDecoder();
+        receive(decoder, "privmsg bo");
+        assertFalse(decoder.next());
+        receive(decoder, "b Hi æ");
+        assertFalse(decoder.next());
+        // The CR of a CRLF in one read, the LF in the next one
+        receive(decoder, "ø\r");
+        assertFalse(decoder.next());
+        receive(decoder, "\nlogin");
+        assertTrue(decoder.next());
+        assertEquals(ChatCommand.PRIVMSG, decoder.command());
+        assertEquals("bob", decoder.argument());
+        assertEquals("Hi æø", decoder.textAfterArgument());
+        assertFalse(decoder.next());
+        receive(decoder, "err Taken\n");
+        assertTrue(decoder.next());
+        assertEquals(ChatCommand.LOGINERR, decoder.command());
+        assertEquals("Taken", decoder.payload());
+    }
+
+    @Test
+    public void testBufferGrowth() throws IOException {
+        CommandDecoder decoder = new CommandDecoder(16);
+        // The longest line which fits: its newline is the last byte of the maximum buffer
+        byte[] line = new byte[CommandDecoder.MAX_LINE_LENGTH];
+        Arrays.fill(line, (byte) 'x');
+        System.arraycopy("msg alice ".getBytes(StandardCharsets.UTF_8), 0, line, 0, 10);
+        line[line.length - 1] = '\n';
+        receive(decoder, line);
+        assertTrue(decoder.next());
+        assertEquals(ChatCommand.MSG, decoder.command());
+        assertEquals(CommandDecoder.MAX_LINE_LENGTH - 11, decoder.textAfterArgument().length());
+        // The buffer is reused for the next lines
+        receive(decoder, "loginok\n");
+        assertTrue(decoder.next());
+        assertEquals(ChatCommand.LOGINOK, decoder.command());
+    }
+
+    @Test
+    public void testLineTooLong() throws IOException {
+        CommandDecoder decoder = new CommandDecoder(16);
+        byte[] line = new byte[CommandDecoder.MAX_LINE_LENGTH];
+        Arrays.fill(line, (byte) 'x');
+        receive(decoder, line);
+        assertFalse(decoder.next());
+        try {
+            decoder.readFrom(new ByteArrayInputStream(new byte[]{'\n'}));
+            fail("A line longer than the maximum was accepted");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testFrames() throws IOException {
+        CommandDecoder decoder = new CommandDecoder(16);
+        // The frames arrive in the same read as the text line accepting them
+        receive(decoder, Framing.ACCEPTED + "\n");
+        char[] filler = new char[100];
+        Arrays.fill(filler, 'z');
+        String text = "A line\nwith a newline, and long enough to need a two-byte length " + new String(filler);
+        receive(decoder, Framing.BINARY.encode("msg alice " + text));
+        receive(decoder, Framing.BINARY.encode("framing something"));
+        assertTrue(decoder.next());
+        assertEquals(ChatCommand.FRAMINGOK, decoder.command());
+        decoder.setFraming(Framing.BINARY);
+        assertTrue(decoder.next());
+        assertEquals(ChatCommand.MSG, decoder.command());
+        assertEquals("alice", decoder.argument());
+        assertEquals(text, decoder.textAfterArgument());
+        assertTrue(decoder.next());
+        assertEquals(ChatCommand.FRAMING, decoder.command());
+        assertEquals("something", decoder.payload());
+        assertFalse(decoder.next());
+    }
+
+    @Test
+    public void testTruncatedFrameLength() throws IOException {
+        CommandDecoder decoder = new CommandDecoder();
+        decoder.setFraming(Framing.BINARY);
+        char[] text = new char[200];
+        Arrays.fill(text, 'y');
+        byte[] frame = Framing.BINARY.encode("msg bob " + new String(text));
+        // The first byte of the two-byte length
+        assertTrue((frame[0] & 0x80) != 0);
+        receive(decoder, Arrays.copyOfRange(frame, 0, 1));
+        assertFalse(decoder.next());
+        receive(decoder, Arrays.copyOfRange(frame, 1, 5));
+        assertFalse(decoder.next());
+        receive(decoder, Arrays.copyOfRange(frame, 5, frame.length));
+        assertTrue(decoder.next());
+        assertEquals(ChatCommand.MSG, decoder.command());
+        assertEquals("bob", decoder.argument());
+        assertFalse(decoder.next());
+    }
+
+    @Test(expected = IOException.class)
+    public void testFrameLengthTooLong() throws IOException {
+        CommandDecoder decoder = new CommandDecoder();
+        decoder.setFraming(Framing.BINARY);
+        // Continuation bits on more bytes than an int needs
+        receive(decoder, new byte[]{(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 1});
+        decoder.next();
+    }
+
+    @Test(expected = IOException.class)
+    public void testEmptyFrame() throws IOException {
+        CommandDecoder decoder = new CommandDecoder();
+        decoder.setFraming(Framing.BINARY);
+        receive(decoder, new byte[]{0});
+        decoder.next();
+    }
+}
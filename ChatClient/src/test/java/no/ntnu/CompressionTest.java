@@ -0,0 +1,95 @@
+package no.ntnu;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the per-message compression and its counters
+ */
+public class CompressionTest {
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder savedSent = new LongAdder();
+    private final LongAdder expandedSent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder savedReceived = new LongAdder();
+    private final LongAdder expandedReceived = new LongAdder();
+    private final Compression.Compressor compressor = new Compression.Compressor(Compression.DEFAULT_THRESHOLD,
+            sent, savedSent, expandedSent);
+    private final Compression.Decompressor decompressor = new Compression.Decompressor(
+            CommandDecoder.MAX_LINE_LENGTH, received, savedReceived, expandedReceived);
+
+    @After
+    public void tearDown() {
+        compressor.end();
+        decompressor.end();
+    }
+
+    /**
+     * Compress a payload and decompress the result, check that the payload comes back
+     *
+     * @return Size of the compressed payload
+     */
+    private int roundTrip(byte[] payload) throws IOException {
+        assertTrue(compressor.shouldCompress(payload.length));
+        int size = compressor.compress(payload, 0, payload.length);
+        byte[] compressed = Arrays.copyOf(compressor.output(), size);
+        int length = decompressor.decompress(compressed, 0, compressed.length);
+        assertArrayEquals(payload, Arrays.copyOf(decompressor.output(), length));
+        return size;
+    }
+
+    @Test
+    public void testRepeatedText() throws IOException {
+        StringBuilder text = new StringBuilder("msg ");
+        while (text.length() < Compression.DEFAULT_THRESHOLD * 2) {
+            text.append("the same words again and again ");
+        }
+        byte[] payload = text.toString().getBytes(StandardCharsets.UTF_8);
+        int size = roundTrip(payload);
+        assertTrue(size < payload.length);
+        assertEquals(1, sent.sum());
+        assertEquals(payload.length - size, savedSent.sum());
+        assertEquals(0, expandedSent.sum());
+        assertEquals(1, received.sum());
+        assertEquals(payload.length - size, savedReceived.sum());
+        assertEquals(0, expandedReceived.sum());
+    }
+
+    @Test
+    public void testRandomBytes() throws IOException {
+        // Random bytes do not compress, deflate stores them with a few bytes of overhead
+        byte[] payload = new byte[Compression.DEFAULT_THRESHOLD + 44];
+        new Random(42).nextBytes(payload);
+        int size = roundTrip(payload);
+        assertTrue(size > payload.length);
+        assertEquals(1, sent.sum());
+        assertEquals(0, savedSent.sum());
+        assertEquals(size - payload.length, expandedSent.sum());
+        assertEquals(1, received.sum());
+        assertEquals(0, savedReceived.sum());
+        assertEquals(size - payload.length, expandedReceived.sum());
+    }
+
+    @Test
+    public void testSavedAndExpanded() throws IOException {
+        byte[] random = new byte[Compression.DEFAULT_THRESHOLD + 1];
+        new Random(7).nextBytes(random);
+        int expanded = roundTrip(random) - random.length;
+        byte[] zeros = new byte[Compression.DEFAULT_THRESHOLD * 4];
+        int saved = zeros.length - roundTrip(zeros);
+        // Each is counted on its own, the expansion does not reduce the bytes saved
+        assertEquals(2, sent.sum());
+        assertEquals(saved, savedSent.sum());
+        assertEquals(expanded, expandedSent.sum());
+        assertEquals(saved, savedReceived.sum());
+        assertEquals(expanded, expandedReceived.sum());
+    }
+}
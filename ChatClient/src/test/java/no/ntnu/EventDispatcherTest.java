@@ -0,0 +1,151 @@
+package no.ntnu;
+
+import no.ntnu.datakomm.chat.helpers.EmptyChatListener;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the event queue between the socket reader and the listeners, with each overflow policy
+ */
+public class EventDispatcherTest {
+    // How long to wait for something which should happen
+    private static final int TIMEOUT = 2000;
+
+    private final ListenerRegistry listeners = new ListenerRegistry();
+    private final RecordingListener recorder = new RecordingListener();
+
+    public EventDispatcherTest() {
+        listeners.add(recorder);
+    }
+
+    private static ChatEvent message(int i) {
+        return ChatEvent.message(new TextMessage("alice", false, "Message " + i));
+    }
+
+    /**
+     * Start the dispatcher and wait until it has delivered all the queued events.
+     */
+    private static void drain(EventDispatcher dispatcher) throws InterruptedException {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            dispatcher.start(executor);
+            dispatcher.stop();
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(TIMEOUT, TimeUnit.MILLISECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testDropOldest() throws InterruptedException {
+        EventDispatcher dispatcher = new EventDispatcher(3, OverflowPolicy.DROP_OLDEST, listeners);
+        for (int i = 1; i <= 5; i++) {
+            dispatcher.post(message(i));
+        }
+        assertEquals(2, dispatcher.getDroppedCount());
+        drain(dispatcher);
+        assertEquals(Arrays.asList("Message 3", "Message 4", "Message 5"), recorder.events);
+    }
+
+    @Test
+    public void testCoalesce() throws InterruptedException {
+        EventDispatcher dispatcher = new EventDispatcher(2, OverflowPolicy.COALESCE, listeners);
+        dispatcher.post(ChatEvent.userList(new String[]{"alice"}));
+        dispatcher.post(message(1));
+        // The queue is full, but the newer lists are merged into the queued one without waiting
+        dispatcher.post(ChatEvent.userList(new String[]{"alice", "bob"}));
+        dispatcher.post(ChatEvent.userList(new String[]{"alice", "bob", "carol"}));
+        assertEquals(2, dispatcher.getCoalescedCount());
+        assertEquals(0, dispatcher.getDroppedCount());
+        drain(dispatcher);
+        assertEquals(Arrays.asList("users alice bob carol", "Message 1"), recorder.events);
+
+        // A list delivered already is not merged into
+        recorder.events.clear();
+        dispatcher.post(ChatEvent.userList(new String[]{"dave"}));
+        dispatcher.post(ChatEvent.supported(new String[]{"msg"}));
+        drain(dispatcher);
+        assertEquals(Arrays.asList("users dave", "supported msg"), recorder.events);
+        assertEquals(2, dispatcher.getCoalescedCount());
+    }
+
+    @Test
+    public void testBlock() throws InterruptedException {
+        EventDispatcher dispatcher = new EventDispatcher(1, OverflowPolicy.BLOCK, listeners);
+        dispatcher.post(message(1));
+        Thread poster = new Thread(() -> {
+            dispatcher.post(message(2));
+            dispatcher.post(message(3));
+        });
+        poster.start();
+        poster.join(100);
+        // Waits for space in the queue
+        assertTrue(poster.isAlive());
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            dispatcher.start(executor);
+            poster.join(TIMEOUT);
+            assertFalse(poster.isAlive());
+            dispatcher.stop();
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(TIMEOUT, TimeUnit.MILLISECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(Arrays.asList("Message 1", "Message 2", "Message 3"), recorder.events);
+        assertEquals(0, dispatcher.getDroppedCount());
+    }
+
+    /**
+     * A disconnect is posted while the client holds its lock, it must not wait for space in a full queue.
+     */
+    @Test
+    public void testLifecycleEventDoesNotBlock() throws InterruptedException {
+        EventDispatcher dispatcher = new EventDispatcher(1, OverflowPolicy.BLOCK, listeners);
+        dispatcher.post(message(1));
+        Thread poster = new Thread(() -> dispatcher.post(ChatEvent.disconnect()));
+        poster.start();
+        poster.join(TIMEOUT);
+        assertFalse(poster.isAlive());
+        drain(dispatcher);
+        assertEquals(Arrays.asList("Message 1", "disconnect"), recorder.events);
+    }
+
+    /**
+     * Remembers the messages, lists and disconnects it receives, in order.
+     */
+    private static class RecordingListener extends EmptyChatListener {
+        private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void onMessageReceived(TextMessage message) {
+            events.add(message.getText());
+        }
+
+        @Override
+        public void onUserList(String[] usernames) {
+            events.add("users " + String.join(" ", usernames));
+        }
+
+        @Override
+        public void onSupportedCommands(String[] commands) {
+            events.add("supported " + String.join(" ", commands));
+        }
+
+        @Override
+        public void onDisconnect() {
+            events.add("disconnect");
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package no.ntnu;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the executors for the background tasks of the chat client
+ */
+public class ExecutionModeTest {
+    // How long to wait for something which should happen
+    private static final int TIMEOUT = 2000;
+
+    @Test
+    public void testParse() {
+        assertEquals(ExecutionMode.PLATFORM, ExecutionMode.parse("platform"));
+        assertEquals(ExecutionMode.VIRTUAL, ExecutionMode.parse(" Virtual "));
+        assertEquals(ExecutionMode.POOLED, ExecutionMode.parse("pool"));
+        assertEquals(ExecutionMode.POOLED, ExecutionMode.parse("POOLED"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseUnknown() {
+        ExecutionMode.parse("green");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyPool() {
+        ExecutionMode.POOLED.newExecutor("test", 0, true);
+    }
+
+    /**
+     * Without virtual threads (Java 8 to 20) the executor must fall back to named platform threads.
+     */
+    @Test
+    public void testVirtual() throws Exception {
+        ExecutorService executor = ExecutionMode.VIRTUAL.newExecutor("test", 0, true);
+        try {
+            Thread thread = executor.submit(Thread::currentThread).get(TIMEOUT, TimeUnit.MILLISECONDS);
+            if (virtualThreadsSupported()) {
+                assertEquals(Boolean.TRUE, Thread.class.getMethod("isVirtual").invoke(thread));
+            } else {
+                assertTrue(thread.getName().startsWith("test-"));
+                assertTrue(thread.isDaemon());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testPlatformThreads() throws Exception {
+        ExecutorService executor = ExecutionMode.PLATFORM.newExecutor("handler", 0, false);
+        try {
+            Thread thread = executor.submit(Thread::currentThread).get(TIMEOUT, TimeUnit.MILLISECONDS);
+            assertEquals("handler-1", thread.getName());
+            assertFalse(thread.isDaemon());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * A pool never runs more tasks at once than it has threads, the others wait for a free thread.
+     */
+    @Test
+    public void testPoolBounded() throws Exception {
+        ExecutorService executor = ExecutionMode.POOLED.newExecutor("test", 2, true);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        AtomicInteger done = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 4; i++) {
+            executor.execute(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+                done.incrementAndGet();
+            });
+        }
+        assertTrue(started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        // Give a third thread time to start, if the pool was not bounded
+        Thread.sleep(100);
+        assertEquals(2, running.get());
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(4, done.get());
+        assertEquals(2, maxRunning.get());
+    }
+
+    /**
+     * The shared executor is created once, and its threads do not keep the application running.
+     */
+    @Test
+    public void testDefaultExecutor() throws Exception {
+        ExecutorService executor = ExecutionMode.defaultExecutor();
+        assertSame(executor, ExecutionMode.defaultExecutor());
+        Thread thread = executor.submit(Thread::currentThread).get(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertTrue(thread.isDaemon());
+    }
+
+    private static boolean virtualThreadsSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+}
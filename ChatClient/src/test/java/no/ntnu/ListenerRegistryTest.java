@@ -0,0 +1,132 @@
+package no.ntnu;
+
+import no.ntnu.datakomm.chat.helpers.EmptyChatListener;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the copy-on-write registry of listeners
+ */
+public class ListenerRegistryTest {
+    private final ListenerRegistry registry = new ListenerRegistry();
+    private final ChatListener first = new EmptyChatListener();
+    private final ChatListener second = new EmptyChatListener();
+    private final ChatListener third = new EmptyChatListener();
+
+    private static ChatListener[] listenersOf(ListenerRegistry.Entry[] entries) {
+        ChatListener[] listeners = new ChatListener[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            listeners[i] = entries[i].listener;
+        }
+        return listeners;
+    }
+
+    @Test
+    public void testAddRemove() {
+        assertTrue(registry.isEmpty());
+        assertTrue(registry.add(first));
+        assertTrue(registry.add(second));
+        assertTrue(registry.add(third));
+        assertFalse(registry.isEmpty());
+        assertArrayEquals(new ChatListener[]{first, second, third}, listenersOf(registry.entries()));
+
+        assertTrue(registry.remove(second));
+        assertArrayEquals(new ChatListener[]{first, third}, listenersOf(registry.entries()));
+        assertFalse(registry.remove(second));
+        assertTrue(registry.remove(first));
+        assertTrue(registry.remove(third));
+        assertTrue(registry.isEmpty());
+        assertEquals(0, registry.entries().length);
+    }
+
+    @Test
+    public void testDuplicate() {
+        assertTrue(registry.add(first));
+        ListenerLag lag = registry.lagOf(first);
+        assertFalse(registry.add(first));
+        assertEquals(1, registry.entries().length);
+        // The existing entry is kept, with its statistics
+        assertSame(lag, registry.lagOf(first));
+        // One remove is enough
+        assertTrue(registry.remove(first));
+        assertTrue(registry.isEmpty());
+    }
+
+    @Test
+    public void testLag() {
+        registry.add(first);
+        registry.add(second);
+        assertNotSame(registry.lagOf(first), registry.lagOf(second));
+        assertNull(registry.lagOf(third));
+
+        registry.lagOf(first).record(1000);
+        assertEquals(1, registry.lagOf(first).getEventCount());
+        registry.remove(first);
+        assertNull(registry.lagOf(first));
+        // Registered again, it starts from scratch
+        registry.add(first);
+        assertEquals(0, registry.lagOf(first).getEventCount());
+    }
+
+    /**
+     * A snapshot does not change when listeners are added or removed while it is being iterated
+     */
+    @Test
+    public void testSnapshot() {
+        registry.add(first);
+        registry.add(second);
+        ListenerRegistry.Entry[] snapshot = registry.entries();
+        int delivered = 0;
+        for (ListenerRegistry.Entry entry : snapshot) {
+            // Like a listener changing the registrations from its event handler
+            registry.remove(second);
+            registry.add(third);
+            assertNotNull(entry.listener);
+            delivered++;
+        }
+        assertEquals(2, delivered);
+        assertArrayEquals(new ChatListener[]{first, second}, listenersOf(snapshot));
+        // Takes effect from the next event
+        assertArrayEquals(new ChatListener[]{first, third}, listenersOf(registry.entries()));
+    }
+
+    /**
+     * Snapshots taken on one thread while another one keeps changing the registrations are always complete
+     */
+    @Test
+    public void testConcurrentChanges() throws InterruptedException {
+        registry.add(first);
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicReference<String> error = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            while (running.get()) {
+                Set<ChatListener> seen = new HashSet<>();
+                for (ListenerRegistry.Entry entry : registry.entries()) {
+                    if (entry == null || !seen.add(entry.listener)) {
+                        error.set("Incomplete snapshot");
+                    }
+                }
+                if (!seen.contains(first)) {
+                    error.set("Snapshot without the permanent listener");
+                }
+            }
+        });
+        reader.start();
+        for (int i = 0; i < 10000; i++) {
+            registry.add(second);
+            registry.add(third);
+            registry.remove(second);
+            registry.remove(third);
+        }
+        running.set(false);
+        reader.join();
+        assertNull(error.get());
+        assertArrayEquals(new ChatListener[]{first}, listenersOf(registry.entries()));
+    }
+}
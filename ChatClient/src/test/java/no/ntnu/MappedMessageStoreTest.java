@@ -0,0 +1,93 @@
+package no.ntnu;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests storing, reading and retention of the memory-mapped message history
+ */
+public class MappedMessageStoreTest {
+    // Small segments, so that a few hundred messages fill several of them
+    private static final int SEGMENT_SIZE = 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static TextMessage message(int i) {
+        return new TextMessage("user" + (i % 3), i % 5 == 0, "Message " + i + " æøå");
+    }
+
+    @Test
+    public void testAppendAndRead() throws IOException {
+        try (MessageStore store = new MappedMessageStore(folder.getRoot().toPath(), SEGMENT_SIZE, 100)) {
+            assertEquals(0, store.nextSequence());
+            assertTrue(store.tail(10).isEmpty());
+            for (int i = 0; i < 200; i++) {
+                assertEquals(i, store.append(message(i)));
+            }
+            assertEquals(0, store.firstSequence());
+            assertEquals(200, store.nextSequence());
+            List<TextMessage> range = store.read(50, 20);
+            assertEquals(20, range.size());
+            for (int i = 0; i < 20; i++) {
+                assertEquals(message(50 + i), range.get(i));
+            }
+            List<TextMessage> tail = store.tail(3);
+            assertEquals(3, tail.size());
+            assertEquals(message(199), tail.get(2));
+        }
+    }
+
+    @Test
+    public void testReopen() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (MessageStore store = new MappedMessageStore(directory, SEGMENT_SIZE, 100)) {
+            for (int i = 0; i < 100; i++) {
+                store.append(message(i));
+            }
+        }
+        try (MessageStore store = new MappedMessageStore(directory, SEGMENT_SIZE, 100)) {
+            assertEquals(100, store.nextSequence());
+            assertEquals(message(99), store.tail(1).get(0));
+            assertEquals(100, store.append(message(100)));
+            assertEquals(message(0), store.read(0, 1).get(0));
+        }
+    }
+
+    @Test
+    public void testRetention() throws IOException {
+        try (MessageStore store = new MappedMessageStore(folder.getRoot().toPath(), SEGMENT_SIZE, 3)) {
+            for (int i = 0; i < 1000; i++) {
+                store.append(message(i));
+            }
+            assertTrue(store.firstSequence() > 0);
+            assertEquals(3, folder.getRoot().list((dir, name) -> name.endsWith(".log")).length);
+            // The scan starts at the oldest message still stored
+            List<Long> sequences = new ArrayList<>();
+            store.scan(0, Long.MAX_VALUE, (sequence, message) -> {
+                assertEquals(message((int) sequence), message);
+                return sequences.add(sequence);
+            });
+            assertEquals(Long.valueOf(store.firstSequence()), sequences.get(0));
+            assertEquals(1000, store.firstSequence() + sequences.size());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testSecondStoreRefused() throws IOException {
+        MessageStore first = new MappedMessageStore(folder.getRoot().toPath());
+        try {
+            new MappedMessageStore(folder.getRoot().toPath());
+        } finally {
+            first.close();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package no.ntnu;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests searching the message history through the inverted index
+ */
+public class MessageIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSearch() throws IOException {
+        try (MessageStore store = new MappedMessageStore(folder.getRoot().toPath())) {
+            store.append(new TextMessage("alice", false, "Meeting tomorrow at noon"));
+            store.append(new TextMessage("bob", true, "Is the meeting TOMORROW?"));
+            store.append(new TextMessage("alice", true, "Yes, the meeting is tomorrow. Meeting, meeting!"));
+            store.append(new TextMessage("carol", false, "Lunch anyone?"));
+            MessageIndex index = new MessageIndex(store);
+
+            List<TextMessage> found = index.search(SearchQuery.parse("meeting tomorrow"), 10);
+            assertEquals(3, found.size());
+            assertEquals("bob", found.get(1).getSender());
+
+            assertEquals(2, index.search(SearchQuery.parse("from:alice meeting"), 10).size());
+            assertEquals(1, index.search(SearchQuery.parse("from:alice is:private"), 10).size());
+            assertEquals(1, index.search(SearchQuery.parse("meeting is:public"), 10).size());
+            assertEquals(2, index.search(SearchQuery.parse("is:public"), 10).size());
+            assertTrue(index.search(SearchQuery.parse("dinner"), 10).isEmpty());
+            assertTrue(index.search(SearchQuery.parse("from:dave"), 10).isEmpty());
+
+            // The newest matches are returned, oldest first
+            List<TextMessage> newest = index.search(SearchQuery.parse("meeting"), 2);
+            assertEquals(Arrays.asList("bob", "alice"), Arrays.asList(newest.get(0).getSender(), newest.get(1).getSender()));
+        }
+    }
+
+    @Test
+    public void testLongKeyword() throws IOException {
+        char[] letters = new char[65];
+        Arrays.fill(letters, 'a');
+        String longWord = new String(letters);
+        try (MessageStore store = new MappedMessageStore(folder.getRoot().toPath())) {
+            store.append(new TextMessage("alice", false, "Not indexed: " + longWord));
+            store.append(new TextMessage("bob", false, "Something else"));
+            MessageIndex index = new MessageIndex(store);
+            assertEquals(Arrays.asList("not", "indexed"), MessageIndex.tokenize("Not indexed: " + longWord));
+
+            // A word too long to be indexed matches nothing, it does not turn into a query for any message
+            assertTrue(index.search(SearchQuery.parse(longWord), 10).isEmpty());
+            assertTrue(index.search(SearchQuery.parse("indexed " + longWord), 10).isEmpty());
+            assertFalse(SearchQuery.parse(longWord).isEmpty());
+            assertEquals(1, index.search(SearchQuery.parse("indexed"), 10).size());
+        }
+    }
+
+    @Test
+    public void testIncrementalUpdate() throws IOException {
+        try (MessageStore store = new MappedMessageStore(folder.getRoot().toPath())) {
+            MessageIndex index = new MessageIndex(store);
+            MessageRecorder recorder = new MessageRecorder(store, index);
+            recorder.onMessageReceived(new TextMessage("alice", false, "first"));
+            assertEquals(1, index.size());
+            store.append(new TextMessage("bob", false, "second"));
+            // Appended without the recorder, indexed before searching
+            assertEquals(1, index.search(SearchQuery.parse("second"), 10).size());
+            assertEquals(2, index.size());
+        }
+    }
+
+    @Test
+    public void testTokenize() {
+        assertEquals(Arrays.asList("hei", "på", "deg", "2", "u"), MessageIndex.tokenize("Hei på deg, 2 U!"));
+        assertTrue(MessageIndex.tokenize("  ...  ").isEmpty());
+    }
+}
@@ -0,0 +1,241 @@
+package no.ntnu;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests batching of the outgoing commands
+ */
+public class OutboundQueueTest {
+    // How long to wait for something which should happen
+    private static final int TIMEOUT = 2000;
+    // A linger time no test waits for
+    private static final int LONG_LINGER = 60000;
+
+    private final RecordingStream stream = new RecordingStream();
+    private OutboundQueue queue;
+    private Thread writer;
+
+    private void start(int maxBatchBytes, long lingerMillis) {
+        start(stream, maxBatchBytes, lingerMillis);
+    }
+
+    private void start(OutputStream out, int maxBatchBytes, long lingerMillis) {
+        queue = new OutboundQueue(out, maxBatchBytes, lingerMillis);
+        writer = new Thread(queue, "Test writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @After
+    public void stop() throws InterruptedException {
+        queue.close(new IOException("Test finished"));
+        writer.join(TIMEOUT);
+        assertFalse(writer.isAlive());
+    }
+
+    @Test
+    public void testLinger() throws Exception {
+        start(1024, 200);
+        long start = System.nanoTime();
+        CompletableFuture<Void> first = queue.enqueue("msg one", false);
+        queue.enqueue("msg two", false);
+        CompletableFuture<Void> last = queue.enqueue("msg three", false);
+        Thread.sleep(50);
+        assertFalse(first.isDone());
+        last.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertTrue(first.isDone());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+        // All three in one write
+        assertEquals("msg one\nmsg two\nmsg three\n", stream.batches.poll());
+        assertNull(stream.batches.poll());
+    }
+
+    @Test
+    public void testMaxBatchBytes() throws Exception {
+        start(16, LONG_LINGER);
+        queue.enqueue("msg 1234", false);
+        assertNull(stream.batches.poll(100, TimeUnit.MILLISECONDS));
+        // 9 + 9 bytes with the newlines fill the batch
+        queue.enqueue("msg 5678", false).get(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertEquals("msg 1234\nmsg 5678\n", stream.batches.poll());
+    }
+
+    @Test
+    public void testFlushNow() throws Exception {
+        start(1024, LONG_LINGER);
+        CompletableFuture<Void> first = queue.enqueue("msg lingering", false);
+        queue.enqueue("login alice", true).get(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertTrue(first.isDone());
+        assertEquals("msg lingering\nlogin alice\n", stream.batches.poll());
+
+        queue.enqueue("msg a", false);
+        queue.enqueue("msg b", false);
+        queue.flush().get(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertEquals("msg a\nmsg b\n", stream.batches.poll());
+    }
+
+    @Test
+    public void testLowLatency() throws Exception {
+        start(1024, LONG_LINGER);
+        queue.setLowLatency(true);
+        queue.enqueue("msg now", false).get(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertEquals("msg now\n", stream.batches.poll());
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        start(1024, LONG_LINGER);
+        CompletableFuture<Void> queued = queue.enqueue("msg never sent", false);
+        IOException cause = new IOException("Connection closed");
+        queue.close(cause);
+        assertSame(cause, failure(queued));
+        assertSame(cause, failure(queue.enqueue("msg after close", true)));
+        writer.join(TIMEOUT);
+        assertFalse(writer.isAlive());
+        assertNull(stream.batches.poll());
+    }
+
+    @Test
+    public void testWriteFailure() throws Exception {
+        stream.fail = true;
+        start(1024, LONG_LINGER);
+        CompletableFuture<Void> sent = queue.enqueue("msg one", true);
+        assertTrue(failure(sent) instanceof IOException);
+        // Not resumable: the queue is closed after the failure
+        assertTrue(failure(queue.enqueue("msg two", true)) instanceof IOException);
+    }
+
+    /**
+     * The write to the old connection fails only after the reader has resumed on a new one. The batch must go to
+     * the new connection after the login of the resume, and the queue must not be suspended again.
+     */
+    @Test
+    public void testWriteFailureAfterResume() throws Exception {
+        StallingStream old = new StallingStream();
+        start(old, 1024, LONG_LINGER);
+        queue.setResumable(true);
+        CompletableFuture<Void> stale = queue.enqueue("msg stale", true);
+        assertTrue(old.writing.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        queue.suspend();
+        queue.resume(stream, "login alice");
+        old.fail.countDown();
+        stale.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertEquals("login alice\nmsg stale\n", stream.batches.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+        queue.enqueue("msg after", true).get(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertEquals("msg after\n", stream.batches.poll());
+    }
+
+    @Test
+    public void testCompressorEnded() throws Exception {
+        start(1024, LONG_LINGER);
+        Compression.Compressor replaced = new Compression.Compressor(1, null, null);
+        queue.setCompressor(replaced);
+        queue.suspend();
+        queue.resume(stream, null);
+        // Never used by the writer, ended at once
+        assertTrue(isEnded(replaced));
+
+        Compression.Compressor used = new Compression.Compressor(1, null, null);
+        queue.setCompressor(used);
+        queue.enqueue("msg compressed", true).get(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertFalse(isEnded(used));
+        queue.close(new IOException("Connection closed"));
+        writer.join(TIMEOUT);
+        assertTrue(isEnded(used));
+    }
+
+    /**
+     * @return true if the compressor can no longer be used
+     */
+    private static boolean isEnded(Compression.Compressor compressor) {
+        try {
+            compressor.compress(new byte[]{'x'}, 0, 1);
+            return false;
+        } catch (NullPointerException e) {
+            // The deflater has been ended
+            return true;
+        }
+    }
+
+    /**
+     * @return Why the future failed
+     */
+    private static Throwable failure(CompletableFuture<Void> future) throws Exception {
+        try {
+            future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+        fail("The future did not fail");
+        return null;
+    }
+
+    /**
+     * Blocks the first write until told to fail it, like a socket whose connection is lost meanwhile.
+     */
+    private static class StallingStream extends OutputStream {
+        private final CountDownLatch writing = new CountDownLatch(1);
+        private final CountDownLatch fail = new CountDownLatch(1);
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writing.countDown();
+            try {
+                fail.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new IOException("Broken pipe");
+        }
+    }
+
+    /**
+     * Records what is written between two flushes as one batch.
+     */
+    private static class RecordingStream extends OutputStream {
+        private final ByteArrayOutputStream current = new ByteArrayOutputStream();
+        private final BlockingQueue<String> batches = new LinkedBlockingQueue<>();
+        private volatile boolean fail = false;
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (fail) {
+                throw new IOException("Broken pipe");
+            }
+            current.write(b, off, len);
+        }
+
+        @Override
+        public synchronized void flush() {
+            if (current.size() > 0) {
+                batches.add(new String(current.toByteArray(), StandardCharsets.UTF_8));
+                current.reset();
+            }
+        }
+    }
+}
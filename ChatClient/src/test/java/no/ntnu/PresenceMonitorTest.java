@@ -0,0 +1,76 @@
+package no.ntnu;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the timing of the user list requests
+ */
+public class PresenceMonitorTest {
+    // How long to wait for a request which should be sent
+    private static final int TIMEOUT = 2000;
+
+    // The requests sent by the monitor, not answered yet
+    private final BlockingQueue<CompletableFuture<String[]>> requests = new LinkedBlockingQueue<>();
+
+    private PresenceMonitor monitor(PresenceStrategy strategy) {
+        return new PresenceMonitor(strategy, () -> {
+            CompletableFuture<String[]> request = new CompletableFuture<>();
+            requests.add(request);
+            return request;
+        });
+    }
+
+    /**
+     * Answer a request like the client's reader does: report the list, then complete the future.
+     */
+    private static void answer(PresenceMonitor monitor, CompletableFuture<String[]> request, String... users) {
+        monitor.onUserList(users);
+        request.complete(users);
+    }
+
+    @Test
+    public void testPolling() throws InterruptedException {
+        PresenceMonitor monitor = monitor(PresenceStrategy.fixed(50));
+        monitor.start();
+        for (int i = 0; i < 3; i++) {
+            CompletableFuture<String[]> request = requests.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+            assertNotNull(request);
+            answer(monitor, request, "alice");
+        }
+        monitor.stop();
+        assertNull(requests.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testPollingResumesAfterFailedRequest() throws InterruptedException {
+        PresenceMonitor monitor = monitor(PresenceStrategy.adaptive(50, 200));
+        monitor.start();
+        CompletableFuture<String[]> request = requests.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertNotNull(request);
+        // For example failed by a reconnect: no reply will come
+        request.completeExceptionally(new IOException("Connection lost"));
+
+        request = requests.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertNotNull(request);
+        answer(monitor, request, "alice", "bob");
+        assertNotNull(requests.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+        monitor.stop();
+    }
+
+    @Test
+    public void testPushNeverPolls() throws InterruptedException {
+        PresenceMonitor monitor = monitor(PresenceStrategy.push());
+        monitor.start();
+        monitor.onUserList(new String[]{"alice"});
+        assertNull(requests.poll(200, TimeUnit.MILLISECONDS));
+        monitor.stop();
+    }
+}
@@ -0,0 +1,101 @@
+package no.ntnu;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the matching of sent commands with their replies
+ */
+public class RoundTripTrackerTest {
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final RoundTripTracker tracker = new RoundTripTracker(metrics);
+
+    @Test
+    public void testFifoMatching() {
+        tracker.sent(ChatCommand.USERS, 100);
+        tracker.sent(ChatCommand.LOGIN, 150);
+        tracker.sent(ChatCommand.USERS, 200);
+        tracker.received(ChatCommand.USERS, 1000);
+        assertEquals(900, tracker.last(ChatCommand.USERS));
+        tracker.received(ChatCommand.LOGINERR, 1100);
+        assertEquals(950, tracker.last(ChatCommand.LOGIN));
+        tracker.received(ChatCommand.USERS, 1500);
+        assertEquals(1300, tracker.last(ChatCommand.USERS));
+        assertEquals(2, tracker.histogram(ChatCommand.USERS).getCount());
+        assertEquals(1, tracker.histogram(ChatCommand.LOGIN).getCount());
+        assertSame(metrics.histogram("client.rtt.users"), tracker.histogram(ChatCommand.USERS));
+    }
+
+    @Test
+    public void testUntrackedCommands() {
+        tracker.sent(ChatCommand.MSG, 100);
+        tracker.received(ChatCommand.MSGERR, 200);
+        assertNull(tracker.histogram(ChatCommand.MSG));
+        assertEquals(0, tracker.last(ChatCommand.MSG));
+    }
+
+    @Test
+    public void testReplyWithoutRequest() {
+        tracker.received(ChatCommand.SUPPORTED, 1000);
+        assertEquals(0, tracker.histogram(ChatCommand.HELP).getCount());
+        assertEquals(0, tracker.last(ChatCommand.HELP));
+    }
+
+    @Test
+    public void testFailed() {
+        tracker.sent(ChatCommand.HELP, 100);
+        tracker.sent(ChatCommand.HELP, 300);
+        // The first one was answered with cmderror, the reply is for the second one
+        tracker.failed(ChatCommand.HELP);
+        tracker.received(ChatCommand.SUPPORTED, 1000);
+        assertEquals(700, tracker.last(ChatCommand.HELP));
+        assertEquals(1, tracker.histogram(ChatCommand.HELP).getCount());
+        // Nothing left to fail
+        tracker.failed(ChatCommand.HELP);
+        tracker.received(ChatCommand.SUPPORTED, 2000);
+        assertEquals(1, tracker.histogram(ChatCommand.HELP).getCount());
+    }
+
+    @Test
+    public void testClear() {
+        tracker.sent(ChatCommand.LOGIN, 100);
+        tracker.sent(ChatCommand.USERS, 100);
+        // Disconnected, the replies will never come
+        tracker.clear();
+        tracker.received(ChatCommand.LOGINOK, 1000);
+        tracker.received(ChatCommand.USERS, 1000);
+        assertEquals(0, tracker.histogram(ChatCommand.LOGIN).getCount());
+        assertEquals(0, tracker.histogram(ChatCommand.USERS).getCount());
+
+        // A request on the new connection is matched with its own reply
+        tracker.sent(ChatCommand.LOGIN, 5000);
+        tracker.received(ChatCommand.LOGINOK, 5400);
+        assertEquals(400, tracker.last(ChatCommand.LOGIN));
+    }
+
+    /**
+     * More outstanding requests than the initial ring holds, after the ring has wrapped around
+     */
+    @Test
+    public void testManyOutstanding() {
+        long time = 0;
+        for (int i = 0; i < 10; i++) {
+            tracker.sent(ChatCommand.USERS, time++);
+        }
+        for (int i = 0; i < 5; i++) {
+            tracker.received(ChatCommand.USERS, 1000 + i);
+            assertEquals(1000, tracker.last(ChatCommand.USERS));
+        }
+        for (int i = 0; i < 100; i++) {
+            tracker.sent(ChatCommand.USERS, time++);
+        }
+        for (int i = 5; i < 110; i++) {
+            tracker.received(ChatCommand.USERS, 1000 + i);
+            assertEquals(1000, tracker.last(ChatCommand.USERS));
+        }
+        assertEquals(110, tracker.histogram(ChatCommand.USERS).getCount());
+        tracker.received(ChatCommand.USERS, 5000);
+        assertEquals(110, tracker.histogram(ChatCommand.USERS).getCount());
+    }
+}
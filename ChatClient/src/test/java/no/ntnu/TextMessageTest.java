@@ -0,0 +1,52 @@
+package no.ntnu;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests equality and hashing of chat messages
+ */
+public class TextMessageTest {
+
+    @Test
+    public void testEqualMessages() {
+        TextMessage message = new TextMessage("alice", false, "Hello");
+        TextMessage same = new TextMessage(new String("alice"), false, new String("Hello"));
+        assertEquals(message, same);
+        assertEquals(message.hashCode(), same.hashCode());
+    }
+
+    @Test
+    public void testDifferentMessages() {
+        TextMessage message = new TextMessage("alice", false, "Hello");
+        assertNotEquals(message, new TextMessage("bob", false, "Hello"));
+        assertNotEquals(message, new TextMessage("alice", true, "Hello"));
+        assertNotEquals(message, new TextMessage("alice", false, "Hello!"));
+        assertNotEquals(message, null);
+        assertNotEquals(message, "alice");
+        assertEquals(new TextMessage(null, false, null), new TextMessage(null, false, null));
+    }
+
+    @Test
+    public void testSameHashDifferentMessages() {
+        // "Aa" and "BB" have the same String hash code, so these messages have the same hash code too
+        TextMessage message = new TextMessage("alice", false, "Aa");
+        TextMessage other = new TextMessage("alice", false, "BB");
+        assertEquals(message.hashCode(), other.hashCode());
+        assertNotEquals(message, other);
+        Set<TextMessage> messages = new HashSet<>();
+        messages.add(message);
+        assertFalse(messages.contains(other));
+    }
+
+    @Test
+    public void testSharedSender() {
+        TextMessage first = new TextMessage(new String("carol"), false, "one");
+        TextMessage second = new TextMessage(new String("carol"), true, "two");
+        assertSame(first.getSender(), second.getSender());
+    }
+}
@@ -0,0 +1,65 @@
+package no.ntnu;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the diffing of user lists
+ */
+public class UserListModelTest {
+
+    @Test
+    public void testFirstList() {
+        UserListModel model = new UserListModel();
+        UserListModel.Diff diff = model.update(new String[]{"alice", "bob"});
+        assertNotNull(diff);
+        assertEquals(Arrays.asList("alice", "bob"), diff.getAdded());
+        assertTrue(diff.getRemoved().isEmpty());
+        assertEquals(2, model.size());
+    }
+
+    @Test
+    public void testUnchangedList() {
+        UserListModel model = new UserListModel();
+        model.update(new String[]{"alice", "bob"});
+        // Same users in another order is no change
+        assertNull(model.update(new String[]{"bob", "alice"}));
+    }
+
+    @Test
+    public void testJoinAndLeave() {
+        UserListModel model = new UserListModel();
+        model.update(new String[]{"alice", "bob", "carol"});
+        UserListModel.Diff diff = model.update(new String[]{"alice", "dave", "carol"});
+        assertNotNull(diff);
+        assertEquals(Collections.singletonList("dave"), diff.getAdded());
+        assertEquals(Collections.singletonList("bob"), diff.getRemoved());
+        assertTrue(model.contains("dave"));
+        assertFalse(model.contains("bob"));
+    }
+
+    @Test
+    public void testDuplicates() {
+        UserListModel model = new UserListModel();
+        model.update(new String[]{"alice", "bob"});
+        UserListModel.Diff diff = model.update(new String[]{"alice", "alice"});
+        assertNotNull(diff);
+        assertTrue(diff.getAdded().isEmpty());
+        assertEquals(Collections.singletonList("bob"), diff.getRemoved());
+    }
+
+    @Test
+    public void testClear() {
+        UserListModel model = new UserListModel();
+        assertNull(model.clear());
+        model.update(new String[]{"alice"});
+        UserListModel.Diff diff = model.clear();
+        assertNotNull(diff);
+        assertEquals(Collections.singletonList("alice"), diff.getRemoved());
+        assertEquals(0, model.size());
+    }
+}
@@ -8,14 +8,14 @@ import no.ntnu.TextMessage;
  */
 public class DummyResponseCounter implements ChatListener {
 
-    public int loginSuccess = 0;
-    public int loginError = 0;
-    public int msg = 0;
-    public int msgErr = 0;
-    public int userList = 0;
-    public int supported = 0;
-    public int cmdErr = 0;
-    public int disconn = 0;
+    public volatile int loginSuccess = 0;
+    public volatile int loginError = 0;
+    public volatile int msg = 0;
+    public volatile int msgErr = 0;
+    public volatile int userList = 0;
+    public volatile int supported = 0;
+    public volatile int cmdErr = 0;
+    public volatile int disconn = 0;
 
     @Override
     public void onLoginResult(boolean success, String errMsg) {
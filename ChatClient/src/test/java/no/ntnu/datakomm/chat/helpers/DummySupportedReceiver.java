@@ -1,14 +1,14 @@
 package no.ntnu.datakomm.chat.helpers;
 
 import java.util.Arrays;
-import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Receive and remember last supported command listing.
  */
 public class DummySupportedReceiver extends EmptyChatListener {
-    private Set<String> commands = new HashSet<>();
+    private Set<String> commands = ConcurrentHashMap.newKeySet();
 
     @Override
     public void onSupportedCommands(String[] commands) {
@@ -1,14 +1,14 @@
 package no.ntnu.datakomm.chat.helpers;
 
 import java.util.Arrays;
-import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Receive and remember last user listing.
  */
 public class DummyUserListingReceiver extends EmptyChatListener {
-    private Set<String> usernames = new HashSet<>();
+    private Set<String> usernames = ConcurrentHashMap.newKeySet();
 
     @Override
     public void onUserList(String[] usernames) {
@@ -1,23 +1,60 @@
 package no.ntnu.datakomm.chat.helpers;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import no.ntnu.ConnectionOptions;
+import no.ntnu.LocalChatServer;
+import no.ntnu.LoginResult;
+import no.ntnu.OverflowPolicy;
+import no.ntnu.ReconnectPolicy;
 import no.ntnu.TCPClient;
 import no.ntnu.TextMessage;
 import no.ntnu.datakomm.chat.helpers.DummyResponseCounter;
 import no.ntnu.datakomm.chat.helpers.DummyMsgReceiver;
 import no.ntnu.datakomm.chat.helpers.DummySupportedReceiver;
 import no.ntnu.datakomm.chat.helpers.DummyUserListingReceiver;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
 import org.junit.Test;
 
 
 import static org.junit.Assert.*;
 
 public class TcpClientTest {
-    // Host and port to be used for all connection in the tests
-    private static final String SERVER_HOST = "datakomm.work";
-    private static final int SERVER_PORT = 1310;
+    // Host and port to be used for all connection in the tests. The tests run against a local chat server, so
+    // they need no network and other people running the tests at the same time do not disturb them.
+    private static final String SERVER_HOST = "localhost";
+    private static int SERVER_PORT;
+    private static LocalChatServer server;
 
     // How many ms to sleep when waiting for server response to arrive
     private static final int THREAD_SLEEP_TIME = 2000;
+    // How many ms to wait for a reply to a request
+    private static final int REPLY_TIMEOUT = 5000;
+
+    @BeforeClass
+    public static void startServer() throws IOException {
+        server = new LocalChatServer().start();
+        SERVER_PORT = server.getPort();
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.close();
+        assertNull(server.getFailure());
+    }
 
     /**
      * Test if opening and closing connection works
@@ -38,10 +75,10 @@ public class TcpClientTest {
      * Test if login works correctly. Note: this test can fail if several students run the same test at the same
      * time: several clients will try to use the same username.
      *
-     * @throws InterruptedException When test is interrupted while sleeping
+     * @throws Exception When test is interrupted or the reply does not arrive in time
      */
     @Test
-    public void testLogin() throws InterruptedException {
+    public void testLogin() throws Exception {
         TCPClient client = new TCPClient();
         assertTrue(client.connect(SERVER_HOST, SERVER_PORT));
         // The incoming messages will be received on another thread
@@ -49,50 +86,55 @@ public class TcpClientTest {
         // Listen to how many messages of each type the client receives
         DummyResponseCounter counter = new DummyResponseCounter();
         client.addListener(counter);
-        assertEquals(0, counter.loginSuccess);
-        assertEquals(0, counter.loginError);
 
         // Try bad username
-        client.tryLogin("Bad username");
-        // allow the login response (loginerr) to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
+        LoginResult result = client.login("Bad username").get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS);
+        assertFalse(result.isSuccess());
+        assertNotNull(result.getErrorMessage());
+        // The listeners get the same reply
+        assertTrue(eventually(() -> counter.loginError == 1));
         assertEquals(0, counter.loginSuccess);
-        assertEquals(1, counter.loginError);
-
-        // Reset the counters
-        counter.loginSuccess = 0;
-        counter.loginError = 0;
 
         // Try ok username with letters only
-        client.tryLogin("unittestnormal");
-        // allow the login response to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
-        assertEquals(1, counter.loginSuccess);
-        assertEquals(0, counter.loginError);
-
-        // Reset the counters
-        counter.loginSuccess = 0;
-        counter.loginError = 0;
+        result = client.login("unittestnormal").get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS);
+        assertTrue(result.isSuccess());
 
         // Try ok username with big and small letters
-        client.tryLogin("UnitTestCamel");
-        // allow the login response to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
-        assertEquals(1, counter.loginSuccess);
-        assertEquals(0, counter.loginError);
-
-        // Reset the counters
-        counter.loginSuccess = 0;
-        counter.loginError = 0;
+        result = client.login("UnitTestCamel").get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS);
+        assertTrue(result.isSuccess());
 
         // Alphanumerics
-        client.tryLogin("UnitTest35Alpha");
-        // allow the login response to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
-        assertEquals(1, counter.loginSuccess);
-        assertEquals(0, counter.loginError);
-        counter.loginSuccess = 0;
-        counter.loginError = 0;
+        result = client.login("UnitTest35Alpha").get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS);
+        assertTrue(result.isSuccess());
+        assertTrue(eventually(() -> counter.loginSuccess == 3));
+        assertEquals(1, counter.loginError);
+
+        client.disconnect();
+    }
+
+    /**
+     * Test if several requests can be sent at once, without waiting for the replies: each reply must be
+     * matched with its own request.
+     *
+     * @throws Exception When test is interrupted or the replies do not arrive in time
+     */
+    @Test
+    public void testPipelinedRequests() throws Exception {
+        TCPClient client = new TCPClient();
+        assertTrue(client.connect(SERVER_HOST, SERVER_PORT));
+        client.startListenThread();
+
+        int rand = (int) (Math.random() * 10000);
+        String username = "UnitTestPipe" + rand;
+        CompletableFuture<LoginResult> badLogin = client.login("Bad username");
+        CompletableFuture<String[]> supported = client.supportedCommands();
+        CompletableFuture<LoginResult> goodLogin = client.login(username);
+        CompletableFuture<String[]> users = client.users();
+
+        assertFalse(badLogin.get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
+        assertTrue(Arrays.asList(supported.get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS)).contains("users"));
+        assertTrue(goodLogin.get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
+        assertTrue(Arrays.asList(users.get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS)).contains(username));
 
         client.disconnect();
     }
@@ -143,7 +185,7 @@ public class TcpClientTest {
     /**
      * Test if sending private messages works.
      *
-     * @throws InterruptedException When test is interrupted while sleeping
+     * @throws InterruptedException When test is interrupted while sleeping or waiting for a login reply
      */
     @Test
     public void testPrivateMessages() throws InterruptedException {
@@ -159,14 +201,16 @@ public class TcpClientTest {
         String C1_USERNAME = "UnitTestC1";
         String C2_USERNAME = "UnitTestC2";
         String C3_USERNAME = "UnitTestC3";
-        c1.tryLogin(C1_USERNAME);
-        c2.tryLogin(C2_USERNAME);
-        c3.tryLogin(C3_USERNAME);
 
         // Clients will listen for incoming messages, each on a different CPU thread
         c1.startListenThread();
         c2.startListenThread();
         c3.startListenThread();
+
+        // Wait for the logins, the recipient must be logged in before the message reaches the server
+        assertTrue(login(c1, C1_USERNAME));
+        assertTrue(login(c2, C2_USERNAME));
+        assertTrue(login(c3, C3_USERNAME));
         DummyMsgReceiver rec1 = new DummyMsgReceiver();
         DummyMsgReceiver rec2 = new DummyMsgReceiver();
         DummyMsgReceiver rec3 = new DummyMsgReceiver();
@@ -208,6 +252,468 @@ public class TcpClientTest {
         c3.disconnect();
     }
 
+    /**
+     * Test if messages with several lines get through. Clients with binary framing send and receive them as
+     * they are; a client with text framing sends each line as a message of its own, and receives the lines
+     * joined with spaces.
+     *
+     * @throws Exception When test is interrupted or a login reply does not arrive in time
+     */
+    @Test
+    public void testBinaryFraming() throws Exception {
+        TCPClient c1 = new TCPClient();
+        TCPClient c2 = new TCPClient();
+        TCPClient c3 = new TCPClient();
+        c1.setBinaryFraming(true);
+        c2.setBinaryFraming(true);
+        assertTrue(c1.connect(SERVER_HOST, SERVER_PORT));
+        assertTrue(c2.connect(SERVER_HOST, SERVER_PORT));
+        assertTrue(c3.connect(SERVER_HOST, SERVER_PORT));
+        c1.startListenThread();
+        c2.startListenThread();
+        c3.startListenThread();
+
+        int rand = (int) (Math.random() * 10000);
+        String C1_USERNAME = "UnitTestBin1" + rand;
+        String C3_USERNAME = "UnitTestText3" + rand;
+        // The framing is agreed before the login reply arrives
+        assertTrue(c1.login(C1_USERNAME).get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
+        assertTrue(c2.login("UnitTestBin2" + rand).get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
+        assertTrue(c3.login(C3_USERNAME).get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
+        assertTrue(c1.isBinaryFraming());
+        assertTrue(c2.isBinaryFraming());
+        assertFalse(c3.isBinaryFraming());
+        DummyMsgReceiver rec2 = new DummyMsgReceiver();
+        DummyMsgReceiver rec3 = new DummyMsgReceiver();
+        c2.addListener(rec2);
+        c3.addListener(rec3);
+
+        c1.sendPublicMessage("[Unittest4] First line\nSecond line");
+        c3.sendPrivateMessage("UnitTestBin2" + rand, "[Unittest5] First line\nSecond line");
+        Thread.sleep(THREAD_SLEEP_TIME);
+
+        assertTrue(rec2.hasReceived(new TextMessage(C1_USERNAME, false, "[Unittest4] First line\nSecond line")));
+        assertTrue(rec3.hasReceived(new TextMessage(C1_USERNAME, false, "[Unittest4] First line Second line")));
+        assertTrue(rec2.hasReceived(new TextMessage(C3_USERNAME, true, "[Unittest5] First line")));
+        assertTrue(rec2.hasReceived(new TextMessage(C3_USERNAME, true, "Second line")));
+
+        c1.disconnect();
+        c2.disconnect();
+        c3.disconnect();
+    }
+
+    /**
+     * Test that a client asking for binary framing falls back to text lines when the server never answers the
+     * request, and that the commands held meanwhile are then sent.
+     *
+     * @throws Exception When test is interrupted or a reply does not arrive in time
+     */
+    @Test
+    public void testFramingNegotiationTimeout() throws Exception {
+        try (LocalChatServer silent = new LocalChatServer().setAnswerExtensionRequests(false).start()) {
+            TCPClient client = new TCPClient();
+            client.setBinaryFraming(true);
+            client.setConnectionOptions(ConnectionOptions.builder().readTimeoutMillis(300).build());
+            assertTrue(client.connect(SERVER_HOST, silent.getPort()));
+            client.startListenThread();
+            int rand = (int) (Math.random() * 10000);
+            assertTrue(client.login("UnitTestSilent" + rand).get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
+            assertFalse(client.isBinaryFraming());
+            assertArrayEquals(new String[]{"UnitTestSilent" + rand},
+                    client.users().get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS));
+            assertTrue(client.isConnectionActive());
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Test if long messages get through compressed, and short ones and the ones to a client without
+     * compression uncompressed.
+     *
+     * @throws Exception When test is interrupted or a login reply does not arrive in time
+     */
+    @Test
+    public void testCompression() throws Exception {
+        TCPClient c1 = new TCPClient();
+        TCPClient c2 = new TCPClient();
+        TCPClient c3 = new TCPClient();
+        for (TCPClient client : new TCPClient[]{c1, c2, c3}) {
+            client.setBinaryFraming(true);
+            client.setCompression(client != c3);
+            assertTrue(client.connect(SERVER_HOST, SERVER_PORT));
+            client.startListenThread();
+        }
+        int rand = (int) (Math.random() * 10000);
+        String C1_USERNAME = "UnitTestZip1" + rand;
+        assertTrue(c1.login(C1_USERNAME).get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
+        assertTrue(c2.login("UnitTestZip2" + rand).get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
+        assertTrue(c3.login("UnitTestZip3" + rand).get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
+        assertTrue(c1.isCompressing());
+        assertTrue(c2.isCompressing());
+        assertFalse(c3.isCompressing());
+        DummyMsgReceiver rec2 = new DummyMsgReceiver();
+        DummyMsgReceiver rec3 = new DummyMsgReceiver();
+        c2.addListener(rec2);
+        c3.addListener(rec3);
+
+        StringBuilder log = new StringBuilder("[Unittest6]");
+        for (int i = 0; i < 100; i++) {
+            log.append("\nINFO Processed request ").append(i);
+        }
+        String LONG_TEXT = log.toString();
+        String SHORT_TEXT = "[Unittest7] Short";
+        c1.sendPublicMessage(LONG_TEXT);
+        c1.sendPublicMessage(SHORT_TEXT);
+        c1.sendPublicMessage(LONG_TEXT);
+        Thread.sleep(THREAD_SLEEP_TIME);
+
+        for (DummyMsgReceiver receiver : new DummyMsgReceiver[]{rec2, rec3}) {
+            assertTrue(receiver.hasReceived(new TextMessage(C1_USERNAME, false, LONG_TEXT)));
+            assertTrue(receiver.hasReceived(new TextMessage(C1_USERNAME, false, SHORT_TEXT)));
+        }
+        assertEquals(2, c1.getMetrics().snapshot().get("client.compression.sent.messages").longValue());
+        assertTrue(c2.getMetrics().snapshot().get("client.compression.received.saved").longValue()
+                > LONG_TEXT.length());
+
+        c1.disconnect();
+        c2.disconnect();
+        c3.disconnect();
+    }
+
+    /**
+     * Test if a connection to a server which stops answering is closed after the read timeout has passed twice:
+     * once before the client checks the connection with a request, once more waiting for the answer.
+     *
+     * @throws Exception When test is interrupted or the connection fails
+     */
+    @Test
+    public void testReadTimeout() throws Exception {
+        try (ServerSocket silentServer = new ServerSocket(0)) {
+            TCPClient client = new TCPClient();
+            client.setConnectionOptions(ConnectionOptions.builder().readTimeoutMillis(300).build());
+            assertTrue(client.connect(SERVER_HOST, silentServer.getLocalPort()));
+            DummyResponseCounter counter = new DummyResponseCounter();
+            client.addListener(counter);
+            client.startListenThread();
+
+            try (Socket accepted = silentServer.accept()) {
+                // Reads the requests, never answers
+                InputStream in = accepted.getInputStream();
+                StringBuilder received = new StringBuilder();
+                int b;
+                while ((b = in.read()) >= 0) {
+                    received.append((char) b);
+                }
+                assertEquals("users\n", received.toString());
+            }
+            assertFalse(client.isConnectionActive());
+            Thread.sleep(100);
+            assertEquals(1, counter.disconn);
+        }
+    }
+
+    /**
+     * Test that the answer to the read timeout probe is not taken as the answer to the next user list request.
+     *
+     * @throws Exception When test is interrupted or the connection fails
+     */
+    @Test
+    public void testProbeReply() throws Exception {
+        try (ServerSocket scriptedServer = new ServerSocket(0)) {
+            TCPClient client = new TCPClient();
+            client.setConnectionOptions(ConnectionOptions.builder().readTimeoutMillis(500).build());
+            assertTrue(client.connect(SERVER_HOST, scriptedServer.getLocalPort()));
+            client.startListenThread();
+
+            try (Socket accepted = scriptedServer.accept()) {
+                accepted.setSoTimeout(REPLY_TIMEOUT);
+                BufferedReader in = new BufferedReader(new InputStreamReader(accepted.getInputStream(), "UTF-8"));
+                OutputStream out = accepted.getOutputStream();
+                // The probe, sent after the read timeout
+                assertEquals("users", in.readLine());
+                CompletableFuture<String[]> users = client.users();
+                assertEquals("users", in.readLine());
+                out.write("users ProbeAnswer\nusers UnitTestA UnitTestB\n".getBytes("UTF-8"));
+                assertArrayEquals(new String[]{"UnitTestA", "UnitTestB"},
+                        users.get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS));
+                assertTrue(client.isConnectionActive());
+                client.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Test that a user list the client did not ask for records no round-trip time, against a scripted server.
+     *
+     * @throws Exception When test is interrupted or the connection fails
+     */
+    @Test
+    public void testUnsolicitedUserList() throws Exception {
+        try (ServerSocket scriptedServer = new ServerSocket(0)) {
+            TCPClient client = new TCPClient();
+            assertTrue(client.connect(SERVER_HOST, scriptedServer.getLocalPort()));
+            DummyUserListingReceiver receiver = new DummyUserListingReceiver();
+            client.addListener(receiver);
+            client.startListenThread();
+
+            try (Socket accepted = scriptedServer.accept()) {
+                accepted.setSoTimeout(REPLY_TIMEOUT);
+                BufferedReader in = new BufferedReader(new InputStreamReader(accepted.getInputStream(), "UTF-8"));
+                OutputStream out = accepted.getOutputStream();
+                out.write("users Pushed\n".getBytes("UTF-8"));
+                assertTrue(eventually(() -> receiver.getCount() == 1));
+                assertEquals(0, client.getRoundTripTimes("users").getCount());
+
+                CompletableFuture<String[]> users = client.users();
+                assertEquals("users", in.readLine());
+                out.write("users UnitTestA\n".getBytes("UTF-8"));
+                users.get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS);
+                assertEquals(1, client.getRoundTripTimes("users").getCount());
+                client.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Test that a request the server answers with cmderror fails, and that the next reply of the same kind goes
+     * to the next request, against a scripted server.
+     *
+     * @throws Exception When test is interrupted or the connection fails
+     */
+    @Test
+    public void testCommandError() throws Exception {
+        try (ServerSocket scriptedServer = new ServerSocket(0)) {
+            TCPClient client = new TCPClient();
+            assertTrue(client.connect(SERVER_HOST, scriptedServer.getLocalPort()));
+            client.startListenThread();
+
+            try (Socket accepted = scriptedServer.accept()) {
+                accepted.setSoTimeout(REPLY_TIMEOUT);
+                BufferedReader in = new BufferedReader(new InputStreamReader(accepted.getInputStream(), "UTF-8"));
+                OutputStream out = accepted.getOutputStream();
+                CompletableFuture<String[]> rejected = client.supportedCommands();
+                assertEquals("help", in.readLine());
+                out.write("cmderror command not supported\n".getBytes("UTF-8"));
+                try {
+                    rejected.get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS);
+                    fail("The request answered with cmderror did not fail");
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof IOException);
+                }
+
+                CompletableFuture<String[]> supported = client.supportedCommands();
+                assertEquals("help", in.readLine());
+                out.write("supported msg help\n".getBytes("UTF-8"));
+                assertArrayEquals(new String[]{"msg", "help"}, supported.get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS));
+                // Only the answered request has a round-trip time
+                assertEquals(1, client.getRoundTripTimes("help").getCount());
+                client.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Test that a listener can wait for a reply while the event queue is full: the reply future must be
+     * completed before the reader waits for space in the queue. Against a scripted server.
+     *
+     * @throws Exception When test is interrupted or the connection fails
+     */
+    @Test
+    public void testReplyWithFullEventQueue() throws Exception {
+        try (ServerSocket scriptedServer = new ServerSocket(0)) {
+            TCPClient client = new TCPClient();
+            client.setEventQueue(1, OverflowPolicy.BLOCK);
+            assertTrue(client.connect(SERVER_HOST, scriptedServer.getLocalPort()));
+            CompletableFuture<LoginResult> nestedLogin = new CompletableFuture<>();
+            client.addListener(new EmptyChatListener() {
+                @Override
+                public void onMessageReceived(TextMessage message) {
+                    if (!nestedLogin.isDone()) {
+                        // Blocks the dispatcher until the reply arrives
+                        try {
+                            nestedLogin.complete(client.login("UnitTestNested").get(REPLY_TIMEOUT,
+                                    TimeUnit.MILLISECONDS));
+                        } catch (Exception e) {
+                            nestedLogin.completeExceptionally(e);
+                        }
+                    }
+                }
+            });
+            client.startListenThread();
+
+            try (Socket accepted = scriptedServer.accept()) {
+                accepted.setSoTimeout(REPLY_TIMEOUT);
+                BufferedReader in = new BufferedReader(new InputStreamReader(accepted.getInputStream(), "UTF-8"));
+                OutputStream out = accepted.getOutputStream();
+                out.write("msg alice Hello\n".getBytes("UTF-8"));
+                assertEquals("login UnitTestNested", in.readLine());
+                // The second message fills the queue, the login event has to wait for space
+                out.write("msg alice Filler\nloginok\n".getBytes("UTF-8"));
+                assertTrue(nestedLogin.get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
+                client.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Test reconnecting after the server has dropped the connection, against a scripted server: the requests
+     * waiting for a reply on the lost connection fail, the client logs in again on the new connection, and the
+     * commands queued while disconnected are sent once, after the login.
+     *
+     * @throws Exception When test is interrupted or the connection fails
+     */
+    @Test
+    public void testReconnect() throws Exception {
+        try (ServerSocket scriptedServer = new ServerSocket(0)) {
+            TCPClient client = new TCPClient();
+            // The first attempt comes after 250-500 ms, time enough to queue a command while disconnected
+            client.setReconnectPolicy(new ReconnectPolicy(500, 1000, 5));
+            assertTrue(client.connect(SERVER_HOST, scriptedServer.getLocalPort()));
+            CountDownLatch reconnected = new CountDownLatch(1);
+            client.addListener(new EmptyChatListener() {
+                @Override
+                public void onReconnected() {
+                    reconnected.countDown();
+                }
+            });
+            client.startListenThread();
+
+            CompletableFuture<String[]> unanswered;
+            try (Socket first = scriptedServer.accept()) {
+                first.setSoTimeout(REPLY_TIMEOUT);
+                BufferedReader in = new BufferedReader(new InputStreamReader(first.getInputStream(), "UTF-8"));
+                OutputStream out = first.getOutputStream();
+                CompletableFuture<LoginResult> login = client.login("UnitTestRe");
+                assertEquals("login UnitTestRe", in.readLine());
+                out.write("loginok\n".getBytes("UTF-8"));
+                assertTrue(login.get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
+                unanswered = client.users();
+                assertEquals("users", in.readLine());
+            }
+            // Dropped by the server: the reply to the users request will never come
+            try {
+                unanswered.get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS);
+                fail("The request on the lost connection did not fail");
+            } catch (ExecutionException e) {
+                assertTrue(client.isReconnecting());
+            }
+            assertTrue(client.isConnectionActive());
+            CompletableFuture<Void> queued = client.sendPublicMessageAsync("[Unittest7] Queued while disconnected");
+            assertFalse(queued.isDone());
+
+            try (Socket second = scriptedServer.accept()) {
+                second.setSoTimeout(REPLY_TIMEOUT);
+                BufferedReader in = new BufferedReader(new InputStreamReader(second.getInputStream(), "UTF-8"));
+                OutputStream out = second.getOutputStream();
+                assertEquals("login UnitTestRe", in.readLine());
+                out.write("loginok\n".getBytes("UTF-8"));
+                assertEquals("msg [Unittest7] Queued while disconnected", in.readLine());
+                queued.get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS);
+                assertTrue(reconnected.await(REPLY_TIMEOUT, TimeUnit.MILLISECONDS));
+                assertFalse(client.isReconnecting());
+
+                // Nothing is sent twice: the next line is the next request
+                CompletableFuture<String[]> users = client.users();
+                assertEquals("users", in.readLine());
+                out.write("users UnitTestRe\n".getBytes("UTF-8"));
+                assertArrayEquals(new String[]{"UnitTestRe"}, users.get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS));
+                client.disconnect();
+                assertNull(in.readLine());
+            }
+        }
+    }
+
+    /**
+     * Test reconnecting to a restarted local chat server: the client logs in again with the same username, and
+     * a message queued while the server was down reaches a user of the new server.
+     *
+     * @throws Exception When test is interrupted or the connection fails
+     */
+    @Test
+    public void testReconnectAfterServerRestart() throws Exception {
+        LocalChatServer restarting = new LocalChatServer().start();
+        int port = restarting.getPort();
+        TCPClient client = new TCPClient();
+        TCPClient observer = new TCPClient();
+        try {
+            client.setReconnectPolicy(new ReconnectPolicy(500, 1000, 10));
+            assertTrue(client.connect(SERVER_HOST, port));
+            client.startListenThread();
+            int rand = (int) (Math.random() * 10000);
+            String username = "UnitTestRestart" + rand;
+            assertTrue(client.login(username).get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
+
+            restarting.close();
+            assertNull(restarting.getFailure());
+            assertTrue(eventually(client::isReconnecting));
+            client.sendPublicMessage("[Unittest8] Sent during the restart");
+            restarting = new LocalChatServer(port).start();
+
+            assertTrue(observer.connect(SERVER_HOST, port));
+            observer.startListenThread();
+            TextMessage expectedMsg = new TextMessage(username, false, "[Unittest8] Sent during the restart");
+            CountDownLatch received = new CountDownLatch(1);
+            observer.addListener(new EmptyChatListener() {
+                @Override
+                public void onMessageReceived(TextMessage message) {
+                    if (message.equals(expectedMsg)) {
+                        received.countDown();
+                    }
+                }
+            });
+            assertTrue(observer.login("UnitTestObserver" + rand).get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS)
+                    .isSuccess());
+
+            assertTrue(received.await(REPLY_TIMEOUT, TimeUnit.MILLISECONDS));
+            assertTrue(eventually(() -> !client.isReconnecting()));
+            assertTrue(Arrays.asList(observer.users().get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS)).contains(username));
+        } finally {
+            client.disconnect();
+            observer.disconnect();
+            restarting.close();
+        }
+    }
+
+    /**
+     * Wait until a condition holds. The listeners are notified on another thread, shortly after the future of
+     * the same reply completes.
+     *
+     * @param condition The condition
+     * @return true if the condition held within the reply timeout
+     * @throws InterruptedException When interrupted while waiting
+     */
+    private static boolean eventually(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + REPLY_TIMEOUT;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * Log in and wait for the reply. Logins are batched like all the other commands, so without waiting, a
+     * command sent by another client may reach the server first.
+     *
+     * @param client   A client with a running listen thread
+     * @param username The username to log in with
+     * @return true if a login reply arrived in time
+     * @throws InterruptedException When interrupted while waiting
+     */
+    private static boolean login(TCPClient client, String username) throws InterruptedException {
+        final CountDownLatch reply = new CountDownLatch(1);
+        client.addListener(new EmptyChatListener() {
+            @Override
+            public void onLoginResult(boolean success, String errMsg) {
+                reply.countDown();
+            }
+        });
+        client.tryLogin(username);
+        return reply.await(THREAD_SLEEP_TIME, TimeUnit.MILLISECONDS);
+    }
+
     /**
      * Try to close a connection that was never opened. There should be no exception.
      */
@@ -220,10 +726,10 @@ public class TcpClientTest {
     /**
      * Test if user listing works correctly.
      *
-     * @throws InterruptedException When test is interrupted while sleeping
+     * @throws Exception When test is interrupted or the replies do not arrive in time
      */
     @Test
-    public void testUserListing() throws InterruptedException {
+    public void testUserListing() throws Exception {
         // Create three clients. One sends message to another. Third one should not receive.
         TCPClient c1 = new TCPClient();
         TCPClient c2 = new TCPClient();
@@ -235,10 +741,8 @@ public class TcpClientTest {
 
         // The incoming messages will be received on another thread
         c1.startListenThread();
-
-        // Listen to user listing.
-        DummyUserListingReceiver userListing = new DummyUserListingReceiver();
-        c1.addListener(userListing);
+        c2.startListenThread();
+        c3.startListenThread();
 
         // Clients log in with specific usernames
         // Get some randomness added to the usernames
@@ -246,24 +750,28 @@ public class TcpClientTest {
         String C1_USERNAME = "UnitTestC1" + rand;
         String C2_USERNAME = "UnitTestC2" + rand;
         String C3_USERNAME = "UnitTestC3" + rand;
-        c1.tryLogin(C1_USERNAME);
-        c2.tryLogin(C2_USERNAME);
-        c3.tryLogin(C3_USERNAME);
+        // Wait for the login to happen
+        assertTrue(c1.login(C1_USERNAME).get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
+        assertTrue(c2.login(C2_USERNAME).get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
+        assertTrue(c3.login(C3_USERNAME).get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
 
-        // Allow the login to happen
-        Thread.sleep(THREAD_SLEEP_TIME);
-
-        // Try to get user listing
-        c1.refreshUserList();
+        // Listen to user listing.
+        DummyUserListingReceiver listener = new DummyUserListingReceiver();
+        c1.addListener(listener);
 
-        // Allow the user listing response to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
+        // Try to get user listing, wait for the response to arrive
+        List<String> userListing = Arrays.asList(c1.users().get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS));
 
         // We should get all the users listed in a single message and it should contain all the three client names
-        assertTrue(userListing.getCount() >= 3);
+        assertTrue(userListing.size() >= 3);
         assertTrue(userListing.contains(C1_USERNAME));
         assertTrue(userListing.contains(C2_USERNAME));
         assertTrue(userListing.contains(C3_USERNAME));
+        // The listener gets the same listing
+        assertTrue(eventually(() -> listener.contains(C3_USERNAME)));
+        assertTrue(listener.getCount() >= 3);
+        assertTrue(listener.contains(C1_USERNAME));
+        assertTrue(listener.contains(C2_USERNAME));
 
         // Disconnect all clients
         c1.disconnect();
@@ -274,10 +782,10 @@ public class TcpClientTest {
     /**
      * Test if supported command listing works correctly.
      *
-     * @throws InterruptedException When test is interrupted while sleeping
+     * @throws Exception When test is interrupted or the reply does not arrive in time
      */
     @Test
-    public void testSupportedCommands() throws InterruptedException {
+    public void testSupportedCommands() throws Exception {
         // Create a TCP chat client.
         TCPClient c1 = new TCPClient();
         assertTrue(c1.connect(SERVER_HOST, SERVER_PORT));
@@ -285,22 +793,25 @@ public class TcpClientTest {
         // The incoming messages will be received on another thread
         c1.startListenThread();
 
-        // Listen to user listing.
+        // Listen to supported command listing.
         DummySupportedReceiver supported = new DummySupportedReceiver();
         c1.addListener(supported);
 
-        // Try to get supported command listing
-        c1.askSupportedCommands();
-
-        // Allow the listing response to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
-
-        // We should get all the users listed in a single message and it should contain all the three client names
+        // Try to get supported command listing, wait for the response to arrive
+        List<String> commands = Arrays.asList(c1.supportedCommands().get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS));
+
+        // The listing should contain all the standard commands
+        assertTrue(commands.contains("msg"));
+        assertTrue(commands.contains("privmsg"));
+        assertTrue(commands.contains("login"));
+        assertTrue(commands.contains("users"));
+        assertTrue(commands.contains("help"));
+        // The listener gets the same listing
+        assertTrue(eventually(() -> supported.contains("help")));
         assertTrue(supported.contains("msg"));
         assertTrue(supported.contains("privmsg"));
         assertTrue(supported.contains("login"));
         assertTrue(supported.contains("users"));
-        assertTrue(supported.contains("help"));
 
         // Disconnect all clients
         c1.disconnect();
@@ -0,0 +1,60 @@
+package main.java.no.ntnu.datakomm;
+
+/**
+ * The warm-up arithmetic protocol: the client sends "a+b", the server answers with the sum, or with "error"
+ * when the request can not be understood. "game over" ends the conversation. Shared by the thread-per-client
+ * handler and the non-blocking server so both speak exactly the same protocol.
+ */
+public final class ArithmeticProtocol {
+    /**
+     * The request that ends the conversation.
+     */
+    public static final String GAME_OVER = "game over";
+
+    /**
+     * The response sent for a request that could not be parsed.
+     */
+    public static final String ERROR = "error";
+
+    private ArithmeticProtocol() {
+    }
+
+    /**
+     * Check whether the request ends the conversation. Spaces around the request are ignored.
+     *
+     * @param request the request from the client, without the newline
+     * @return true if the client wants to close the connection
+     */
+    public static boolean isGameOver(String request) {
+        return request != null && GAME_OVER.equals(request.trim());
+    }
+
+    /**
+     * Calculate the response for one "a+b" request. Spaces around the request are ignored, and so is anything
+     * after a second '+': "1+2+3" is answered with 3, like the original split("\\+") parsing did.
+     *
+     * @param request the request from the client, without the newline
+     * @return the sum as a string, or "error" when the request does not start with two integers separated by
+     * a '+'
+     */
+    public static String answer(String request) {
+        String response;
+        String trimmed = request != null ? request.trim() : "";
+        int plus = trimmed.indexOf('+');
+        if (plus > 0) {
+            int end = trimmed.indexOf('+', plus + 1);
+            try {
+                int number1 = Integer.parseInt(trimmed.substring(0, plus));
+                int number2 = Integer.parseInt(trimmed.substring(plus + 1, end < 0 ? trimmed.length() : end));
+                response = Integer.toString(number1 + number2);
+            }
+            catch (NumberFormatException e) {
+                response = ERROR;
+            }
+        }
+        else {
+            response = ERROR;
+        }
+        return response;
+    }
+}
@@ -3,36 +3,64 @@ package main.java.no.ntnu.datakomm;
 import java.io.*;
 import java.net.Socket;
 
-public class ClientHandler extends Thread {
+public class ClientHandler implements Runnable {
     private final Socket clientSocket;
+    private final ServerMetrics metrics;
+    // Reads requests and writes responses for the whole lifetime of the connection
+    private LineCodec codec;
+    private boolean closed = false;
 
     public ClientHandler(Socket clientSocket) {
+        this(clientSocket, ServerMetrics.unregistered());
+    }
+
+    /**
+     * @param clientSocket The connection to the client
+     * @param metrics      Metrics of the server, updated by this handler
+     */
+    ClientHandler(Socket clientSocket, ServerMetrics metrics) {
         this.clientSocket = clientSocket;
+        this.metrics = metrics;
     }
 
     @Override
     public void run() {
+        metrics.connectionsOpened.increment();
+        try {
+            codec = new LineCodec(clientSocket);
+        }
+        catch (IOException e) {
+            System.out.println("Socket stream error: " + e.getMessage());
+            closeConnection();
+            return;
+        }
         while (!clientSocket.isClosed()) {
             String request = readRequestFromClient();
             if (request != null) {
                 parseRequest(request);
             }
             else {
-                sendResponseToClient("error");
+                // The client has gone away (or the socket failed), nobody to respond to
+                closeConnection();
             }
         }
     }
 
     /**
      * Reads the request from the client.
-     * @return the request form the client as a string.
+     * @return the request form the client as a string, null when the connection is closed or broken.
      */
     private String readRequestFromClient() {
         String response;
         try {
-            InputStream in = clientSocket.getInputStream();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-            response = reader.readLine().trim();
+            String line = codec.readLine();
+            if (line != null) {
+                metrics.bytesReceived.add(codec.getLastLineBytes());
+                response = line.trim();
+            }
+            else {
+                response = null;
+            }
         }
         catch (IOException e) {
             System.out.println("Socket response error: " + e.getMessage());
@@ -46,46 +74,58 @@ public class ClientHandler extends Thread {
      * @param request the request fro the client.
      */
     private void parseRequest(String request) {
-        if (request.equals("game over")) {
-            try {
-                clientSocket.close();
-            }
-            catch (IOException e) {
-                e.printStackTrace();
-            }
+        long start = System.nanoTime();
+        if (ArithmeticProtocol.isGameOver(request)) {
+            metrics.countRequest(null);
+            closeConnection();
+        }
+        else if (LineCodec.FRAMING_REQUEST.equals(request) && !codec.isBinaryFraming()) {
+            // The answer is the last text line, the following requests and responses are binary frames
+            sendResponseToClient(LineCodec.FRAMING_ACCEPTED);
+            codec.useBinaryFraming();
         }
         else {
-            String[] requests = request.split("\\+");
-            try {
-                int number1 = Integer.parseInt(requests[0]);
-                int number2 = Integer.parseInt(requests[1]);
-                addNumbers(number1, number2);
-            }
-            catch (NumberFormatException e) {
-                sendResponseToClient("error");
-            }
+            String response = ArithmeticProtocol.answer(request);
+            metrics.countRequest(response);
+            sendResponseToClient(response);
         }
+        metrics.requestTime.record(System.nanoTime() - start);
     }
 
     /**
-     * Adds the numbers together and passes them on
-     * @param num1 the first number
-     * @param num2 the second number
+     * Sends a response to the client. When the client has already sent more requests, the response is kept in
+     * the buffer and sent together with the following ones.
+     * @param response the response to the client.
      */
-    private void addNumbers(int num1, int num2) {
-        int sum = num1 + num2;
-        sendResponseToClient(Integer.toString(sum));
+    private void sendResponseToClient(String response) {
+        try {
+            metrics.bytesSent.add(codec.writeLine(response));
+            if (!codec.hasBufferedInput()) {
+                codec.flush();
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            closeConnection();
+        }
     }
 
     /**
-     * Sends a response to the client.
-     * @param response the response to the client.
+     * Sends the buffered responses and closes the connection.
      */
-    private void sendResponseToClient(String response) {
+    private void closeConnection() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        metrics.connectionsClosed.increment();
         try {
-            OutputStream out = clientSocket.getOutputStream();
-            PrintWriter writer = new PrintWriter(out, true);
-            writer.println(response);
+            if (codec != null) {
+                codec.close();
+            }
+            else {
+                clientSocket.close();
+            }
         }
         catch (IOException e) {
             e.printStackTrace();
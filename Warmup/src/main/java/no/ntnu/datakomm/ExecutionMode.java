@@ -0,0 +1,99 @@
+package main.java.no.ntnu.datakomm;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * How the blocking per-client handlers are executed. The handler code stays the same, only the threads
+ * underneath change: one platform thread per client, one virtual thread per client (needs Java 21 or newer),
+ * or a bounded pool of platform threads where extra clients wait for a free thread.
+ */
+public enum ExecutionMode {
+    PLATFORM,
+    VIRTUAL,
+    POOLED;
+
+    /**
+     * Parse an execution mode given on the command line: "platform", "virtual" or "pool".
+     *
+     * @param name Name of the mode, case insensitive
+     * @return The mode
+     * @throws IllegalArgumentException if the name is not a known mode
+     */
+    public static ExecutionMode parse(String name) {
+        switch (name.trim().toLowerCase()) {
+            case "platform":
+                return PLATFORM;
+            case "virtual":
+                return VIRTUAL;
+            case "pool":
+            case "pooled":
+                return POOLED;
+            default:
+                throw new IllegalArgumentException("Unknown execution mode: " + name);
+        }
+    }
+
+    /**
+     * Create an executor running tasks in this mode. When virtual threads are not supported by the running
+     * JVM, platform threads are used instead.
+     *
+     * @param threadName Prefix for the names of the created threads
+     * @param poolSize   Number of threads in the pool, used only in POOLED mode
+     * @param daemon     When true, platform threads do not prevent the JVM from exiting
+     * @return A new executor
+     * @throws IllegalArgumentException if the mode is POOLED and the pool size is less than 1
+     */
+    public ExecutorService newExecutor(String threadName, int poolSize, boolean daemon) {
+        ExecutorService executor;
+        switch (this) {
+            case VIRTUAL:
+                executor = newVirtualThreadExecutor();
+                if (executor == null) {
+                    System.out.println("Virtual threads not supported by this JVM, using platform threads");
+                    executor = Executors.newCachedThreadPool(threadFactory(threadName, daemon));
+                }
+                break;
+            case POOLED:
+                if (poolSize < 1) {
+                    throw new IllegalArgumentException("Pool size must be at least 1: " + poolSize);
+                }
+                executor = Executors.newFixedThreadPool(poolSize, threadFactory(threadName, daemon));
+                break;
+            default:
+                executor = Executors.newCachedThreadPool(threadFactory(threadName, daemon));
+        }
+        return executor;
+    }
+
+    /**
+     * Create a thread-per-task executor with virtual threads. Looked up by reflection, so the code still
+     * compiles and runs on Java versions without virtual threads.
+     *
+     * @return The executor, or null when virtual threads are not available
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        }
+        catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return A factory creating named platform threads
+     */
+    private static ThreadFactory threadFactory(String threadName, boolean daemon) {
+        AtomicInteger counter = new AtomicInteger();
+        return task -> {
+            Thread t = new Thread(task, threadName + "-" + counter.incrementAndGet());
+            t.setDaemon(daemon);
+            return t;
+        };
+    }
+}
@@ -0,0 +1,253 @@
+package main.java.no.ntnu.datakomm;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads and writes newline-terminated text lines on a socket. One codec is created per connection and lives as
+ * long as the connection: the reader keeps the bytes it has buffered beyond the current line, so requests sent
+ * back-to-back (pipelined) by the remote end are never lost between two reads.
+ * Writes are buffered and sent on {@link #flush()}, so several responses can go out in one TCP segment.
+ * <p>
+ * After {@link #useBinaryFraming()} the lines are sent as binary frames instead: a varint length (7 bits per
+ * byte, least significant group first, the high bit set on all but the last byte), a one-byte opcode and the
+ * line in UTF-8. The reader then knows the size of each frame in advance and never scans the bytes for a
+ * newline, and a line may contain newlines. The arithmetic protocol has no command words, so every frame has
+ * the opcode {@link #OPCODE_LINE}. Both ends must switch at the same point of the conversation: the client
+ * sends {@link #FRAMING_REQUEST}, and everything after the server's answer {@link #FRAMING_ACCEPTED} is framed.
+ * A server which does not know the request answers "error", then the conversation stays in text lines.
+ */
+public class LineCodec implements Closeable {
+    /**
+     * The request asking the server to switch to binary frames.
+     */
+    public static final String FRAMING_REQUEST = "framing binary";
+
+    /**
+     * The server's answer when it switches to binary frames. The last line sent as text.
+     */
+    public static final String FRAMING_ACCEPTED = "framingok binary";
+
+    /**
+     * Opcode of a frame holding one line of text.
+     */
+    public static final int OPCODE_LINE = 0;
+
+    private static final int INITIAL_CAPACITY = 8 * 1024;
+    // A line (or a frame) longer than this is treated as a protocol error
+    private static final int MAX_LINE_LENGTH = 1024 * 1024;
+    // The longest varint of a frame length
+    private static final int MAX_HEADER_BYTES = 5;
+
+    private final Socket socket;
+    private final InputStream in;
+    private final BufferedOutputStream out;
+    // Received bytes not processed yet are buffer[start, end)
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int start = 0;
+    private int end = 0;
+    private boolean binary = false;
+    // Size on the wire of the last line read, with its newline or frame header
+    private int lastLineBytes = 0;
+
+    /**
+     * @param socket A connected socket. The codec owns it from now on and closes it in {@link #close()}.
+     * @throws IOException When the socket streams can not be opened
+     */
+    public LineCodec(Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = socket.getInputStream();
+        this.out = new BufferedOutputStream(socket.getOutputStream(), INITIAL_CAPACITY);
+    }
+
+    /**
+     * Switch to binary frames, in both directions. Lines written and read after this call are framed.
+     */
+    public void useBinaryFraming() {
+        binary = true;
+    }
+
+    /**
+     * @return true after {@link #useBinaryFraming()}
+     */
+    public boolean isBinaryFraming() {
+        return binary;
+    }
+
+    /**
+     * Wait for the next line.
+     *
+     * @return The line without the newline character, or null when the remote end has closed the connection
+     * @throws IOException On socket errors, or when a line or a frame is too long
+     */
+    public String readLine() throws IOException {
+        return binary ? readFrame() : readTextLine();
+    }
+
+    /**
+     * @return How many bytes the line returned by the last {@link #readLine()} took on the wire, including the
+     * newline (and carriage return) or the frame header
+     */
+    public int getLastLineBytes() {
+        return lastLineBytes;
+    }
+
+    /**
+     * Check whether more input can be read without blocking: either already buffered, or waiting in the socket.
+     * A server can use this to delay flushing its responses while the client still has requests in flight.
+     *
+     * @return true when the next {@link #readLine()} will most likely not block
+     * @throws IOException On socket errors
+     */
+    public boolean hasBufferedInput() throws IOException {
+        return start < end || in.available() > 0;
+    }
+
+    /**
+     * Add a line to the output buffer (the newline will be added automatically). Nothing is sent until
+     * {@link #flush()} is called or the buffer is full.
+     *
+     * @param line The line to send. Do NOT include the newline!
+     * @return How many bytes the line takes on the wire, including the newline or the frame header
+     * @throws IOException On socket errors
+     */
+    public int writeLine(String line) throws IOException {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        if (binary) {
+            byte[] header = new byte[MAX_HEADER_BYTES + 1];
+            int length = bytes.length + 1;
+            int i = 0;
+            while ((length & ~0x7f) != 0) {
+                header[i++] = (byte) ((length & 0x7f) | 0x80);
+                length >>>= 7;
+            }
+            header[i++] = (byte) length;
+            header[i++] = OPCODE_LINE;
+            out.write(header, 0, i);
+            out.write(bytes);
+            return i + bytes.length;
+        }
+        else {
+            out.write(bytes);
+            out.write('\n');
+            return bytes.length + 1;
+        }
+    }
+
+    /**
+     * Send all the buffered lines.
+     *
+     * @throws IOException On socket errors
+     */
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Send the buffered lines and close the connection.
+     *
+     * @throws IOException On socket errors
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!socket.isClosed()) {
+                out.flush();
+            }
+        }
+        finally {
+            socket.close();
+        }
+    }
+
+    private String readTextLine() throws IOException {
+        int scanned = start;
+        while (true) {
+            for (int i = scanned; i < end; i++) {
+                if (buffer[i] == '\n') {
+                    int lineEnd = i > start && buffer[i - 1] == '\r' ? i - 1 : i;
+                    String line = new String(buffer, start, lineEnd - start, StandardCharsets.UTF_8);
+                    lastLineBytes = i + 1 - start;
+                    start = i + 1;
+                    return line;
+                }
+            }
+            scanned = end - start;
+            if (!fill(end - start + 1)) {
+                if (start == end) {
+                    return null;
+                }
+                // The last line of the stream has no newline
+                String line = new String(buffer, start, end - start, StandardCharsets.UTF_8);
+                lastLineBytes = end - start;
+                start = end;
+                return line;
+            }
+            // fill() may have moved the bytes to the start of the buffer
+            scanned += start;
+        }
+    }
+
+    private String readFrame() throws IOException {
+        int length = 0;
+        int headerLength = 0;
+        while (true) {
+            if (start + headerLength == end && !fill(headerLength + 1)) {
+                return null;
+            }
+            byte b = buffer[start + headerLength++];
+            length |= (b & 0x7f) << (7 * (headerLength - 1));
+            if (b >= 0) {
+                break;
+            }
+            if (headerLength == MAX_HEADER_BYTES) {
+                throw new IOException("Invalid frame length");
+            }
+        }
+        if (length < 1 || length > MAX_LINE_LENGTH) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        // The whole frame is read into the buffer before it is decoded
+        if (end - start < headerLength + length && !fill(headerLength + length)) {
+            throw new IOException("Connection closed in the middle of a frame");
+        }
+        int payloadStart = start + headerLength + 1;
+        int frameEnd = start + headerLength + length;
+        String line = new String(buffer, payloadStart, frameEnd - payloadStart, StandardCharsets.UTF_8);
+        lastLineBytes = frameEnd - start;
+        start = frameEnd;
+        return line;
+    }
+
+    /**
+     * Read from the socket until at least the given number of unprocessed bytes are buffered. Moves the
+     * unprocessed bytes to the start of the buffer, and grows it, when they would not fit.
+     *
+     * @param needed How many unprocessed bytes are needed
+     * @return false if the stream ended first
+     */
+    private boolean fill(int needed) throws IOException {
+        if (needed > MAX_LINE_LENGTH + MAX_HEADER_BYTES) {
+            throw new IOException("Incoming line longer than " + MAX_LINE_LENGTH + " bytes");
+        }
+        if (start + needed > buffer.length) {
+            byte[] target = needed > buffer.length ? new byte[Math.max(buffer.length * 2, needed)] : buffer;
+            System.arraycopy(buffer, start, target, 0, end - start);
+            buffer = target;
+            end -= start;
+            start = 0;
+        }
+        while (end - start < needed) {
+            int count = in.read(buffer, end, buffer.length - end);
+            if (count < 0) {
+                return false;
+            }
+            end += count;
+        }
+        return true;
+    }
+}
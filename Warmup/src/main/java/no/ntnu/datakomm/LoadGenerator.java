@@ -0,0 +1,408 @@
+package main.java.no.ntnu.datakomm;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A load generator for capacity planning: opens many concurrent connections to a server (ramped up over a
+ * while, not all at once), sends requests at a controlled total rate, and reports the throughput and the
+ * latency distribution (p50 to p99.9 and max), both while running and at the end.
+ * <p>
+ * With a target rate, the requests are sent on a fixed schedule and the latency of every request is measured
+ * from the time it should have been sent. A server that stalls is then charged for all the requests that
+ * were waiting, not only for the one request that happened to be in flight ("coordinated omission").
+ * Without a target rate, every connection sends its next request as soon as it has the previous response.
+ * Requests sent during the ramp-up are not included in the results.
+ */
+public class LoadGenerator {
+    private static final int DEFAULT_PORT = 1301;
+    // Give up on a request (and the connection) when the server does not answer within this time
+    private static final int READ_TIMEOUT_MILLIS = 10000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * The protocol spoken by the load generator.
+     */
+    public enum Workload {
+        /**
+         * The warm-up protocol of SimpleTcpServer: "a+b" requests answered with the sum.
+         */
+        ARITHMETIC {
+            @Override
+            void open(LineCodec codec, int id) {
+            }
+
+            @Override
+            boolean exchange(LineCodec codec, Random random) throws IOException {
+                int number1 = random.nextInt(1000);
+                int number2 = random.nextInt(1000);
+                codec.writeLine(number1 + "+" + number2);
+                codec.flush();
+                return Integer.toString(number1 + number2).equals(codec.readLine());
+            }
+
+            @Override
+            void close(LineCodec codec) throws IOException {
+                codec.writeLine(ArithmeticProtocol.GAME_OVER);
+            }
+        },
+
+        /**
+         * The chat protocol: every connection logs in, then asks for the user list.
+         */
+        CHAT {
+            @Override
+            void open(LineCodec codec, int id) throws IOException {
+                codec.writeLine("login load" + id);
+                codec.flush();
+                if (!"loginok".equals(codec.readLine())) {
+                    throw new IOException("Login refused for load" + id);
+                }
+            }
+
+            @Override
+            boolean exchange(LineCodec codec, Random random) throws IOException {
+                codec.writeLine("users");
+                codec.flush();
+                String response = codec.readLine();
+                // Skip messages from other users, if anyone talks on the server meanwhile
+                while (response != null && !response.startsWith("users")) {
+                    response = codec.readLine();
+                }
+                return response != null;
+            }
+
+            @Override
+            void close(LineCodec codec) {
+            }
+        };
+
+        /**
+         * Start the conversation on a new connection.
+         */
+        abstract void open(LineCodec codec, int id) throws IOException;
+
+        /**
+         * Send one request and wait for its response.
+         *
+         * @return true when the response was correct
+         */
+        abstract boolean exchange(LineCodec codec, Random random) throws IOException;
+
+        /**
+         * End the conversation (the codec is closed afterwards).
+         */
+        abstract void close(LineCodec codec) throws IOException;
+
+        static Workload parse(String name) {
+            return valueOf(name.trim().toUpperCase());
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final Workload workload;
+    private int connections = 10;
+    private long rampMillis = 5000;
+    private long durationMillis = 30000;
+    // Total requests per second for all the connections, 0 for as fast as possible
+    private double rate = 0;
+    private long reportIntervalMillis = 5000;
+    private ExecutionMode executionMode = ExecutionMode.PLATFORM;
+
+    // Results, updated by the connection threads
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder failedConnections = new LongAdder();
+    private LatencyHistogram[] latencies;
+
+    /**
+     * @param host     The server to load
+     * @param port     TCP port of the server
+     * @param workload The protocol to speak
+     */
+    public LoadGenerator(String host, int port, Workload workload) {
+        this.host = host;
+        this.port = port;
+        this.workload = workload;
+    }
+
+    /**
+     * @param connections Number of concurrent connections
+     */
+    public void setConnections(int connections) {
+        if (connections < 1) {
+            throw new IllegalArgumentException("At least one connection needed");
+        }
+        this.connections = connections;
+    }
+
+    /**
+     * @param rampSeconds The connections are opened evenly over this time
+     */
+    public void setRampSeconds(double rampSeconds) {
+        this.rampMillis = (long) (rampSeconds * 1000);
+    }
+
+    /**
+     * @param durationSeconds How long to measure, after the ramp-up
+     */
+    public void setDurationSeconds(double durationSeconds) {
+        this.durationMillis = (long) (durationSeconds * 1000);
+    }
+
+    /**
+     * @param rate Total requests per second, for all the connections together. 0 for as fast as possible.
+     */
+    public void setRate(double rate) {
+        this.rate = rate;
+    }
+
+    /**
+     * @param reportIntervalSeconds How often progress is printed, 0 for only the final report
+     */
+    public void setReportIntervalSeconds(double reportIntervalSeconds) {
+        this.reportIntervalMillis = (long) (reportIntervalSeconds * 1000);
+    }
+
+    /**
+     * @param executionMode How the connection threads are run. Note that in POOLED mode the pool has one
+     *                      thread per connection, the connections block while waiting for responses.
+     */
+    public void setExecutionMode(ExecutionMode executionMode) {
+        this.executionMode = executionMode;
+    }
+
+    /**
+     * Run the load test: ramp up, measure, print the final report.
+     *
+     * @return Latencies of all the measured requests, in nanoseconds
+     * @throws InterruptedException When interrupted while waiting for the test to finish
+     */
+    public LatencyHistogram run() throws InterruptedException {
+        latencies = new LatencyHistogram[connections];
+        long start = System.nanoTime();
+        long measureStart = start + TimeUnit.MILLISECONDS.toNanos(rampMillis);
+        long end = measureStart + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        log("Load test: " + connections + " connections to " + host + ":" + port + ", " + workload
+                + " workload, " + (rate > 0 ? rate + " requests/s" : "unlimited rate") + ", ramp-up "
+                + rampMillis / 1000.0 + " s, measuring " + durationMillis / 1000.0 + " s");
+
+        ExecutorService executor = executionMode.newExecutor("load-client", connections, true);
+        for (int i = 0; i < connections; i++) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            latencies[i] = histogram;
+            long connectAt = start + (measureStart - start) * i / connections;
+            int id = i;
+            executor.execute(() -> runConnection(id, connectAt, measureStart, end, histogram));
+        }
+        executor.shutdown();
+        reportProgress(start, measureStart, end);
+        if (!executor.awaitTermination(READ_TIMEOUT_MILLIS * 2L, TimeUnit.MILLISECONDS)) {
+            log("Some connections did not finish in time");
+        }
+
+        LatencyHistogram total = mergedLatencies();
+        printReport(total, durationMillis / 1000.0);
+        return total;
+    }
+
+    /**
+     * Print a progress line every report interval until the end time.
+     */
+    private void reportProgress(long start, long measureStart, long end) throws InterruptedException {
+        long previousRequests = 0;
+        long previousTime = measureStart;
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            long sleepNanos = end - now;
+            if (reportIntervalMillis > 0) {
+                sleepNanos = Math.min(sleepNanos, TimeUnit.MILLISECONDS.toNanos(reportIntervalMillis));
+            }
+            TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            now = System.nanoTime();
+            if (reportIntervalMillis > 0 && now < end) {
+                long completed = requests.sum();
+                double seconds = (now - previousTime) / 1e9;
+                LatencyHistogram current = mergedLatencies();
+                log(String.format("%6.1f s: %d connections, %.1f requests/s, p50 %.3f ms, p99 %.3f ms, %d errors",
+                        (now - start) / 1e9, openConnections.get(),
+                        now > measureStart ? (completed - previousRequests) / seconds : 0.0,
+                        millis(current.getValueAtPercentile(50)), millis(current.getValueAtPercentile(99)),
+                        errors.sum()));
+                previousRequests = completed;
+                previousTime = Math.max(now, measureStart);
+            }
+        }
+    }
+
+    /**
+     * Run one connection: connect at the given time, send requests until the end time.
+     */
+    private void runConnection(int id, long connectAt, long measureStart, long end, LatencyHistogram histogram) {
+        sleepUntil(connectAt);
+        Random random = new Random(id);
+        LineCodec codec;
+        try {
+            Socket socket = new Socket();
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+            codec = new LineCodec(socket);
+            workload.open(codec, id);
+        }
+        catch (IOException e) {
+            log("Connection " + id + " failed: " + e.getMessage());
+            failedConnections.increment();
+            return;
+        }
+
+        openConnections.incrementAndGet();
+        // Each connection sends its share of the total rate
+        long interval = rate > 0 ? (long) (connections * 1e9 / rate) : 0;
+        // Spread the connections over the interval, so they do not all send at the same moment
+        long next = System.nanoTime() + (interval > 0 ? (long) (random.nextDouble() * interval) : 0);
+        try {
+            while (next < end) {
+                long sendTime;
+                if (interval > 0) {
+                    sleepUntil(next);
+                    // Measured from the planned send time, even if we are late
+                    sendTime = next;
+                }
+                else {
+                    sendTime = System.nanoTime();
+                }
+                boolean correct = workload.exchange(codec, random);
+                long now = System.nanoTime();
+                if (sendTime >= measureStart) {
+                    histogram.record(now - sendTime);
+                    if (correct) {
+                        requests.increment();
+                    }
+                    else {
+                        errors.increment();
+                    }
+                }
+                next = interval > 0 ? next + interval : now;
+            }
+            workload.close(codec);
+        }
+        catch (IOException e) {
+            log("Connection " + id + " lost: " + e.getMessage());
+            errors.increment();
+        }
+        finally {
+            openConnections.decrementAndGet();
+            try {
+                codec.close();
+            }
+            catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    private LatencyHistogram mergedLatencies() {
+        LatencyHistogram merged = new LatencyHistogram();
+        for (LatencyHistogram histogram : latencies) {
+            merged.add(histogram);
+        }
+        return merged;
+    }
+
+    private void printReport(LatencyHistogram total, double seconds) {
+        log("--- Load test report ---");
+        log("Connections:  " + connections + " (" + failedConnections.sum() + " failed)");
+        log("Requests:     " + requests.sum() + " ok, " + errors.sum() + " errors");
+        log(String.format("Throughput:   %.1f requests/s", requests.sum() / seconds));
+        log(String.format("Latency (ms): mean %.3f, p50 %.3f, p90 %.3f, p99 %.3f, p99.9 %.3f, max %.3f",
+                total.getMean() / 1e6, millis(total.getValueAtPercentile(50)),
+                millis(total.getValueAtPercentile(90)), millis(total.getValueAtPercentile(99)),
+                millis(total.getValueAtPercentile(99.9)), millis(total.getMax())));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static void sleepUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    /**
+     * Run a load test.
+     *
+     * @param args Command line arguments, all optional: "--host=H" (default localhost), "--port=P" (default
+     *             1301), "--workload=arithmetic|chat", "--connections=N", "--rate=R" (total requests per
+     *             second, 0 for unlimited), "--ramp=S" and "--duration=S" (seconds), "--report-interval=S"
+     *             and "--threads=platform|virtual|pool".
+     * @throws InterruptedException When interrupted
+     */
+    public static void main(String[] args) throws InterruptedException {
+        String host = "localhost";
+        int port = DEFAULT_PORT;
+        Workload workload = Workload.ARITHMETIC;
+        for (String arg : args) {
+            if (arg.startsWith("--host=")) {
+                host = value(arg);
+            }
+            else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(value(arg));
+            }
+            else if (arg.startsWith("--workload=")) {
+                workload = Workload.parse(value(arg));
+            }
+        }
+
+        LoadGenerator generator = new LoadGenerator(host, port, workload);
+        for (String arg : args) {
+            if (arg.startsWith("--connections=")) {
+                generator.setConnections(Integer.parseInt(value(arg)));
+            }
+            else if (arg.startsWith("--rate=")) {
+                generator.setRate(Double.parseDouble(value(arg)));
+            }
+            else if (arg.startsWith("--ramp=")) {
+                generator.setRampSeconds(Double.parseDouble(value(arg)));
+            }
+            else if (arg.startsWith("--duration=")) {
+                generator.setDurationSeconds(Double.parseDouble(value(arg)));
+            }
+            else if (arg.startsWith("--report-interval=")) {
+                generator.setReportIntervalSeconds(Double.parseDouble(value(arg)));
+            }
+            else if (arg.startsWith("--threads=")) {
+                generator.setExecutionMode(ExecutionMode.parse(value(arg)));
+            }
+            else if (!arg.startsWith("--host=") && !arg.startsWith("--port=") && !arg.startsWith("--workload=")) {
+                log("Ignoring unknown argument: " + arg);
+            }
+        }
+        generator.run();
+    }
+
+    private static String value(String arg) {
+        return arg.substring(arg.indexOf('=') + 1);
+    }
+
+    /**
+     * Log a message to the system console.
+     *
+     * @param message The message to be logged (printed).
+     */
+    private static void log(String message) {
+        System.out.println(message);
+    }
+}
@@ -0,0 +1,76 @@
+package main.java.no.ntnu.datakomm;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves the plain-text dump of a metrics registry on a TCP port, for scraping: every connection gets the
+ * current "name value" lines, then the connection is closed. For example: {@code nc localhost 9301}.
+ * <p>
+ * There is no authentication, so by default the endpoint listens on the loopback interface only.
+ */
+public class MetricsEndpoint implements Runnable {
+    // How many not-yet-accepted connections the OS may queue for us
+    private static final int ACCEPT_BACKLOG = 50;
+
+    private final MetricsRegistry registry;
+    private final ServerSocket welcomeSocket;
+
+    /**
+     * Serve the metrics to local clients only.
+     *
+     * @param registry The metrics to serve
+     * @param port     TCP port to listen on
+     * @throws IOException When the port can not be opened
+     */
+    public MetricsEndpoint(MetricsRegistry registry, int port) throws IOException {
+        this(registry, port, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * @param registry    The metrics to serve
+     * @param port        TCP port to listen on
+     * @param bindAddress Address of the interface to listen on, null for all the interfaces
+     * @throws IOException When the port can not be opened
+     */
+    public MetricsEndpoint(MetricsRegistry registry, int port, InetAddress bindAddress) throws IOException {
+        this.registry = registry;
+        this.welcomeSocket = new ServerSocket(port, ACCEPT_BACKLOG, bindAddress);
+    }
+
+    /**
+     * Serve the metrics on a background (daemon) thread.
+     */
+    public void start() {
+        Thread thread = new Thread(this, "metrics-endpoint");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (!welcomeSocket.isClosed()) {
+            try (Socket client = welcomeSocket.accept();
+                 Writer out = new OutputStreamWriter(client.getOutputStream(), StandardCharsets.US_ASCII)) {
+                registry.writeTo(out);
+            }
+            catch (IOException e) {
+                log("Metrics endpoint error: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Log a message to the system console.
+     *
+     * @param message The message to be logged (printed).
+     */
+    private static void log(String message) {
+        System.out.println(message);
+    }
+}
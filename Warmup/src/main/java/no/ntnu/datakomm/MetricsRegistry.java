@@ -0,0 +1,117 @@
+package main.java.no.ntnu.datakomm;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Named counters and latency histograms of a server, for monitoring. Look the metrics up once (when creating
+ * the component that updates them) and keep the references: updating a counter or recording a latency is
+ * then lock-free and allocates nothing, so the metrics can be updated on every request.
+ * <p>
+ * The metrics can be read over JMX (see {@link #registerMBean(String)}) or as plain text, one
+ * "name value" line per value (see {@link #writeTo(Appendable)}). Histogram values are in nanoseconds.
+ * <p>
+ * The chat client has a copy of this class, of LatencyHistogram and of MetricsMBean in its package no.ntnu.
+ * The warm-up and the chat client are separate assignment projects, each built and handed in on its own, so
+ * they share no code. Make the same changes in both copies; they differ only in the package and the examples.
+ */
+public class MetricsRegistry {
+    // Sorted by name, so that the text dump is stable
+    private final ConcurrentSkipListMap<String, Object> metrics = new ConcurrentSkipListMap<>();
+
+    /**
+     * Get a counter, creating it if needed.
+     *
+     * @param name Name of the counter, for example "server.bytes.received"
+     * @return The counter
+     * @throws IllegalArgumentException if the name is already used by a histogram
+     */
+    public LongAdder counter(String name) {
+        return checkType(name, metrics.computeIfAbsent(name, n -> new LongAdder()), LongAdder.class);
+    }
+
+    /**
+     * Get a latency histogram, creating it if needed.
+     *
+     * @param name Name of the histogram, for example "server.request.time"
+     * @return The histogram
+     * @throws IllegalArgumentException if the name is already used by a counter
+     */
+    public LatencyHistogram histogram(String name) {
+        return checkType(name, metrics.computeIfAbsent(name, n -> new LatencyHistogram()), LatencyHistogram.class);
+    }
+
+    private static <T> T checkType(String name, Object metric, Class<T> type) {
+        if (!type.isInstance(metric)) {
+            throw new IllegalArgumentException("Metric " + name + " is not a " + type.getSimpleName());
+        }
+        return type.cast(metric);
+    }
+
+    /**
+     * @return The current value of every counter, and count, mean, percentiles and max of every histogram,
+     * by name. Sorted by name.
+     */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> values = new TreeMap<>();
+        for (Map.Entry<String, Object> metric : metrics.entrySet()) {
+            String name = metric.getKey();
+            if (metric.getValue() instanceof LongAdder) {
+                values.put(name, ((LongAdder) metric.getValue()).sum());
+            }
+            else {
+                LatencyHistogram histogram = (LatencyHistogram) metric.getValue();
+                values.put(name + ".count", histogram.getCount());
+                values.put(name + ".mean", (long) histogram.getMean());
+                values.put(name + ".p50", histogram.getValueAtPercentile(50));
+                values.put(name + ".p99", histogram.getValueAtPercentile(99));
+                values.put(name + ".p999", histogram.getValueAtPercentile(99.9));
+                values.put(name + ".max", histogram.getMax());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Write all the values as text, one "name value" line each.
+     *
+     * @param out Where to write
+     * @throws IOException When writing fails
+     */
+    public void writeTo(Appendable out) throws IOException {
+        for (Map.Entry<String, Number> value : snapshot().entrySet()) {
+            out.append(value.getKey()).append(' ').append(value.getValue().toString()).append('\n');
+        }
+    }
+
+    /**
+     * @return All the values as text, one "name value" line each
+     */
+    public String dump() {
+        StringBuilder text = new StringBuilder();
+        try {
+            writeTo(text);
+        }
+        catch (IOException e) {
+            // A StringBuilder does not throw
+        }
+        return text.toString();
+    }
+
+    /**
+     * Publish the metrics on the platform MBean server, so they can be read with JConsole or any JMX client.
+     * Every value of {@link #snapshot()} is a read-only attribute.
+     *
+     * @param objectName JMX name, for example "no.ntnu.datakomm:type=SimpleTcpServer"
+     * @throws JMException When the name is invalid or already registered
+     */
+    public void registerMBean(String objectName) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(this), new ObjectName(objectName));
+    }
+}
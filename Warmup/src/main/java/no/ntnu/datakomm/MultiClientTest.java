@@ -1,7 +1,8 @@
 package main.java.no.ntnu.datakomm;
 
 /**
- * A class used to test whether the server can handle multiple TCP client simultaneously (a multi-threaded server)
+ * A class used to test whether the server can handle multiple TCP client simultaneously (a multi-threaded server).
+ * To measure how much load a server can take, use {@link LoadGenerator} instead.
  */
 public class MultiClientTest
 {
@@ -0,0 +1,308 @@
+package main.java.no.ntnu.datakomm;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A non-blocking version of the warm-up server. All the clients are served by a single thread with a
+ * Selector, so an idle connection costs only a socket and a small read buffer instead of a whole thread.
+ * Speaks the same "a+b" / "game over" line protocol as the thread-per-client server.
+ */
+public class NioTcpServer {
+    // Initial size of the per-connection read buffer. Requests are tiny, so this is enough for most clients
+    private static final int INITIAL_LINE_BUFFER = 64;
+    // A request line longer than this is considered garbage and the client is disconnected
+    private static final int MAX_LINE_LENGTH = 4096;
+    // When this many response bytes are waiting for a slow client, stop reading its requests for a while
+    private static final int MAX_PENDING_OUTPUT = 64 * 1024;
+    // How many not-yet-accepted connections the OS may queue for us
+    private static final int ACCEPT_BACKLOG = 4096;
+
+    private final int port;
+    private final ServerMetrics metrics;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    // Counted down when the server listens
+    private final CountDownLatch started = new CountDownLatch(1);
+    private volatile int localPort = -1;
+    private volatile Selector selector;
+    private volatile boolean closed = false;
+
+    /**
+     * @param port TCP port to listen on
+     */
+    public NioTcpServer(int port) {
+        this(port, ServerMetrics.unregistered());
+    }
+
+    /**
+     * @param port    TCP port to listen on
+     * @param metrics Metrics of the server, updated by the event loop
+     */
+    NioTcpServer(int port, ServerMetrics metrics) {
+        this.port = port;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Wait until the server listens.
+     *
+     * @param timeoutMillis How long to wait at most
+     * @return The port the server listens on (the one chosen by the system for port 0), -1 if the server did
+     * not start in time
+     * @throws InterruptedException When interrupted while waiting
+     */
+    public int awaitPort(long timeoutMillis) throws InterruptedException {
+        started.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        return localPort;
+    }
+
+    /**
+     * Stop the event loop and disconnect all the clients. Can be called from any thread, run() returns soon
+     * after.
+     */
+    public void close() {
+        closed = true;
+        Selector s = selector;
+        if (s != null) {
+            s.wakeup();
+        }
+    }
+
+    /**
+     * Run the event loop. Returns when the server is closed, or if the listening socket can not be opened or
+     * the selector fails.
+     */
+    public void run() {
+        try (Selector selector = Selector.open();
+             ServerSocketChannel welcomeChannel = ServerSocketChannel.open()) {
+            this.selector = selector;
+            welcomeChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+            welcomeChannel.configureBlocking(false);
+            welcomeChannel.register(selector, SelectionKey.OP_ACCEPT);
+            localPort = welcomeChannel.socket().getLocalPort();
+            started.countDown();
+            log("Non-blocking server started on port " + localPort);
+
+            while (!closed) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (key.isValid() && key.isAcceptable()) {
+                            acceptClient(welcomeChannel, selector);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            readFromClient(key);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            writeToClient(key);
+                        }
+                    }
+                    catch (IOException e) {
+                        log("Client error: " + e.getMessage());
+                        closeClient(key);
+                    }
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() != null) {
+                    closeClient(key);
+                }
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Accept all the pending connections and register them for reading.
+     */
+    private void acceptClient(ServerSocketChannel welcomeChannel, Selector selector) throws IOException {
+        SocketChannel clientChannel;
+        while ((clientChannel = welcomeChannel.accept()) != null) {
+            clientChannel.configureBlocking(false);
+            clientChannel.register(selector, SelectionKey.OP_READ, new Connection());
+            metrics.connectionsOpened.increment();
+        }
+    }
+
+    /**
+     * Read whatever the client has sent, answer every complete request line.
+     */
+    private void readFromClient(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        int bytesRead = 0;
+        while (connection.pendingOutput() < MAX_PENDING_OUTPUT && !connection.closeRequested
+                && (bytesRead = channel.read(readBuffer)) > 0) {
+            metrics.bytesReceived.add(bytesRead);
+            readBuffer.flip();
+            while (readBuffer.hasRemaining() && !connection.closeRequested) {
+                byte b = readBuffer.get();
+                if (b == '\n') {
+                    handleRequest(connection, connection.takeLine());
+                }
+                else if (!connection.appendToLine(b)) {
+                    log("Request line too long, closing connection");
+                    closeClient(key);
+                    readBuffer.clear();
+                    return;
+                }
+            }
+            readBuffer.clear();
+        }
+        if (bytesRead < 0) {
+            // The client has closed its end of the connection
+            connection.closeRequested = true;
+        }
+        writeToClient(key);
+    }
+
+    /**
+     * Process a single request line and queue the response.
+     */
+    private void handleRequest(Connection connection, String request) {
+        long start = System.nanoTime();
+        if (ArithmeticProtocol.isGameOver(request)) {
+            metrics.countRequest(null);
+            connection.closeRequested = true;
+        }
+        else {
+            String response = ArithmeticProtocol.answer(request);
+            metrics.countRequest(response);
+            connection.queueResponse(response);
+        }
+        metrics.requestTime.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Send as much of the queued responses as the socket accepts, then update what we are interested in:
+     * wait for writability while output is pending, stop reading while too much output is pending.
+     */
+    private void writeToClient(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        ByteBuffer out = connection.writeBuffer;
+        if (out != null) {
+            out.flip();
+            metrics.bytesSent.add(channel.write(out));
+            out.compact();
+        }
+        int pending = connection.pendingOutput();
+        if (pending == 0) {
+            // Drop the write buffer of idle clients, it is allocated again when there is something to send
+            connection.writeBuffer = null;
+            if (connection.closeRequested) {
+                closeClient(key);
+                return;
+            }
+        }
+        int interest = 0;
+        if (pending > 0) {
+            interest |= SelectionKey.OP_WRITE;
+        }
+        if (pending < MAX_PENDING_OUTPUT && !connection.closeRequested) {
+            interest |= SelectionKey.OP_READ;
+        }
+        key.interestOps(interest);
+    }
+
+    /**
+     * Close the client connection, ignoring errors.
+     */
+    private void closeClient(SelectionKey key) {
+        if (key.channel().isOpen()) {
+            metrics.connectionsClosed.increment();
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        }
+        catch (IOException e) {
+            log("Socket close error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Log a message to the system console.
+     *
+     * @param message The message to be logged (printed).
+     */
+    private static void log(String message) {
+        System.out.println(message);
+    }
+
+    /**
+     * State of one client connection: the partially received request line and the responses not yet sent.
+     */
+    private static class Connection {
+        private byte[] line = new byte[INITIAL_LINE_BUFFER];
+        private int lineLength = 0;
+        private ByteBuffer writeBuffer;
+        private boolean closeRequested = false;
+
+        /**
+         * Append one byte to the current request line.
+         *
+         * @return false when the line is longer than allowed
+         */
+        boolean appendToLine(byte b) {
+            if (lineLength == line.length) {
+                if (line.length >= MAX_LINE_LENGTH) {
+                    return false;
+                }
+                byte[] bigger = new byte[Math.min(line.length * 2, MAX_LINE_LENGTH)];
+                System.arraycopy(line, 0, bigger, 0, lineLength);
+                line = bigger;
+            }
+            line[lineLength++] = b;
+            return true;
+        }
+
+        /**
+         * Return the complete request line (without the newline) and start collecting the next one.
+         */
+        String takeLine() {
+            String request = new String(line, 0, lineLength, StandardCharsets.UTF_8).trim();
+            lineLength = 0;
+            return request;
+        }
+
+        /**
+         * Add a response line to the output buffer, growing the buffer when needed.
+         */
+        void queueResponse(String response) {
+            byte[] bytes = (response + "\n").getBytes(StandardCharsets.UTF_8);
+            if (writeBuffer == null) {
+                writeBuffer = ByteBuffer.allocate(Math.max(256, bytes.length));
+            }
+            else if (writeBuffer.remaining() < bytes.length) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(writeBuffer.capacity() * 2,
+                        writeBuffer.position() + bytes.length));
+                writeBuffer.flip();
+                bigger.put(writeBuffer);
+                writeBuffer = bigger;
+            }
+            writeBuffer.put(bytes);
+        }
+
+        /**
+         * @return number of response bytes waiting to be sent
+         */
+        int pendingOutput() {
+            return writeBuffer != null ? writeBuffer.position() : 0;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package main.java.no.ntnu.datakomm;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics updated by the warm-up servers, looked up once in a registry. Shared by all the connections of a
+ * server; every update is lock-free and allocation-free.
+ */
+final class ServerMetrics {
+    // Used by handlers created without metrics
+    private static final ServerMetrics UNREGISTERED = new ServerMetrics(new MetricsRegistry());
+
+    final LongAdder connectionsOpened;
+    final LongAdder connectionsClosed;
+    final LongAdder bytesReceived;
+    final LongAdder bytesSent;
+    // Requests by type: answered sums, unparseable requests, and the "game over" ending the conversation
+    final LongAdder sumRequests;
+    final LongAdder errorRequests;
+    final LongAdder gameOverRequests;
+    // Time to parse and answer one request (including writing the response to the socket), in nanoseconds
+    final LatencyHistogram requestTime;
+
+    /**
+     * @param registry Where the metrics are registered
+     */
+    ServerMetrics(MetricsRegistry registry) {
+        connectionsOpened = registry.counter("server.connections.opened");
+        connectionsClosed = registry.counter("server.connections.closed");
+        bytesReceived = registry.counter("server.bytes.received");
+        bytesSent = registry.counter("server.bytes.sent");
+        sumRequests = registry.counter("server.requests.sum");
+        errorRequests = registry.counter("server.requests.error");
+        gameOverRequests = registry.counter("server.requests.gameover");
+        requestTime = registry.histogram("server.request.time");
+    }
+
+    /**
+     * @return Metrics not registered anywhere, for servers and handlers created without a registry
+     */
+    static ServerMetrics unregistered() {
+        return UNREGISTERED;
+    }
+
+    /**
+     * Count a handled request by its type.
+     *
+     * @param response The response sent, null when the request was "game over"
+     */
+    void countRequest(String response) {
+        if (response == null) {
+            gameOverRequests.increment();
+        }
+        else if (ArithmeticProtocol.ERROR.equals(response)) {
+            errorRequests.increment();
+        }
+        else {
+            sumRequests.increment();
+        }
+    }
+}
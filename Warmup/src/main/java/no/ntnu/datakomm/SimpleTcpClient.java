@@ -13,6 +13,8 @@ public class SimpleTcpClient {
     // TCP port
     private static final int PORT = 1301;
     private Socket clientSocket;
+    // Reads responses and writes requests for the whole lifetime of the connection
+    private LineCodec codec;
 
     /**
      * Run the TCP Client.
@@ -105,7 +107,7 @@ public class SimpleTcpClient {
     private boolean closeConnection() {
         boolean closed;
         try {
-            clientSocket.close();
+            codec.close();
             closed = clientSocket.isClosed();
         }
         catch (IOException e) {
@@ -127,6 +129,7 @@ public class SimpleTcpClient {
         try {
             clientSocket = new Socket(host, port);
             clientSocket.setSoTimeout(100 * 1000);
+            codec = new LineCodec(clientSocket);
             connected = true;
         }
         catch (IOException e) {
@@ -153,9 +156,8 @@ public class SimpleTcpClient {
         try {
             if (request != null && !(request.equals(""))) {
                 if (!clientSocket.isClosed() && clientSocket.isConnected()) {
-                    OutputStream out = clientSocket.getOutputStream();
-                    PrintWriter writer = new PrintWriter(out, true);
-                    writer.println(request);
+                    codec.writeLine(request);
+                    codec.flush();
                     sent = true;
                 }
                 else {
@@ -184,9 +186,7 @@ public class SimpleTcpClient {
         // Similarly to other methods, exception can happen while trying to read the input stream of the TCP Socket
         String response;
         try {
-            InputStream in = clientSocket.getInputStream();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-            response = reader.readLine();
+            response = codec.readLine();
         }
         catch (IOException e) {
             System.out.println("Socket response error: " + e.getMessage());
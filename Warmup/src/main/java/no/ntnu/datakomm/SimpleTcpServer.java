@@ -3,22 +3,129 @@ package main.java.no.ntnu.datakomm;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import javax.management.JMException;
 
 /**
  * A Simple TCP client, used as a warm-up exercise for assignment A4.
  */
 public class SimpleTcpServer {
     private static final int PORT = 1301;
+    // Number of handler threads when the handlers run in a bounded pool
+    private static final int DEFAULT_POOL_SIZE = 200;
 
+    // JMX name of the server metrics
+    private static final String METRICS_MBEAN_NAME = "no.ntnu.datakomm:type=TcpServer";
+
+    // Executes the per-client handlers
+    private final ExecutorService handlerExecutor;
+    private final ServerMetrics metrics;
+
+    /**
+     * Create a server running every client handler on its own platform thread.
+     */
+    public SimpleTcpServer() {
+        this(ExecutionMode.PLATFORM.newExecutor("client-handler", 0, false));
+    }
+
+    /**
+     * @param handlerExecutor Executor that runs the blocking client handlers, one task per client
+     */
+    public SimpleTcpServer(ExecutorService handlerExecutor) {
+        this(handlerExecutor, new MetricsRegistry());
+    }
+
+    /**
+     * @param handlerExecutor Executor that runs the blocking client handlers, one task per client
+     * @param metrics         Where the server registers its metrics
+     */
+    public SimpleTcpServer(ExecutorService handlerExecutor, MetricsRegistry metrics) {
+        this.handlerExecutor = handlerExecutor;
+        this.metrics = new ServerMetrics(metrics);
+    }
+
+    /**
+     * Run the server.
+     *
+     * @param args Command line arguments. "--nio" starts the non-blocking, single-threaded server instead of
+     *             the default thread-per-client server. "--threads=platform|virtual|pool" selects how the
+     *             client handlers are executed, "--pool-size=N" sets the number of threads for "pool".
+     *             "--metrics-port=P" serves the metrics as text on port P, to local clients only unless
+     *             "--metrics-bind=ADDRESS" gives another interface to listen on. The metrics are also
+     *             available over JMX.
+     */
     public static void main(String[] args) {
-        SimpleTcpServer server = new SimpleTcpServer();
-        log("Simple TCP server starting");
-        server.run();
+        boolean nio = false;
+        ExecutionMode mode = ExecutionMode.PLATFORM;
+        int poolSize = DEFAULT_POOL_SIZE;
+        int metricsPort = 0;
+        String metricsBind = null;
+        for (String arg : args) {
+            if (arg.equals("--nio")) {
+                nio = true;
+            }
+            else if (arg.startsWith("--threads=")) {
+                mode = ExecutionMode.parse(arg.substring("--threads=".length()));
+            }
+            else if (arg.startsWith("--pool-size=")) {
+                poolSize = Integer.parseInt(arg.substring("--pool-size=".length()));
+            }
+            else if (arg.startsWith("--metrics-port=")) {
+                metricsPort = Integer.parseInt(arg.substring("--metrics-port=".length()));
+            }
+            else if (arg.startsWith("--metrics-bind=")) {
+                metricsBind = arg.substring("--metrics-bind=".length());
+            }
+            else {
+                log("Ignoring unknown argument: " + arg);
+            }
+        }
+
+        MetricsRegistry metrics = publishMetrics(metricsPort, metricsBind);
+        if (nio) {
+            log("Non-blocking TCP server starting");
+            new NioTcpServer(PORT, new ServerMetrics(metrics)).run();
+        }
+        else {
+            SimpleTcpServer server = new SimpleTcpServer(mode.newExecutor("client-handler", poolSize, false), metrics);
+            log("Simple TCP server starting, client handlers run in " + mode + " mode");
+            server.run();
+        }
         log("ERROR: the server should never go out of the run() method! After handling one client");
     }
 
+    /**
+     * Create the metrics registry of the server and publish it over JMX, and as text when a port is given.
+     *
+     * @param metricsPort Port for the text dump, 0 for none
+     * @param metricsBind Host name or address of the interface for the text dump, null for the loopback
+     * @return The registry
+     */
+    private static MetricsRegistry publishMetrics(int metricsPort, String metricsBind) {
+        MetricsRegistry metrics = new MetricsRegistry();
+        try {
+            metrics.registerMBean(METRICS_MBEAN_NAME);
+        }
+        catch (JMException e) {
+            log("Metrics not available over JMX: " + e.getMessage());
+        }
+        if (metricsPort > 0) {
+            try {
+                InetAddress bindAddress = metricsBind != null
+                        ? InetAddress.getByName(metricsBind) : InetAddress.getLoopbackAddress();
+                new MetricsEndpoint(metrics, metricsPort, bindAddress).start();
+                log("Metrics served on " + bindAddress.getHostAddress() + " port " + metricsPort);
+            }
+            catch (IOException e) {
+                log("Metrics port could not be opened: " + e.getMessage());
+            }
+        }
+        return metrics;
+    }
+
     public void run() {
         // TODO - implement the logic of the server, according to the protocol.
         // Take a look at the tutorial to understand the basic blocks: creating a listening socket,
@@ -30,8 +137,7 @@ public class SimpleTcpServer {
 
             while (mustRun) {
                 Socket clientSocket = welcomeSocket.accept();
-                ClientHandler clientHandler = new ClientHandler(clientSocket);
-                clientHandler.start();
+                handlerExecutor.execute(new ClientHandler(clientSocket, metrics));
             }
             welcomeSocket.close();
         }
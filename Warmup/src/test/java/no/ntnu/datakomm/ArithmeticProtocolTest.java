@@ -0,0 +1,43 @@
+package main.java.no.ntnu.datakomm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ArithmeticProtocolTest {
+    /**
+     * The answers must stay those of the original split("\\+") parsing: spaces around the request are ignored,
+     * and so is anything after a second '+'.
+     */
+    @Test
+    public void testAnswer() {
+        assertEquals("3", ArithmeticProtocol.answer("1+2"));
+        assertEquals("3", ArithmeticProtocol.answer(" 1+2 "));
+        assertEquals("3", ArithmeticProtocol.answer("1+2+3"));
+        assertEquals("-1", ArithmeticProtocol.answer("-3+2"));
+        assertEquals(ArithmeticProtocol.ERROR, ArithmeticProtocol.answer("1 + 2"));
+        assertEquals(ArithmeticProtocol.ERROR, ArithmeticProtocol.answer("1++2"));
+        assertEquals(ArithmeticProtocol.ERROR, ArithmeticProtocol.answer("+2"));
+        assertEquals(ArithmeticProtocol.ERROR, ArithmeticProtocol.answer("bla+bla"));
+    }
+
+    /**
+     * A request without a '+' or without a second number used to crash the handler, now it gets an error
+     * response.
+     */
+    @Test
+    public void testMissingPlus() {
+        assertEquals(ArithmeticProtocol.ERROR, ArithmeticProtocol.answer("2"));
+        assertEquals(ArithmeticProtocol.ERROR, ArithmeticProtocol.answer("2+"));
+        assertEquals(ArithmeticProtocol.ERROR, ArithmeticProtocol.answer(""));
+        assertEquals(ArithmeticProtocol.ERROR, ArithmeticProtocol.answer(null));
+    }
+
+    @Test
+    public void testGameOver() {
+        assertTrue(ArithmeticProtocol.isGameOver("game over"));
+        assertTrue(ArithmeticProtocol.isGameOver(" game over "));
+        assertFalse(ArithmeticProtocol.isGameOver("game  over"));
+        assertFalse(ArithmeticProtocol.isGameOver(null));
+    }
+}
@@ -0,0 +1,167 @@
+package main.java.no.ntnu.datakomm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ClientHandlerTest {
+    // How many requests the client sends without waiting for responses
+    private static final int PIPELINED_REQUESTS = 10000;
+
+    private final ServerMetrics metrics = new ServerMetrics(new MetricsRegistry());
+    private ServerSocket welcomeSocket;
+    private Thread server;
+    private Socket socket;
+    // The client end of the connection to the handler
+    private LineCodec client;
+
+    /**
+     * Start a client handler on a background thread and connect to it.
+     *
+     * @throws IOException When the connection fails
+     */
+    @Before
+    public void startHandler() throws IOException {
+        welcomeSocket = new ServerSocket(0);
+        server = new Thread(() -> {
+            try {
+                new ClientHandler(welcomeSocket.accept(), metrics).run();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        server.start();
+        socket = new Socket("localhost", welcomeSocket.getLocalPort());
+        client = new LineCodec(socket);
+    }
+
+    /**
+     * Close the connection and wait for the handler to finish.
+     *
+     * @throws Exception When interrupted while waiting
+     */
+    @After
+    public void stopHandler() throws Exception {
+        client.close();
+        server.join();
+        welcomeSocket.close();
+    }
+
+    /**
+     * Send many requests back-to-back without waiting for the responses. Every response must arrive, in the
+     * same order as the requests.
+     *
+     * @throws Exception When the connection fails
+     */
+    @Test(timeout = 30000)
+    public void testPipelinedRequests() throws Exception {
+        // Send on another thread, otherwise both ends could block on full socket buffers
+        Thread sender = new Thread(() -> {
+            try {
+                for (int i = 0; i < PIPELINED_REQUESTS; i++) {
+                    client.writeLine(i + "+" + i * 2);
+                }
+                client.writeLine("game over");
+                client.flush();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        sender.start();
+
+        for (int i = 0; i < PIPELINED_REQUESTS; i++) {
+            assertEquals(Integer.toString(i * 3), client.readLine());
+        }
+        // After "game over" the server closes the connection
+        assertNull(client.readLine());
+        sender.join();
+    }
+
+    /**
+     * Invalid requests must get an error response, and the connection must stay usable.
+     *
+     * @throws Exception When the connection fails
+     */
+    @Test(timeout = 10000)
+    public void testInvalidRequest() throws Exception {
+        client.writeLine("bla+bla");
+        client.writeLine("2+");
+        client.writeLine("2+2");
+        client.writeLine("game over");
+        client.flush();
+        assertEquals("error", client.readLine());
+        assertEquals("error", client.readLine());
+        assertEquals("4", client.readLine());
+        assertNull(client.readLine());
+    }
+
+    /**
+     * The traffic counters must count the bytes on the wire: multi-byte characters, carriage returns and frame
+     * headers included.
+     *
+     * @throws Exception When the connection fails
+     */
+    @Test(timeout = 10000)
+    public void testTrafficCounters() throws Exception {
+        // Written past the codec, which can only send "\n" line ends
+        OutputStream out = socket.getOutputStream();
+        // 4 + 6 bytes, the letter takes two
+        out.write("1+1\n\u00e6+1\r\n".getBytes(StandardCharsets.UTF_8));
+        out.write((LineCodec.FRAMING_REQUEST + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        assertEquals("2", client.readLine());
+        assertEquals("error", client.readLine());
+        assertEquals(LineCodec.FRAMING_ACCEPTED, client.readLine());
+        client.useBinaryFraming();
+        // Length, opcode and 3 bytes
+        assertEquals(5, client.writeLine("2+2"));
+        client.writeLine("game over");
+        client.flush();
+        assertEquals("4", client.readLine());
+        assertEquals(3, client.getLastLineBytes());
+        assertNull(client.readLine());
+        server.join();
+
+        long received = 4 + 6 + LineCodec.FRAMING_REQUEST.length() + 1 + 5 + 11;
+        long sent = 2 + 6 + LineCodec.FRAMING_ACCEPTED.length() + 1 + 3;
+        assertEquals(received, metrics.bytesReceived.sum());
+        assertEquals(sent, metrics.bytesSent.sum());
+    }
+
+    /**
+     * After switching to binary frames the requests and responses must get through in both directions, also
+     * when a frame does not fit in the initial receive buffer.
+     *
+     * @throws Exception When the connection fails
+     */
+    @Test(timeout = 10000)
+    public void testBinaryFraming() throws Exception {
+        client.writeLine(LineCodec.FRAMING_REQUEST);
+        client.flush();
+        assertEquals(LineCodec.FRAMING_ACCEPTED, client.readLine());
+        client.useBinaryFraming();
+
+        StringBuilder longNumber = new StringBuilder("1+");
+        while (longNumber.length() < 100000) {
+            longNumber.append('9');
+        }
+        client.writeLine("2+2");
+        client.writeLine(longNumber.toString());
+        client.writeLine("3+\n4");
+        client.writeLine("game over");
+        client.flush();
+        assertEquals("4", client.readLine());
+        assertEquals("error", client.readLine());
+        assertEquals("error", client.readLine());
+        assertNull(client.readLine());
+    }
+}
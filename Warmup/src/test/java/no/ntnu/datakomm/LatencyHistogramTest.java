@@ -0,0 +1,57 @@
+package main.java.no.ntnu.datakomm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+    /**
+     * Every value must land in a bucket that contains it, and the buckets must be contiguous.
+     */
+    @Test
+    public void testBucketsCoverAllValues() {
+        long[] values = {0, 1, 127, 128, 129, 255, 256, 1000, 123456789, Long.MAX_VALUE / 3, Long.MAX_VALUE};
+        for (long value : values) {
+            int index = LatencyHistogram.indexOf(value);
+            assertTrue(LatencyHistogram.lowestValueIn(index) <= value);
+            assertTrue(LatencyHistogram.highestValueIn(index) >= value);
+        }
+        for (int index = 1; index <= LatencyHistogram.indexOf(Long.MAX_VALUE); index++) {
+            assertEquals(LatencyHistogram.highestValueIn(index - 1) + 1, LatencyHistogram.lowestValueIn(index));
+        }
+    }
+
+    /**
+     * Percentiles of 1..100000 must be within the precision of the histogram.
+     */
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 100000; value++) {
+            histogram.record(value);
+        }
+        assertEquals(100000, histogram.getCount());
+        assertEquals(50000, histogram.getValueAtPercentile(50), 50000 * 0.016);
+        assertEquals(99000, histogram.getValueAtPercentile(99), 99000 * 0.016);
+        assertEquals(99900, histogram.getValueAtPercentile(99.9), 99900 * 0.016);
+        assertEquals(100000, histogram.getMax(), 100000 * 0.016);
+        assertEquals(50000, histogram.getMean(), 50000 * 0.016);
+    }
+
+    /**
+     * Merged histograms must give the same results as one histogram with all the values.
+     */
+    @Test
+    public void testAdd() {
+        LatencyHistogram first = new LatencyHistogram();
+        LatencyHistogram second = new LatencyHistogram();
+        first.record(10);
+        second.record(1000000);
+        second.record(20);
+        first.add(second);
+        assertEquals(3, first.getCount());
+        assertEquals(20, first.getValueAtPercentile(50));
+        assertEquals(1000000, first.getMax(), 1000000 * 0.016);
+        assertEquals(0, new LatencyHistogram().getValueAtPercentile(99));
+    }
+}
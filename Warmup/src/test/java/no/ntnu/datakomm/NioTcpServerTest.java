@@ -0,0 +1,156 @@
+package main.java.no.ntnu.datakomm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class NioTcpServerTest {
+    // How long to wait for the server to start and stop
+    private static final int TIMEOUT = 5000;
+    // How many requests the client sends without waiting for responses
+    private static final int PIPELINED_REQUESTS = 10000;
+    // How many clients are connected at the same time
+    private static final int CONNECTIONS = 200;
+
+    private final ServerMetrics metrics = new ServerMetrics(new MetricsRegistry());
+    private NioTcpServer server;
+    private Thread serverThread;
+    private int port;
+
+    /**
+     * Start the server on a port chosen by the system.
+     *
+     * @throws InterruptedException When interrupted while waiting for the server
+     */
+    @Before
+    public void startServer() throws InterruptedException {
+        server = new NioTcpServer(0, metrics);
+        serverThread = new Thread(server::run, "nio-server");
+        serverThread.start();
+        port = server.awaitPort(TIMEOUT);
+        assertTrue(port > 0);
+    }
+
+    /**
+     * Stop the server and check that the event loop has returned.
+     *
+     * @throws InterruptedException When interrupted while waiting for the server
+     */
+    @After
+    public void stopServer() throws InterruptedException {
+        server.close();
+        serverThread.join(TIMEOUT);
+        assertFalse(serverThread.isAlive());
+    }
+
+    /**
+     * Send many requests back-to-back without waiting for the responses. Every response must arrive, in the
+     * same order as the requests.
+     *
+     * @throws Exception When the connection fails
+     */
+    @Test(timeout = 30000)
+    public void testPipelinedRequests() throws Exception {
+        try (LineCodec client = new LineCodec(new Socket("localhost", port))) {
+            // Send on another thread, otherwise both ends could block on full socket buffers
+            Thread sender = new Thread(() -> {
+                try {
+                    for (int i = 0; i < PIPELINED_REQUESTS; i++) {
+                        client.writeLine(i + "+" + i * 2);
+                    }
+                    client.writeLine("game over");
+                    client.flush();
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            sender.start();
+
+            for (int i = 0; i < PIPELINED_REQUESTS; i++) {
+                assertEquals(Integer.toString(i * 3), client.readLine());
+            }
+            assertNull(client.readLine());
+            sender.join();
+        }
+    }
+
+    /**
+     * A request split over several reads is answered once it is complete, and several requests in one read
+     * are all answered.
+     *
+     * @throws Exception When the connection fails
+     */
+    @Test(timeout = 10000)
+    public void testSplitRequest() throws Exception {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+            LineCodec client = new LineCodec(socket);
+            for (String part : new String[]{"12", "+3", "0\n"}) {
+                out.write(part.getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                // Give the server time to read each part on its own
+                Thread.sleep(50);
+            }
+            assertEquals("42", client.readLine());
+            out.write("1+1\n2+2\nbla\n".getBytes(StandardCharsets.UTF_8));
+            assertEquals("2", client.readLine());
+            assertEquals("4", client.readLine());
+            assertEquals(ArithmeticProtocol.ERROR, client.readLine());
+        }
+    }
+
+    /**
+     * "game over" closes the connection, after the responses to the requests before it.
+     *
+     * @throws Exception When the connection fails
+     */
+    @Test(timeout = 10000)
+    public void testGameOver() throws Exception {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.getOutputStream().write("1+1\ngame over\n3+3\n".getBytes(StandardCharsets.UTF_8));
+            LineCodec client = new LineCodec(socket);
+            assertEquals("2", client.readLine());
+            // The request after "game over" is not answered
+            assertNull(client.readLine());
+        }
+        assertEquals(2, metrics.requestTime.getCount());
+    }
+
+    /**
+     * Many clients connected at the same time are all served by the one server thread.
+     *
+     * @throws Exception When a connection fails
+     */
+    @Test(timeout = 30000)
+    public void testManyConnections() throws Exception {
+        List<LineCodec> clients = new ArrayList<>();
+        try {
+            for (int i = 0; i < CONNECTIONS; i++) {
+                clients.add(new LineCodec(new Socket("localhost", port)));
+            }
+            for (int i = 0; i < CONNECTIONS; i++) {
+                clients.get(i).writeLine(i + "+1");
+                clients.get(i).flush();
+            }
+            for (int i = CONNECTIONS - 1; i >= 0; i--) {
+                assertEquals(Integer.toString(i + 1), clients.get(i).readLine());
+            }
+            assertEquals(CONNECTIONS, metrics.connectionsOpened.sum());
+        }
+        finally {
+            for (LineCodec client : clients) {
+                client.close();
+            }
+        }
+    }
+}